@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/Engine.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/NormalizationType.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java 
+javac -cp . -d classes ir/CorpusContainer.java ir/Deadline.java ir/DeletionDictionary.java ir/DocInfoFile.java ir/DocMetadata.java ir/DocumentReader.java ir/DocumentStore.java ir/Engine.java ir/ForwardIndex.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/IndexingLog.java ir/IndexingStats.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/Metrics.java ir/MonteCarloPageRank.java ir/NormalizationType.java ir/PageRank.java ir/PatternSet.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SegmentedIndex.java ir/SnippetGenerator.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenStream.java ir/TokenTest.java ir/TokenizerFactory.java ir/VByte.java 
@@ -0,0 +1,320 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+
+/**
+ *  A corpus packed into a single file, so that reindexing is one large
+ *  sequential read instead of thousands of directory listings and file opens.
+ *
+ *  Layout of the container file:
+ *  <pre>
+ *    header:    int MAGIC, int VERSION, int number of documents, long table offset
+ *    data:      the bytes of every document, one after the other
+ *    table:     for every document: long offset, int length,
+ *               short path length, path in UTF-8
+ *  </pre>
+ *  The paths are the ones {@link Indexer#processFiles} would have stored as
+ *  document names, and the documents are in the order it would have visited
+ *  them, so both ways of indexing give the same docIDs.
+ */
+public class CorpusContainer implements Closeable {
+
+    /** Identifies a container file ("IRPK"). */
+    public static final int MAGIC = 0x4952504B;
+
+    /** Version of the layout. */
+    public static final int VERSION = 1;
+
+    /** Size of the header in bytes. */
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    /** A slice holds at most this many documents... */
+    public static final int SLICE_DOCS = 512;
+
+    /** ...and at most this many bytes (unless a single document is larger). */
+    public static final long SLICE_BYTES = 16L << 20;
+
+    /** The container file. */
+    private final FileChannel channel;
+
+    /** Offset of each document in the file. */
+    final long[] offsets;
+
+    /** Length in bytes of each document. */
+    final int[] lengths;
+
+    /** Path of each document. */
+    final String[] paths;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Opens a container and reads its document table.
+     */
+    public CorpusContainer( File file ) throws IOException {
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        try {
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            readFully( header, 0 );
+            header.flip();
+            if ( header.getInt() != MAGIC || header.getInt() != VERSION ) {
+                throw new IOException( file + " is not a corpus container" );
+            }
+            int n = header.getInt();
+            long tableOffset = header.getLong();
+            offsets = new long[n];
+            lengths = new int[n];
+            paths = new String[n];
+            ByteBuffer table = channel.map( FileChannel.MapMode.READ_ONLY, tableOffset, channel.size() - tableOffset );
+            for ( int i=0; i<n; i++ ) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+                byte[] path = new byte[table.getShort() & 0xffff];
+                table.get( path );
+                paths[i] = new String( path, StandardCharsets.UTF_8 );
+            }
+        } catch ( IOException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** Number of documents in the container. */
+    public int size() {
+        return paths.length;
+    }
+
+
+    /** Path of document <code>i</code>. */
+    public String path( int i ) {
+        return paths[i];
+    }
+
+
+    /** Offset of document <code>i</code> in the container file. */
+    public long offset( int i ) {
+        return offsets[i];
+    }
+
+
+    /** Length in bytes of document <code>i</code>. */
+    public int length( int i ) {
+        return lengths[i];
+    }
+
+
+    /**
+     *  Splits the documents into consecutive slices, bounded by
+     *  {@link #SLICE_DOCS} documents and {@link #SLICE_BYTES} bytes.
+     *
+     *  @return The first document of every slice, followed by <code>size()</code>.
+     */
+    public int[] slices() {
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        int first = 0;
+        while ( first < size() ) {
+            starts.add( first );
+            int last = first + 1;
+            long bytes = lengths[first];
+            while ( last < size() && last - first < SLICE_DOCS && bytes + lengths[last] <= SLICE_BYTES ) {
+                bytes += lengths[last++];
+            }
+            first = last;
+        }
+        int[] result = new int[starts.size() + 1];
+        for ( int i=0; i<starts.size(); i++ ) result[i] = starts.get( i );
+        result[starts.size()] = size();
+        return result;
+    }
+
+
+    /**
+     *  Maps the bytes of the documents <code>from</code> (inclusive) to
+     *  <code>to</code> (exclusive) with one call; the mapping can be read by
+     *  one thread while other slices are mapped and read by others.
+     */
+    public ByteBuffer map( int from, int to ) throws IOException {
+        if ( from >= to ) return ByteBuffer.allocate( 0 );
+        long start = offsets[from];
+        long end = offsets[to-1] + lengths[to-1];
+        return channel.map( FileChannel.MapMode.READ_ONLY, start, end - start );
+    }
+
+
+    /**
+     *  Returns the bytes of document <code>i</code> within a mapping
+     *  obtained from {@link #map(int,int)} for a range starting at <code>from</code>.
+     */
+    public ByteBuffer document( ByteBuffer mapped, int from, int i ) {
+        int pos = (int)(offsets[i] - offsets[from]);
+        ByteBuffer doc = mapped.duplicate();
+        doc.limit( pos + lengths[i] ).position( pos );
+        return doc;
+    }
+
+
+    private void readFully( ByteBuffer buf, long pos ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int n = channel.read( buf, pos );
+            if ( n < 0 ) throw new EOFException();
+            pos += n;
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Packs all readable files under <code>dir</code> into a container,
+     *  visiting them in the same order as {@link Indexer#processFiles}.
+     *
+     *  @return The number of documents packed.
+     */
+    public static int pack( File dir, File out ) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        collect( dir, files );
+        try ( FileChannel dest = FileChannel.open( out.toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE )) {
+            long[] offsets = new long[files.size()];
+            int[] lengths = new int[files.size()];
+            long pos = HEADER_SIZE;
+            dest.position( pos );
+            for ( int i=0; i<files.size(); i++ ) {
+                try ( FileChannel src = FileChannel.open( files.get( i ).toPath(), StandardOpenOption.READ )) {
+                    long size = src.size();
+                    if ( size > Integer.MAX_VALUE ) {
+                        throw new IOException( files.get( i ) + " is too large to be packed" );
+                    }
+                    long copied = 0;
+                    while ( copied < size ) {
+                        long n = src.transferTo( copied, size - copied, dest );
+                        if ( n <= 0 ) {
+                            throw new IOException( files.get( i ) + " shrank while it was being packed" );
+                        }
+                        copied += n;
+                    }
+                    offsets[i] = pos;
+                    lengths[i] = (int)size;
+                    pos += size;
+                }
+            }
+            long tableOffset = pos;
+            DataOutputStream table = new DataOutputStream( new BufferedOutputStream( new ChannelOutput( dest ), 1 << 16 ));
+            for ( int i=0; i<files.size(); i++ ) {
+                table.writeLong( offsets[i] );
+                table.writeInt( lengths[i] );
+                byte[] path = files.get( i ).getPath().getBytes( StandardCharsets.UTF_8 );
+                table.writeShort( path.length );
+                table.write( path );
+            }
+            table.flush();
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putInt( MAGIC ).putInt( VERSION ).putInt( files.size() ).putLong( tableOffset );
+            header.flip();
+            dest.write( header, 0 );
+        }
+        return files.size();
+    }
+
+
+    /** Lists the readable files under <code>f</code> in indexing order. */
+    private static void collect( File f, ArrayList<File> files ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        collect( new File( f, fs[i] ), files );
+                    }
+                }
+            } else {
+                files.add( f );
+            }
+        }
+    }
+
+
+    /** Writes to the current position of a channel. */
+    private static class ChannelOutput extends OutputStream {
+        final FileChannel channel;
+
+        ChannelOutput( FileChannel channel ) {
+            this.channel = channel;
+        }
+
+        public void write( int b ) throws IOException {
+            write( new byte[] { (byte)b }, 0, 1 );
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap( b, off, len );
+            while ( buf.hasRemaining() ) channel.write( buf );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <directory> : the directory to be packed (mandatory)" );
+        System.err.println( "  -o <filename> : the container file to be written (mandatory)" );
+    }
+
+
+    public static void main( String[] args ) {
+        String dir = null;
+        String out = null;
+        int i=0;
+        while ( i < args.length ) {
+            if ( "-d".equals( args[i] ) && i+1 < args.length ) {
+                dir = args[i+1];
+                i += 2;
+            } else if ( "-o".equals( args[i] ) && i+1 < args.length ) {
+                out = args[i+1];
+                i += 2;
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( dir == null || out == null ) {
+            printHelpMessage();
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            int n = pack( new File( dir ), new File( out ));
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            System.err.println( String.format( "Packed %d files into %s in %.1f seconds.", n, out, elapsedTime/1000.0 ));
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+
+/**
+ *  The time a search may take. The loops of the {@link Searcher} ask
+ *  {@link #expired} at every step; the clock is only read every
+ *  {@link #CHECK_INTERVAL} calls, so asking is cheap. A deadline can also
+ *  be cancelled, by the GUI when a newer search is started.
+ *
+ *  A deadline is used by the thread running one search, except for
+ *  {@link #cancel}, which may be called from any thread, and {@link #NONE},
+ *  which any number of searches may share.
+ */
+public class Deadline {
+
+    /** Number of calls to {@link #expired} between two readings of the clock. */
+    public static final int CHECK_INTERVAL = 256;
+
+    /**
+     *  A deadline that never expires. It is shared by all threads, so it
+     *  keeps no state: it cannot be cancelled and does not count the calls.
+     */
+    public static final Deadline NONE = new Deadline( 0 ) {
+        public void cancel() {
+        }
+
+        public boolean expired() {
+            return false;
+        }
+
+        public boolean expiredNow() {
+            return false;
+        }
+    };
+
+    /** When the time is up, as given by System.nanoTime(). */
+    private final long end;
+
+    /** Is there a time limit? */
+    private final boolean limited;
+
+    /** Calls left before the clock is read again. */
+    private int countdown = CHECK_INTERVAL;
+
+    /** Has the time run out, or has the search been cancelled? */
+    private boolean expired = false;
+
+    /** Set by {@link #cancel}. */
+    private volatile boolean cancelled = false;
+
+
+    /**
+     *  A deadline <code>budgetMs</code> milliseconds from now, or one that
+     *  never expires unless cancelled if <code>budgetMs</code> is not positive.
+     */
+    public Deadline( long budgetMs ) {
+        limited = budgetMs > 0;
+        end = System.nanoTime() + budgetMs * 1000000L;
+    }
+
+
+    /** Stops the search at its next check. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    /** Has the search been cancelled? */
+    public boolean cancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     *  Returns true if the search should stop. Once true, it stays true.
+     */
+    public boolean expired() {
+        if ( expired ) return true;
+        if ( --countdown > 0 ) return false;
+        countdown = CHECK_INTERVAL;
+        expired = cancelled || ( limited && System.nanoTime() - end > 0 );
+        return expired;
+    }
+
+
+    /**
+     *  Like {@link #expired}, but reads the clock at once, for checks made
+     *  between long steps (such as reading a postings list from disk).
+     */
+    public boolean expiredNow() {
+        countdown = 1;
+        return expired();
+    }
+}
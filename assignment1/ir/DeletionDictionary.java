@@ -0,0 +1,269 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Dmytro Kalpakchi, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/**
+ *  The deletion variants of every term of a {@link KGramIndex}, for
+ *  finding spelling candidates with a few exact lookups (symmetric
+ *  deletion, as in SymSpell).
+ *
+ *  With insertions and deletions costing 1 and substitutions 2, two terms
+ *  are at most d apart exactly when deleting i characters from one and j
+ *  from the other, with i + j &lt;= d, gives the same string. So the terms
+ *  within d of a query term are among those having a deletion variant
+ *  (with at most d deletions) in common with a deletion variant of the
+ *  query term.
+ *
+ *  A variant is stored as the 32-bit hash of its string, next to the IDs
+ *  of the terms having it: the sorted distinct hashes, an offsets table,
+ *  and the term IDs. The candidates found through a hash collision are
+ *  removed by the edit distance check of the caller. The same layout is
+ *  used on disk, after a header:
+ *  <pre>
+ *    header:   int MAGIC, int VERSION, int maxDistance, int numTerms,
+ *              int checksum of the terms, int numKeys, int numIDs
+ *    keys:     int hash, for every variant, in increasing order
+ *    offsets:  int start of the term IDs of each variant, followed by numIDs
+ *    term IDs: int, for every variant
+ *  </pre>
+ */
+public class DeletionDictionary {
+
+    /** Identifies a deletion dictionary file ("IRDD"). */
+    static final int MAGIC = 0x49524444;
+
+    /** Version of the layout. */
+    static final int VERSION = 2;
+
+    /** Name of the deletion dictionary file in the index directory. */
+    public static final String DELETIONS_FNAME = "deletions";
+
+    static final int HEADER_SIZE = 7 * 4;
+
+    /** Largest number of deletions in a variant. */
+    final int maxDistance;
+
+    /** Number of terms of the k-gram index the dictionary was built from. */
+    final int numTerms;
+
+    /** {@link KGramIndex#termsChecksum} of the k-gram index it was built from. */
+    final int termsChecksum;
+
+    /** The sorted variant hashes. */
+    private final IntBuffer keys;
+
+    /** Start of the term IDs of each variant in <code>ids</code>. */
+    private final IntBuffer offsets;
+
+    /** The term IDs of all variants. */
+    private final IntBuffer ids;
+
+
+    /* --------------------------------------------- */
+
+
+    private DeletionDictionary( int maxDistance, int numTerms, int termsChecksum, IntBuffer keys, IntBuffer offsets, IntBuffer ids ) {
+        this.maxDistance = maxDistance;
+        this.numTerms = numTerms;
+        this.termsChecksum = termsChecksum;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.ids = ids;
+    }
+
+
+    /**
+     *  Builds the dictionary of the terms of <code>terms</code>, with up to
+     *  <code>maxDistance</code> deletions.
+     */
+    public static DeletionDictionary build( KGramIndex terms, int maxDistance ) {
+        int n = terms.numberOfTerms();
+        // (hash << 32 | term ID) for every distinct variant of every term
+        long[] pairs = new long[Math.max( 16, 8*n )];
+        int size = 0;
+        HashSet<String> variants = new HashSet<String>();
+        for ( int id=0; id<n; id++ ) {
+            variants.clear();
+            addDeletions( terms.getTermByID( id ), maxDistance, variants );
+            if ( size + variants.size() > pairs.length ) {
+                pairs = Arrays.copyOf( pairs, Math.max( 2 * pairs.length, size + variants.size() ));
+            }
+            for ( String v : variants ) {
+                pairs[size++] = (long)v.hashCode() << 32 | id;
+            }
+        }
+        Arrays.parallelSort( pairs, 0, size );
+
+        int[] keys = new int[size];
+        int[] offsets = new int[size + 1];
+        int[] ids = new int[size];
+        int numKeys = 0;
+        int numIDs = 0;
+        for ( int i=0; i<size; i++ ) {
+            int key = (int)( pairs[i] >> 32 );
+            int id = (int)pairs[i];
+            if ( numKeys == 0 || keys[numKeys-1] != key ) {
+                keys[numKeys] = key;
+                offsets[numKeys] = numIDs;
+                numKeys++;
+            } else if ( ids[numIDs-1] == id ) {
+                // two variants of the term with the same hash
+                continue;
+            }
+            ids[numIDs++] = id;
+        }
+        offsets[numKeys] = numIDs;
+        return new DeletionDictionary( maxDistance, n, terms.termsChecksum(),
+                                       IntBuffer.wrap( keys, 0, numKeys ).slice(),
+                                       IntBuffer.wrap( offsets, 0, numKeys + 1 ).slice(),
+                                       IntBuffer.wrap( ids, 0, numIDs ).slice() );
+    }
+
+
+    /** Adds <code>term</code> and the strings obtained by deleting up to <code>d</code> of its characters. */
+    static void addDeletions( String term, int d, Set<String> result ) {
+        if ( !result.add( term ) || d == 0 ) return;
+        for ( int i=0; i<term.length(); i++ ) {
+            addDeletions( term.substring( 0, i ) + term.substring( i + 1 ), d - 1, result );
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Number of distinct variants. */
+    public int numberOfVariants() {
+        return keys.limit();
+    }
+
+
+    /** Size of the variants and term IDs, in bytes. */
+    public long memoryBytes() {
+        return 4L * ( keys.limit() + offsets.limit() + ids.limit() );
+    }
+
+
+    /**
+     *  Returns the IDs of the terms sharing a deletion variant with
+     *  <code>term</code>, each once. They include every term within
+     *  <code>maxDistance</code> of <code>term</code>, and some that are not.
+     */
+    public int[] candidates( String term ) {
+        HashSet<String> variants = new HashSet<String>();
+        addDeletions( term, maxDistance, variants );
+        int[] result = new int[16];
+        int n = 0;
+        for ( String v : variants ) {
+            int k = find( v.hashCode() );
+            if ( k < 0 ) continue;
+            int start = offsets.get( k );
+            int end = offsets.get( k + 1 );
+            if ( n + end - start > result.length ) {
+                result = Arrays.copyOf( result, Math.max( 2 * result.length, n + end - start ));
+            }
+            for ( int i=start; i<end; i++ ) {
+                result[n++] = ids.get( i );
+            }
+        }
+        Arrays.sort( result, 0, n );
+        int distinct = 0;
+        for ( int i=0; i<n; i++ ) {
+            if ( distinct == 0 || result[distinct-1] != result[i] ) result[distinct++] = result[i];
+        }
+        return Arrays.copyOf( result, distinct );
+    }
+
+
+    /** The position of <code>key</code> in <code>keys</code>, or -1. */
+    private int find( int key ) {
+        int lo = 0;
+        int hi = keys.limit() - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            int k = keys.get( mid );
+            if ( k < key ) lo = mid + 1;
+            else if ( k > key ) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Writes the dictionary to <code>file</code>. */
+    public void save( File file ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( maxDistance );
+            out.writeInt( numTerms );
+            out.writeInt( termsChecksum );
+            out.writeInt( keys.limit() );
+            out.writeInt( ids.limit() );
+            for ( IntBuffer b : new IntBuffer[] { keys, offsets, ids } ) {
+                for ( int i=0; i<b.limit(); i++ ) {
+                    out.writeInt( b.get( i ));
+                }
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
+    /**
+     *  Maps a dictionary written by {@link #save}.
+     *
+     *  @return The dictionary, or null if there is no such file or it was
+     *          built for another distance or other terms than those of
+     *          <code>terms</code>.
+     */
+    public static DeletionDictionary load( File file, KGramIndex terms, int maxDistance ) throws IOException {
+        int numTerms = terms.numberOfTerms();
+        if ( !file.exists() ) return null;
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            long size = channel.size();
+            if ( size < HEADER_SIZE ) return null;
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            if ( buf.getInt( 0 ) != MAGIC || buf.getInt( 4 ) != VERSION ||
+                 buf.getInt( 8 ) != maxDistance || buf.getInt( 12 ) != numTerms ) {
+                return null;
+            }
+            // the same number of terms, but maybe not the same terms
+            int checksum = terms.termsChecksum();
+            if ( buf.getInt( 16 ) != checksum ) return null;
+            int numKeys = buf.getInt( 20 );
+            int numIDs = buf.getInt( 24 );
+            return new DeletionDictionary( maxDistance, numTerms, checksum,
+                                           slice( buf, HEADER_SIZE, numKeys ),
+                                           slice( buf, HEADER_SIZE + 4*numKeys, numKeys + 1 ),
+                                           slice( buf, HEADER_SIZE + 4*(2*numKeys + 1), numIDs ));
+        }
+    }
+
+
+    private static IntBuffer slice( ByteBuffer buf, int pos, int n ) {
+        ByteBuffer b = buf.duplicate();
+        b.position( pos );
+        b.limit( pos + 4*n );
+        return b.slice().asIntBuffer();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *  The document names and lengths of a persistent index, in a binary file
+ *  that is memory-mapped when opened. Nothing is parsed up front: the length
+ *  and the name of a document are read from the mapping when asked for, so
+ *  opening the file takes the same time whatever the number of documents.
+ *
+ *  Layout of the file, for documents 0 to n-1:
+ *  <pre>
+ *    header:   int MAGIC, int VERSION, int n
+ *    lengths:  int length of document i, for every i
+ *    offsets:  int offset of the name of document i in the names, for every i,
+ *              followed by the total size of the names
+ *    names:    the names in UTF-8, one after the other
+ *  </pre>
+ */
+public class DocInfoFile {
+
+    /** Identifies a doc info file ("IRDI"). */
+    public static final int MAGIC = 0x49524449;
+
+    /** Version of the layout. */
+    public static final int VERSION = 1;
+
+    /** Size of the header in bytes. */
+    static final int HEADER_SIZE = 4 + 4 + 4;
+
+    /** The mapped file. */
+    private final ByteBuffer buf;
+
+    /** Number of documents. */
+    private final int n;
+
+    /** Position of the offsets table. */
+    private final int offsetsPos;
+
+    /** Position of the names. */
+    private final int namesPos;
+
+
+    /* ----------------------------------------------- */
+
+
+    private DocInfoFile( ByteBuffer buf ) {
+        this.buf = buf;
+        n = buf.getInt( 8 );
+        offsetsPos = HEADER_SIZE + 4*n;
+        namesPos = offsetsPos + 4*(n+1);
+    }
+
+
+    /**
+     *  Maps a doc info file.
+     *
+     *  @return The file, or null if <code>file</code> is not in this format
+     *          (e.g. the text format of earlier versions).
+     */
+    public static DocInfoFile open( File file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            long size = channel.size();
+            if ( size < HEADER_SIZE ) return null;
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            if ( buf.getInt( 0 ) != MAGIC || buf.getInt( 4 ) != VERSION ) return null;
+            return new DocInfoFile( buf );
+        }
+    }
+
+
+    /** Number of documents, i.e. one more than the largest docID. */
+    public int size() {
+        return n;
+    }
+
+
+    /** The length of document <code>docID</code>. */
+    public int length( int docID ) {
+        return buf.getInt( HEADER_SIZE + 4*docID );
+    }
+
+
+    /** The name of document <code>docID</code>, or null if it has none. */
+    public String name( int docID ) {
+        int start = buf.getInt( offsetsPos + 4*docID );
+        int end = buf.getInt( offsetsPos + 4*docID + 4 );
+        if ( start == end ) return null;
+        byte[] name = new byte[end - start];
+        ByteBuffer view = buf.duplicate();
+        view.position( namesPos + start );
+        view.get( name );
+        return new String( name, StandardCharsets.UTF_8 );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes the names and lengths of the documents in <code>docs</code>.
+     */
+    public static void write( File file, DocMetadata docs ) throws IOException {
+        int n = docs.size();
+        byte[][] encoded = new byte[n][];
+        for ( int i=0; i<n; i++ ) {
+            String name = docs.name( i );
+            if ( name != null ) encoded[i] = name.getBytes( StandardCharsets.UTF_8 );
+        }
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( n );
+            for ( int i=0; i<n; i++ ) {
+                out.writeInt( docs.length( i ));
+            }
+            int offset = 0;
+            for ( int i=0; i<n; i++ ) {
+                out.writeInt( offset );
+                if ( encoded[i] != null ) offset += encoded[i].length;
+            }
+            out.writeInt( offset );
+            for ( int i=0; i<n; i++ ) {
+                if ( encoded[i] != null ) out.write( encoded[i] );
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ *  The names, lengths and ranks of the documents of one index, in arrays
+ *  indexed by docID.
+ *
+ *  Lengths are kept in an <code>int[]</code> and names in UTF-8 in one
+ *  byte array with an offsets table, instead of boxed hash maps. Ranks are
+ *  a <code>float[]</code> that is replaced as a whole, so that a search
+ *  can read a rank with a single array access while new ranks are published.
+ *
+ *  The documents can also be backed by a {@link DocInfoFile}, in which case
+ *  they are read from the mapped file until a document is added.
+ *
+ *  Documents are added by one thread (the indexer), in increasing docID order.
+ */
+public class DocMetadata {
+
+    /** Number of documents added. */
+    private int n = 0;
+
+    /** Length of each document. */
+    private int[] lengths = new int[1024];
+
+    /** Start of each name in <code>names</code>; entry n is the end of the last name. */
+    private int[] nameOffsets = new int[1025];
+
+    /** The names in UTF-8, one after the other. */
+    private byte[] names = new byte[1 << 16];
+
+    /** The rank of each document, or an empty array if there are no ranks. */
+    private volatile float[] ranks = new float[0];
+
+    /** The documents on disk, or null. */
+    private DocInfoFile backing = null;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Adds a document. Documents between the last one added and
+     *  <code>docID</code> get no name and length 0.
+     */
+    public void add( int docID, String name, int length ) {
+        if ( docID < n ) {
+            throw new IllegalArgumentException( "Document " + docID + " has already been added" );
+        }
+        backing = null;
+        while ( n < docID ) {
+            append( null, 0 );
+        }
+        append( name, length );
+    }
+
+
+    private void append( String name, int length ) {
+        if ( n + 1 >= lengths.length ) {
+            lengths = Arrays.copyOf( lengths, 2 * lengths.length );
+            nameOffsets = Arrays.copyOf( nameOffsets, lengths.length + 1 );
+        }
+        byte[] bytes = name == null ? new byte[0] : name.getBytes( StandardCharsets.UTF_8 );
+        int start = nameOffsets[n];
+        if ( start + bytes.length > names.length ) {
+            names = Arrays.copyOf( names, Math.max( 2 * names.length, start + bytes.length ));
+        }
+        System.arraycopy( bytes, 0, names, start, bytes.length );
+        lengths[n] = length;
+        nameOffsets[n+1] = start + bytes.length;
+        n++;
+    }
+
+
+    /** Removes all documents and ranks. */
+    public void clear() {
+        n = 0;
+        backing = null;
+        ranks = new float[0];
+    }
+
+
+    /** Reads the documents from <code>file</code> until a document is added. */
+    public void setBacking( DocInfoFile file ) {
+        backing = file;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Number of documents, i.e. one more than the largest docID. */
+    public int size() {
+        if ( n == 0 && backing != null ) return backing.size();
+        return n;
+    }
+
+
+    /** The name of document <code>docID</code>, or null if there is none. */
+    public String name( int docID ) {
+        if ( docID < 0 || docID >= size() ) return null;
+        if ( n == 0 ) return backing.name( docID );
+        int start = nameOffsets[docID];
+        int end = nameOffsets[docID+1];
+        if ( start == end ) return null;
+        return new String( names, start, end - start, StandardCharsets.UTF_8 );
+    }
+
+
+    /** The length of document <code>docID</code>, in tokens. */
+    public int length( int docID ) {
+        if ( docID < 0 || docID >= size() ) return 0;
+        if ( n == 0 ) return backing.length( docID );
+        return lengths[docID];
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  The ranks indexed by docID. The array is never modified once
+     *  published, so it can be read without locking; it may be shorter
+     *  than the number of documents.
+     */
+    public float[] ranks() {
+        return ranks;
+    }
+
+
+    /** The rank of document <code>docID</code>, or 0 if it has none. */
+    public float rank( int docID ) {
+        float[] r = ranks;
+        return docID >= 0 && docID < r.length ? r[docID] : 0;
+    }
+
+
+    /** Publishes a new rank vector. */
+    public void setRanks( float[] ranks ) {
+        this.ranks = ranks;
+    }
+
+
+    /**
+     *  Gives every document the rank of its file name (the name without
+     *  directories) in <code>byFileName</code>, and publishes the result.
+     *
+     *  @return The number of documents that got a rank.
+     */
+    public int resolveRanks( Map<String,Float> byFileName ) {
+        int size = size();
+        float[] r = new float[size];
+        int found = 0;
+        for ( int docID=0; docID<size; docID++ ) {
+            String name = name( docID );
+            if ( name == null ) continue;
+            Float rank = byFileName.get( fileName( name ));
+            if ( rank != null ) {
+                r[docID] = rank;
+                found++;
+            }
+        }
+        ranks = r;
+        return found;
+    }
+
+
+    /** The last component of a path, with either kind of separator. */
+    static String fileName( String path ) {
+        int i = Math.max( path.lastIndexOf( '/' ), path.lastIndexOf( '\\' ));
+        return path.substring( i + 1 );
+    }
+}
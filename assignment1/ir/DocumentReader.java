@@ -0,0 +1,250 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+
+/**
+ *  Reads a UTF-8 encoded document through NIO.
+ *
+ *  Files of at least {@link #MMAP_THRESHOLD} bytes are memory-mapped. Smaller
+ *  files are read through a {@link FileChannel} into a pooled direct buffer,
+ *  which holds most wiki pages in a single read. In both cases the bytes are
+ *  decoded straight into the array passed to {@link #read(char[],int,int)},
+ *  i.e. into the tokenizer's own buffer, without an intermediate copy.
+ */
+public class DocumentReader extends Reader {
+
+    /** Files at least this large are memory-mapped. */
+    public static final long MMAP_THRESHOLD = 1L << 20;
+
+    /** Size of the pooled direct buffers used for smaller files. */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximal number of direct buffers kept in the pool. */
+    private static final int MAX_POOLED_BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** Direct buffers given back by closed readers. */
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+    /** The channel read from, or null if all bytes are already in <code>in</code>. */
+    private FileChannel channel;
+
+    /** The bytes not yet decoded. */
+    private ByteBuffer in;
+
+    /** <code>true</code> if <code>in</code> is a pooled buffer to give back. */
+    private boolean pooled;
+
+    /** <code>true</code> when no more bytes can be added to <code>in</code>. */
+    private boolean endOfInput;
+
+    /** <code>true</code> when the decoder has been flushed. */
+    private boolean flushed = false;
+
+    /** The UTF-8 decoder, replacing malformed input like InputStreamReader does. */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+    /** View of the last array read into, reused while it stays the same. */
+    private CharBuffer out = null;
+
+    /**
+     *  A surrogate pair decoded when only one char was asked for, in
+     *  <code>carry[carryPos .. carryLen-1]</code>, given out by the next reads.
+     */
+    private final char[] carry = new char[2];
+    private int carryPos = 0, carryLen = 0;
+
+    /** Number of bytes read from the underlying file or buffer. */
+    private long bytesRead = 0;
+
+    /** Time spent reading and decoding, in nanoseconds. */
+    private long readNanos = 0;
+
+
+    /* ----------------------------------------------- */
+
+
+    private DocumentReader( FileChannel channel, ByteBuffer in, boolean pooled, boolean endOfInput ) {
+        this.channel = channel;
+        this.in = in;
+        this.pooled = pooled;
+        this.endOfInput = endOfInput;
+    }
+
+
+    /**
+     *  Opens a file for reading, memory-mapping it if it is large.
+     */
+    public static DocumentReader open( File f ) throws IOException {
+        FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ );
+        try {
+            long size = channel.size();
+            if ( size >= MMAP_THRESHOLD ) {
+                ByteBuffer mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+                channel.close();
+                DocumentReader reader = new DocumentReader( null, mapped, false, true );
+                reader.bytesRead = size;
+                return reader;
+            }
+            ByteBuffer buf = acquireBuffer();
+            buf.flip();
+            return new DocumentReader( channel, buf, true, false );
+        } catch ( IOException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     *  Reads from bytes already in memory, for instance a slice of a mapped
+     *  file. The buffer's position is advanced as it is decoded.
+     */
+    public static DocumentReader wrap( ByteBuffer bytes ) {
+        DocumentReader reader = new DocumentReader( null, bytes, false, true );
+        reader.bytesRead = bytes.remaining();
+        return reader;
+    }
+
+
+    /** Number of bytes read so far. */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+
+    /** Time spent in {@link #read(char[],int,int)} so far, in nanoseconds. */
+    public long readNanos() {
+        return readNanos;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Decodes up to <code>len</code> characters into <code>cbuf</code>.
+     *  At least one is decoded unless <code>len</code> is 0: if only one is
+     *  asked for and the next character is a surrogate pair, the pair is
+     *  decoded into a carry-over buffer and its chars are given out one by one.
+     *
+     *  @return The number of characters decoded, or -1 at the end of the document.
+     */
+    @Override
+    public int read( char[] cbuf, int off, int len ) throws IOException {
+        if ( in == null ) throw new IOException( "Reader is closed" );
+        if ( len == 0 ) return 0;
+        if ( len == 1 && carryPos == carryLen && !flushed ) {
+            int m = read( carry, 0, carry.length );
+            if ( m < 0 ) return -1;
+            carryPos = 0;
+            carryLen = m;
+        }
+        if ( carryPos < carryLen ) {
+            int m = Math.min( len, carryLen - carryPos );
+            System.arraycopy( carry, carryPos, cbuf, off, m );
+            carryPos += m;
+            return m;
+        }
+        if ( flushed ) return -1;
+        long startTime = System.nanoTime();
+        if ( out == null || out.array() != cbuf ) {
+            out = CharBuffer.wrap( cbuf );
+        }
+        out.limit( off + len ).position( off );
+        while ( out.position() == off ) {
+            CoderResult cr = decoder.decode( in, out, endOfInput );
+            if ( cr.isOverflow() ) break;
+            if ( cr.isError() ) cr.throwException();
+            // Underflow: all complete characters in 'in' are decoded.
+            if ( endOfInput ) {
+                if ( !flushed ) {
+                    if ( decoder.flush( out ).isOverflow() ) break;
+                    flushed = true;
+                }
+                break;
+            }
+            fill();
+        }
+        int n = out.position() - off;
+        readNanos += System.nanoTime() - startTime;
+        return n == 0 && flushed ? -1 : n;
+    }
+
+
+    /** Reads more bytes from the channel, keeping undecoded ones. */
+    private void fill() throws IOException {
+        in.compact();
+        int n;
+        do {
+            n = channel.read( in );
+        } while ( n == 0 && in.hasRemaining() );
+        if ( n < 0 ) {
+            endOfInput = true;
+        } else {
+            bytesRead += n;
+        }
+        in.flip();
+    }
+
+
+    /**
+     *  Gives the buffer back to the pool and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( in == null ) return;
+        if ( pooled ) {
+            releaseBuffer( in );
+        }
+        in = null;
+        out = null;
+        if ( channel != null ) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    /** Takes a direct buffer from the pool, or allocates a new one. */
+    private static ByteBuffer acquireBuffer() {
+        synchronized ( pool ) {
+            ByteBuffer b = pool.poll();
+            if ( b != null ) {
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocateDirect( BUFFER_SIZE );
+    }
+
+
+    /** Puts a direct buffer back in the pool, unless the pool is full. */
+    private static void releaseBuffer( ByteBuffer b ) {
+        synchronized ( pool ) {
+            if ( pool.size() < MAX_POOLED_BUFFERS ) {
+                pool.push( b );
+            }
+        }
+    }
+}
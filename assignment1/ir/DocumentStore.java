@@ -0,0 +1,340 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ *  Where the text of every document is, so that it can be shown with one
+ *  positioned read: the byte range of the document in its source file.
+ *
+ *  A document indexed from a file of its own is the whole of the file named
+ *  by {@link DocMetadata#name}, so only its length is kept. A document in a
+ *  {@link CorpusContainer} is a range of the container file.
+ *
+ *  If asked to, the store also keeps where each token of a document is in
+ *  its text (start and length in characters), for {@link SnippetGenerator}.
+ *  The tokens of a document are variable-byte coded, as the gap from the
+ *  start of the previous token followed by the length, in one byte array
+ *  with an offsets table.
+ *
+ *  Layout of the file:
+ *  <pre>
+ *    header:    int MAGIC, int VERSION, int n, int number of sources
+ *    sources:   the path of each container, as written by writeUTF
+ *    documents: int source (-1 for a file of its own), long offset,
+ *               int length, for every document
+ *    tokens:    int number of documents with tokens (0 if they are not
+ *               kept), int start of the tokens of each of them in the
+ *               token bytes, followed by their total size, then the bytes
+ *  </pre>
+ */
+public class DocumentStore {
+
+    /** Identifies a document store file ("IRDS"). */
+    static final int MAGIC = 0x49524453;
+
+    /** Version of the layout. */
+    static final int VERSION = 2;
+
+    /** Name of the document store file in the index directory. */
+    public static final String DOCSTORE_FNAME = "docstore";
+
+    /** The names of the documents. */
+    private final DocMetadata metadata;
+
+    /** The container files. */
+    private final ArrayList<String> sources = new ArrayList<String>();
+
+    /** Source numbers, by container path. */
+    private final HashMap<String,Integer> sourceIDs = new HashMap<String,Integer>();
+
+    /** Source of each document, -1 for a file of its own. */
+    private int[] source = new int[1024];
+
+    /** Offset of each document in its source. */
+    private long[] offset = new long[1024];
+
+    /** Length in bytes of each document. */
+    private int[] length = new int[1024];
+
+    /** Number of documents. */
+    private int n = 0;
+
+    /** Should the token positions be kept? */
+    private final boolean keepTokens;
+
+    /** The encoded tokens of the documents, one after the other. */
+    private byte[] tokens = new byte[0];
+
+    /** Start of the tokens of each document in <code>tokens</code>; entry numTokenDocs is the end. */
+    private int[] tokenPos = new int[1];
+
+    /** Number of documents whose tokens are stored. */
+    private int numTokenDocs = 0;
+
+
+    public DocumentStore( DocMetadata metadata ) {
+        this( metadata, false );
+    }
+
+
+    /**
+     *  Creates a store, which also keeps the positions of the tokens of the
+     *  documents if <code>keepTokens</code> is true.
+     */
+    public DocumentStore( DocMetadata metadata, boolean keepTokens ) {
+        this.metadata = metadata;
+        this.keepTokens = keepTokens;
+        if ( keepTokens ) {
+            tokens = new byte[1 << 16];
+            tokenPos = new int[1025];
+        }
+    }
+
+
+    /** Does the store keep the positions of the tokens? */
+    public boolean keepsTokens() {
+        return keepTokens;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Adds a document that is the whole of the file named by its metadata. */
+    public synchronized void addFile( int docID, long bytes ) {
+        add( docID, -1, 0, (int)Math.min( bytes, Integer.MAX_VALUE ));
+    }
+
+
+    /** Adds a document that is <code>bytes</code> bytes at <code>pos</code> in <code>container</code>. */
+    public synchronized void addRange( int docID, File container, long pos, int bytes ) {
+        String path = container.getPath();
+        Integer s = sourceIDs.get( path );
+        if ( s == null ) {
+            s = sources.size();
+            sources.add( path );
+            sourceIDs.put( path, s );
+        }
+        add( docID, s, pos, bytes );
+    }
+
+
+    private void add( int docID, int s, long pos, int bytes ) {
+        if ( docID >= source.length ) {
+            int size = Math.max( 2 * source.length, docID + 1 );
+            source = Arrays.copyOf( source, size );
+            offset = Arrays.copyOf( offset, size );
+            length = Arrays.copyOf( length, size );
+        }
+        // documents in between (none when docIDs are consecutive) have no text
+        for ( int i=n; i<docID; i++ ) {
+            source[i] = -1;
+            length[i] = 0;
+        }
+        source[docID] = s;
+        offset[docID] = pos;
+        length[docID] = bytes;
+        n = Math.max( n, docID + 1 );
+    }
+
+
+    /**
+     *  Stores the positions of the tokens of <code>docID</code>:
+     *  <code>spans</code> holds the start and the length in characters of
+     *  each of its <code>numTokens</code> tokens, in order. Documents are
+     *  given in increasing docID order; those skipped have no tokens.
+     */
+    public synchronized void setTokens( int docID, int[] spans, int numTokens ) {
+        if ( !keepTokens ) return;
+        if ( docID < numTokenDocs ) {
+            throw new IllegalArgumentException( "Tokens of document " + docID + " are already stored" );
+        }
+        if ( docID + 2 > tokenPos.length ) {
+            tokenPos = Arrays.copyOf( tokenPos, Math.max( 2 * tokenPos.length, docID + 2 ));
+        }
+        while ( numTokenDocs < docID ) {
+            tokenPos[numTokenDocs+1] = tokenPos[numTokenDocs];
+            numTokenDocs++;
+        }
+        int pos = tokenPos[numTokenDocs];
+        if ( pos + 10 * numTokens > tokens.length ) {
+            tokens = Arrays.copyOf( tokens, Math.max( 2 * tokens.length, pos + 10 * numTokens ));
+        }
+        int prev = 0;
+        for ( int i=0; i<numTokens; i++ ) {
+            pos = VByte.write( tokens, pos, spans[2*i] - prev );
+            pos = VByte.write( tokens, pos, spans[2*i+1] );
+            prev = spans[2*i];
+        }
+        tokenPos[numTokenDocs+1] = pos;
+        numTokenDocs++;
+    }
+
+
+    /**
+     *  Returns the start and length in characters of every token of
+     *  <code>docID</code>, one pair after the other, or null if they are
+     *  not stored.
+     */
+    public synchronized int[] tokens( int docID ) {
+        if ( docID < 0 || docID >= numTokenDocs ) return null;
+        int pos = tokenPos[docID];
+        int end = tokenPos[docID+1];
+        ByteBuffer buf = ByteBuffer.wrap( tokens, pos, end - pos );
+        // a token takes at least two bytes
+        int[] spans = new int[end - pos];
+        int k = 0;
+        int start = 0;
+        while ( buf.hasRemaining() ) {
+            start += VByte.read( buf );
+            spans[k++] = start;
+            spans[k++] = VByte.read( buf );
+        }
+        return Arrays.copyOf( spans, k );
+    }
+
+
+    /** Removes all documents. */
+    public synchronized void clear() {
+        numTokenDocs = 0;
+        n = 0;
+        sources.clear();
+        sourceIDs.clear();
+    }
+
+
+    /** Number of documents, i.e. one more than the largest docID. */
+    public synchronized int size() {
+        return n;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Returns the text of document <code>docID</code>, or null if it is
+     *  not in the store or its source cannot be read.
+     */
+    public String text( int docID ) {
+        File file;
+        long pos;
+        int bytes;
+        synchronized ( this ) {
+            if ( docID < 0 || docID >= n ) return null;
+            if ( source[docID] < 0 ) {
+                String name = metadata.name( docID );
+                if ( name == null ) return null;
+                file = new File( name );
+            } else {
+                file = new File( sources.get( source[docID] ));
+            }
+            pos = offset[docID];
+            bytes = length[docID];
+        }
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            // the file may have shrunk since it was indexed
+            bytes = (int)Math.max( 0, Math.min( bytes, channel.size() - pos ));
+            ByteBuffer buf = ByteBuffer.allocate( bytes );
+            while ( buf.hasRemaining() ) {
+                if ( channel.read( buf, pos + buf.position() ) < 0 ) break;
+            }
+            return new String( buf.array(), 0, buf.position(), StandardCharsets.UTF_8 );
+        } catch ( IOException e ) {
+            return null;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Writes the store to <code>file</code>. */
+    public synchronized void save( File file ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( n );
+            out.writeInt( sources.size() );
+            for ( String s : sources ) {
+                out.writeUTF( s );
+            }
+            for ( int i=0; i<n; i++ ) {
+                out.writeInt( source[i] );
+                out.writeLong( offset[i] );
+                out.writeInt( length[i] );
+            }
+            out.writeInt( numTokenDocs );
+            if ( numTokenDocs > 0 ) {
+                for ( int i=0; i<=numTokenDocs; i++ ) {
+                    out.writeInt( tokenPos[i] );
+                }
+                out.write( tokens, 0, tokenPos[numTokenDocs] );
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
+    /**
+     *  Reads a store written by {@link #save}, replacing the documents.
+     *
+     *  @return false if there is no such file or it is not a document store.
+     */
+    public synchronized boolean load( File file ) throws IOException {
+        if ( !file.exists() ) return false;
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) return false;
+            int size = in.readInt();
+            int numSources = in.readInt();
+            clear();
+            for ( int s=0; s<numSources; s++ ) {
+                String path = in.readUTF();
+                sourceIDs.put( path, s );
+                sources.add( path );
+            }
+            source = new int[Math.max( 1024, size )];
+            offset = new long[source.length];
+            length = new int[source.length];
+            for ( int i=0; i<size; i++ ) {
+                source[i] = in.readInt();
+                offset[i] = in.readLong();
+                length[i] = in.readInt();
+            }
+            n = size;
+            int docs = in.readInt();
+            if ( docs > 0 ) {
+                int[] pos = new int[docs + 1];
+                for ( int i=0; i<=docs; i++ ) {
+                    pos[i] = in.readInt();
+                }
+                byte[] bytes = new byte[pos[docs]];
+                in.readFully( bytes );
+                if ( keepTokens ) {
+                    tokenPos = Arrays.copyOf( pos, Math.max( 1025, docs + 1 ));
+                    tokens = bytes;
+                    numTokenDocs = docs;
+                }
+            }
+        }
+        return true;
+    }
+}
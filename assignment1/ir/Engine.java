@@ -9,6 +9,7 @@ package ir;
 
 import java.util.ArrayList;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *  This is the main class for the search engine.
@@ -19,6 +20,8 @@ public class Engine {
     Index index = new HashedIndex();
     // Assignment 1.7: Comment the line above and uncomment the next line
     //Index index = new PersistentHashedIndex();
+    // For large corpora, the segments are written and merged incrementally
+    //Index index = new SegmentedIndex();
 
     /** The indexer creating the search index. */
     Indexer indexer;
@@ -26,15 +29,11 @@ public class Engine {
     /** The searcher used to search the index. */
     Searcher searcher;
 
-    /** K-gram index */
+    /** K-gram index, or null if it is not used (option -k). */
     KGramIndex kgIndex = null;
-    // Assignment 3: Comment the line above and uncomment the next line
-    // KgramIndex kgIndex = new KGramIndex(2);
 
-    /** Spell checker */
+    /** Spell checker, or null if there is no k-gram index. */
     SpellChecker speller;
-    // Assignment 3: Comment the line above and uncomment the next line
-    // SpellChecker = new SpellChecker( index, kgIndex );
     
     /** The engine GUI. */
     SearchGUI gui;
@@ -42,6 +41,12 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
+    /** Corpus containers (see CorpusContainer) that should be indexed. */
+    ArrayList<String> containerNames = new ArrayList<String>();
+
+    /** Number of threads tokenizing corpus containers. */
+    int indexing_threads = Runtime.getRuntime().availableProcessors();
+
     /** Lock to prevent simultaneous access to the index. */
     Object indexLock = new Object();
 
@@ -52,11 +57,47 @@ public class Engine {
     String pic_file = "";
 
     /** The file containing the pageranks. */
-    String rank_file = "";
+    String rank_file = "titlesScores.txt";
+
+    /** The link graph and the titles of its pages, for HITS ranking. */
+    String links_file = null;
+    String titles_file = null;
+
+    /**
+     *  The link graph and titles for PageRank estimated by random walks,
+     *  and a file of link changes it follows (options -mc, -mct, -mcu).
+     */
+    String mc_links_file = null;
+    String mc_titles_file = null;
+    String mc_updates_file = null;
+
+    /** Time a search may take, in milliseconds, before it returns what it has found (0 for no limit). */
+    long search_budget = 2000;
+
+    /** File the indexing reports are appended to, as JSON lines, or null (option -il). */
+    String indexing_log = null;
 
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Where the text of every document is, for the document view. */
+    DocumentStore documents;
+
+    /** Makes the extracts shown under the results, or null (option -sn). */
+    SnippetGenerator snippets = null;
+
+    /** Should the positions of the tokens be kept, for the extracts? */
+    boolean keep_tokens = false;
+
+    /** The terms of every document, for relevance feedback, or null (option -fi). */
+    ForwardIndex forwardIndex = null;
+
+    /** Should the spell checker find its candidates in a deletion dictionary? */
+    boolean spell_deletions = false;
+
+    /** Should the new documents be added to a segmented index already on disk? */
+    boolean is_appending = false;
+
 
     /* ----------------------------------------------- */
 
@@ -67,11 +108,22 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
+        Metrics.register( index );
         indexer = new Indexer( index, kgIndex, patterns_file );
+        indexer.forwardIndex = forwardIndex;
+        try {
+            indexer.stats.addListener( new IndexingLog( indexing_log == null ? null : new File( indexing_log )));
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not open the indexing log: " + e.getMessage() );
+        }
+        documents = new DocumentStore( index.metadata(), keep_tokens );
+        indexer.documents = documents;
         searcher = new Searcher( index, kgIndex );
+        if ( keep_tokens ) {
+            snippets = new SnippetGenerator( searcher, documents );
+        }
         gui = new SearchGUI( this );
         gui.init();
-        indexer.buildRankMap("titlesScores.txt");
         /* 
          *   Calls the indexer to index the chosen directory structure.
          *   Access to the index is synchronized since we don't want to 
@@ -82,17 +134,235 @@ public class Engine {
             synchronized ( indexLock ) {
                 gui.displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
+                if ( index instanceof SegmentedIndex ) {
+                    SegmentedIndex segmented = (SegmentedIndex)index;
+                    if ( !is_appending ) {
+                        segmented.clear();
+                    } else {
+                        loadDocumentStore();
+                        loadForwardIndex();
+                    }
+                    indexer.setNextDocID( segmented.nextDocID() );
+                }
+                for ( int i=0; i<dirNames.size(); i++ ) {
+                    indexer.expectFiles( new File( dirNames.get( i )));
+                }
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
                     indexer.processFiles( dokDir, is_indexing );
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
+                boolean complete = true;
+                for ( int i=0; i<containerNames.size() && complete; i++ ) {
+                    complete = indexer.processContainer( new File( containerNames.get( i )), indexing_threads );
+                }
+                if ( !complete ) {
+                    discardIndex();
+                    gui.displayInfoText( "Indexing failed, so the index was not written." );
+                } else {
+                    long elapsedTime = System.currentTimeMillis() - startTime;
+                    gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                    long writeStart = System.nanoTime();
+                    index.cleanup();
+                    saveDocumentStore();
+                    saveForwardIndex();
+                    indexer.stats.addWrite( System.nanoTime() - writeStart );
+                    if ( kgIndex != null ) {
+                        indexer.buildKGramIndex( indexing_threads );
+                        writeStart = System.nanoTime();
+                        saveKGramIndex();
+                        indexer.stats.addWrite( System.nanoTime() - writeStart );
+                        setUpSpeller();
+                    }
+                    indexer.stats.finish();
+                    indexer.buildRankMap( rank_file );
+                }
             }
         } else {
+            loadDocumentStore();
+            loadForwardIndex();
+            if ( kgIndex != null && loadKGramIndex() ) {
+                setUpSpeller();
+            }
+            indexer.buildRankMap( rank_file );
             gui.displayInfoText( "Index is loaded from disk" );
         }
+        if ( links_file != null ) {
+            searcher.hitsRanker = new HITSRanker( links_file, titles_file, index );
+        }
+        if ( mc_links_file != null ) {
+            startLiveRanks();
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Estimates the PageRank of the link graph by random walks, in the
+     *  background, and replaces the ranks of the documents with it. If
+     *  there is a file of link changes, it is followed from then on, and
+     *  the ranks are published again after every batch of changes.
+     */
+    private void startLiveRanks() {
+        Thread t = new Thread( () -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                MonteCarloPageRank mc = new MonteCarloPageRank( mc_links_file, mc_titles_file, MonteCarloPageRank.WALKS_PER_NODE,
+                                                                indexing_threads, System.nanoTime() );
+                mc.attach( index.metadata() );
+                long elapsedTime = System.currentTimeMillis() - startTime;
+                System.err.println( String.format( "PageRank estimated by %d walks over %d pages in %.1f seconds.",
+                                                   mc.numWalks, mc.n, elapsedTime/1000.0 ));
+                if ( mc_updates_file != null ) {
+                    mc.follow( new File( mc_updates_file ), 1000 );
+                }
+            } catch ( IOException e ) {
+                System.err.println( "Warning: could not read the link graph: " + e.getMessage() );
+            } catch ( InterruptedException e ) {
+                // shutting down
+            }
+        }, "live-pagerank" );
+        t.setDaemon( true );
+        t.start();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Gives up an indexing that failed part way: nothing is written, and
+     *  the segments a segmented index has already written are removed, so
+     *  that a truncated index is not taken for a complete one. Segments
+     *  added to an existing index (option -a) cannot be told apart from
+     *  the old ones once merged, so they are left, with a warning.
+     */
+    private void discardIndex() {
+        if ( !( index instanceof SegmentedIndex )) return;
+        if ( is_appending ) {
+            System.err.println( "Warning: the segments written before the failure are still in the index; " +
+                                "index the corpus again without -a to remove them" );
+        } else {
+            ((SegmentedIndex)index).clear();
+        }
+    }
+
+
+    /** The document store file of an index on disk. */
+    private File documentStoreFile() {
+        return new File( PersistentHashedIndex.INDEXDIR, DocumentStore.DOCSTORE_FNAME );
+    }
+
+
+    /** Writes the document store next to a persistent index. */
+    private void saveDocumentStore() {
+        if ( index instanceof HashedIndex ) return;
+        try {
+            documents.save( documentStoreFile() );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not write the document store: " + e.getMessage() );
+        }
+    }
+
+
+    private void loadDocumentStore() {
+        try {
+            if ( !documents.load( documentStoreFile() )) {
+                System.err.println( "Warning: no document store on disk" );
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read the document store: " + e.getMessage() );
+        }
+    }
+
+
+    /** The forward index file of an index on disk. */
+    private File forwardIndexFile() {
+        return new File( PersistentHashedIndex.INDEXDIR, ForwardIndex.FORWARD_FNAME );
+    }
+
+
+    /** Writes the forward index next to a persistent index, if there is one (option -fi). */
+    private void saveForwardIndex() {
+        if ( forwardIndex == null || index instanceof HashedIndex ) return;
+        try {
+            forwardIndex.save( forwardIndexFile() );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not write the forward index: " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Reads the forward index of an index on disk, if one was asked for.
+     *  Without it there is no relevance feedback, since the forward index
+     *  would not cover the documents already on disk.
+     */
+    private void loadForwardIndex() {
+        if ( forwardIndex == null ) return;
+        try {
+            if ( forwardIndex.load( forwardIndexFile() )) return;
+            System.err.println( "Warning: no forward index on disk, so there is no relevance feedback; " +
+                                "index the corpus again with -fi to turn it on" );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read the forward index: " + e.getMessage() );
+        }
+        forwardIndex = null;
+        indexer.forwardIndex = null;
+    }
+
+
+    /** The k-gram index file of an index on disk. */
+    private File kgramsFile() {
+        return new File( PersistentHashedIndex.INDEXDIR, KGramIndex.KGRAMS_FNAME );
+    }
+
+
+    /**
+     *  Writes the k-gram index next to a persistent index, so that it can be
+     *  mapped when the engine is started with -ni.
+     */
+    private void saveKGramIndex() {
+        if ( index instanceof HashedIndex ) return;
+        try {
+            kgIndex.save( kgramsFile() );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not write the k-gram index: " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Maps the k-gram index of an index on disk, or builds it from the
+     *  vocabulary of the index if there is none for this K. An index that
+     *  does not know its terms gets none, rather than an empty one that
+     *  would be saved and mapped from then on.
+     *
+     *  @return false if there is no k-gram index.
+     */
+    private boolean loadKGramIndex() {
+        try {
+            if ( kgIndex.load( kgramsFile() )) return true;
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read the k-gram index: " + e.getMessage() );
+        }
+        if ( index.vocabulary().isEmpty() ) {
+            System.err.println( "Warning: the terms of the index are not on disk, so spelling correction and " +
+                                "wildcards are off; index the corpus again to turn them on" );
+            return false;
+        }
+        indexer.buildKGramIndex( indexing_threads );
+        saveKGramIndex();
+        return true;
+    }
+
+
+    /** Gives the spell checker a deletion dictionary if it was asked for (option -sd). */
+    private void setUpSpeller() {
+        if ( !spell_deletions ) return;
+        File file = index instanceof HashedIndex ? null : new File( PersistentHashedIndex.INDEXDIR, DeletionDictionary.DELETIONS_FNAME );
+        speller.useDeletionDictionary( file );
     }
 
 
@@ -109,6 +379,16 @@ public class Engine {
                 if ( i < args.length ) {
                     dirNames.add( args[i++] );
                 }
+            } else if ( "-c".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    containerNames.add( args[i++] );
+                }
+            } else if ( "-t".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
             } else if ( "-p".equals( args[i] )) {
                 i++;
                 if ( i < args.length ) {
@@ -124,9 +404,62 @@ public class Engine {
                 if ( i < args.length ) {
                     rank_file = args[i++];
                 }
+            } else if ( "-hl".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    links_file = args[i++];
+                }
+            } else if ( "-ht".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    titles_file = args[i++];
+                }
+            } else if ( "-mc".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    mc_links_file = args[i++];
+                }
+            } else if ( "-mct".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    mc_titles_file = args[i++];
+                }
+            } else if ( "-mcu".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    mc_updates_file = args[i++];
+                }
+            } else if ( "-il".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_log = args[i++];
+                }
+            } else if ( "-qb".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    search_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-k".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    kgIndex = new KGramIndex( Integer.parseInt( args[i++] ));
+                    speller = new SpellChecker( index, kgIndex );
+                }
+            } else if ( "-fi".equals( args[i] )) {
+                i++;
+                forwardIndex = new ForwardIndex();
+            } else if ( "-sn".equals( args[i] )) {
+                i++;
+                keep_tokens = true;
+            } else if ( "-sd".equals( args[i] )) {
+                i++;
+                spell_deletions = true;
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-a".equals( args[i] )) {
+                i++;
+                is_appending = true;
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
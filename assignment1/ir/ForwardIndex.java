@@ -0,0 +1,262 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ *  The terms of every document with their frequencies, indexed by docID:
+ *  the other way round from the inverted index. Relevance feedback uses it
+ *  to read the term vector of a document without going through the whole
+ *  dictionary.
+ *
+ *  The vector of a document is stored as its term IDs in increasing order,
+ *  each as a variable-byte gap followed by the term frequency, in one byte
+ *  array with an offsets table. The term table also keeps the number of
+ *  documents of each term, so that feedback terms can be weighted by idf
+ *  without reading their postings.
+ *
+ *  Documents are built by one thread (the indexer): the tokens of a
+ *  document are added with {@link #add}, then {@link #endDocument} stores
+ *  its vector.
+ *
+ *  Layout of the file written by {@link #save}:
+ *  <pre>
+ *    header:  int MAGIC, int VERSION, int number of terms, int n
+ *    terms:   the term as written by writeUTF and int df, for every term ID
+ *    offsets: int start of the vector of each document, followed by the end
+ *    vectors: the bytes of the vectors
+ *  </pre>
+ */
+public class ForwardIndex {
+
+    /** Identifies a forward index file ("IRFI"). */
+    static final int MAGIC = 0x49524649;
+
+    /** Version of the layout. */
+    static final int VERSION = 1;
+
+    /** Name of the forward index file in the index directory. */
+    public static final String FORWARD_FNAME = "forward";
+
+    /** Term IDs, by term. */
+    private final HashMap<String,Integer> termIDs = new HashMap<String,Integer>();
+
+    /** Terms, by term ID. */
+    private String[] terms = new String[1024];
+
+    /** Number of terms. */
+    private int numTerms = 0;
+
+    /** Number of documents of each term, by term ID. */
+    private int[] df = new int[1024];
+
+    /** The encoded vectors, one after the other. */
+    private byte[] data = new byte[1 << 16];
+
+    /** Start of the vector of each document in <code>data</code>; entry n is the end of the last one. */
+    private int[] offsets = new int[1025];
+
+    /** Number of documents. */
+    private int n = 0;
+
+    /** Frequency in the current document of each term. */
+    private int[] tf = new int[1024];
+
+    /** The terms of the current document. */
+    private int[] touched = new int[256];
+
+    /** Number of terms in the current document. */
+    private int numTouched = 0;
+
+
+    /**
+     *  The terms of a document and their frequencies.
+     */
+    public static class Vector {
+        /** The term IDs, in increasing order. */
+        public final int[] termIDs;
+        /** The frequency of each term. */
+        public final int[] tfs;
+
+        Vector( int[] termIDs, int[] tfs ) {
+            this.termIDs = termIDs;
+            this.tfs = tfs;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Adds an occurrence of <code>term</code> to the current document. */
+    public void add( String term ) {
+        Integer id = termIDs.get( term );
+        if ( id == null ) {
+            id = numTerms++;
+            termIDs.put( term, id );
+            if ( id == terms.length ) terms = Arrays.copyOf( terms, 2 * id );
+            terms[id] = term;
+            if ( id >= tf.length ) tf = Arrays.copyOf( tf, 2 * tf.length );
+            if ( id >= df.length ) df = Arrays.copyOf( df, 2 * df.length );
+        }
+        if ( tf[id]++ == 0 ) {
+            if ( numTouched == touched.length ) touched = Arrays.copyOf( touched, 2 * numTouched );
+            touched[numTouched++] = id;
+        }
+    }
+
+
+    /**
+     *  Stores the terms added since the last call as the vector of
+     *  <code>docID</code>. Documents between the last one and
+     *  <code>docID</code> get empty vectors.
+     */
+    public void endDocument( int docID ) {
+        if ( docID < n ) {
+            throw new IllegalArgumentException( "Document " + docID + " has already been added" );
+        }
+        if ( docID + 2 > offsets.length ) {
+            offsets = Arrays.copyOf( offsets, Math.max( 2 * offsets.length, docID + 2 ));
+        }
+        while ( n < docID ) {
+            offsets[n+1] = offsets[n];
+            n++;
+        }
+        Arrays.sort( touched, 0, numTouched );
+        int pos = offsets[n];
+        // at most 5 bytes for a gap and 5 for a frequency
+        if ( pos + 10 * numTouched > data.length ) {
+            data = Arrays.copyOf( data, Math.max( 2 * data.length, pos + 10 * numTouched ));
+        }
+        int prev = 0;
+        for ( int i=0; i<numTouched; i++ ) {
+            int id = touched[i];
+            pos = VByte.write( data, pos, id - prev );
+            pos = VByte.write( data, pos, tf[id] );
+            prev = id;
+            tf[id] = 0;
+            df[id]++;
+        }
+        numTouched = 0;
+        offsets[n+1] = pos;
+        n++;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Number of documents, i.e. one more than the largest docID. */
+    public int size() {
+        return n;
+    }
+
+
+    /** Number of distinct terms. */
+    public int numberOfTerms() {
+        return numTerms;
+    }
+
+
+    /** The term with ID <code>termID</code>. */
+    public String term( int termID ) {
+        return terms[termID];
+    }
+
+
+    /** Number of documents containing the term with ID <code>termID</code>. */
+    public int docFrequency( int termID ) {
+        return df[termID];
+    }
+
+
+    /** The terms of document <code>docID</code>, or an empty vector if there is no such document. */
+    public Vector vector( int docID ) {
+        if ( docID < 0 || docID >= n ) return new Vector( new int[0], new int[0] );
+        int pos = offsets[docID];
+        int end = offsets[docID+1];
+        ByteBuffer buf = ByteBuffer.wrap( data, pos, end - pos );
+        // a term takes at least two bytes
+        int[] ids = new int[( end - pos ) / 2];
+        int[] tfs = new int[ids.length];
+        int k = 0;
+        int id = 0;
+        while ( buf.hasRemaining() ) {
+            id += VByte.read( buf );
+            ids[k] = id;
+            tfs[k] = VByte.read( buf );
+            k++;
+        }
+        return new Vector( Arrays.copyOf( ids, k ), Arrays.copyOf( tfs, k ));
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Writes the forward index to <code>file</code>. */
+    public synchronized void save( File file ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( numTerms );
+            out.writeInt( n );
+            for ( int id=0; id<numTerms; id++ ) {
+                out.writeUTF( terms[id] );
+                out.writeInt( df[id] );
+            }
+            for ( int i=0; i<=n; i++ ) {
+                out.writeInt( offsets[i] );
+            }
+            out.write( data, 0, offsets[n] );
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
+    /**
+     *  Reads a forward index written by {@link #save}, replacing the documents.
+     *
+     *  @return false if there is no such file or it is not a forward index.
+     */
+    public synchronized boolean load( File file ) throws IOException {
+        if ( !file.exists() ) return false;
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) return false;
+            int t = in.readInt();
+            int size = in.readInt();
+            termIDs.clear();
+            terms = new String[Math.max( 1024, t )];
+            df = new int[terms.length];
+            tf = new int[terms.length];
+            for ( int id=0; id<t; id++ ) {
+                terms[id] = in.readUTF();
+                df[id] = in.readInt();
+                termIDs.put( terms[id], id );
+            }
+            numTerms = t;
+            offsets = new int[Math.max( 1025, size + 1 )];
+            for ( int i=0; i<=size; i++ ) {
+                offsets[i] = in.readInt();
+            }
+            data = new byte[Math.max( 1 << 16, offsets[size] )];
+            in.readFully( data, 0, offsets[size] );
+            n = size;
+            numTouched = 0;
+        }
+        return true;
+    }
+}
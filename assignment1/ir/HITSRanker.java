@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -19,11 +20,23 @@ public class HITSRanker {
     final static int MAX_NUMBER_OF_STEPS = 1000;
 
     /**
-     *   Convergence criterion: hub and authority scores do not 
+     *   Convergence criterion: hub and authority scores do not
      *   change more that EPSILON from one iteration to another.
      */
     final static double EPSILON = 0.001;
 
+    /**
+     *   At most this many pages linking to a page of the root set
+     *   are added to the base set.
+     */
+    final static int MAX_IN_LINKS = 50;
+
+    /**
+     *   Iterations over subgraphs with at least this many links
+     *   are run in parallel.
+     */
+    final static int PARALLEL_LINKS = 50000;
+
     /**
      *   The inverted index
      */
@@ -35,32 +48,72 @@ public class HITSRanker {
     HashMap<String,Integer> titleToId = new HashMap<String,Integer>();
 
     /**
-     *   Sparse vector containing hub scores
+     *   Number of pages in the link graph, and their nodeIDs and titles
+     */
+    int numberOfNodes;
+    String[] nodeIDs;
+    String[] titles;
+
+    /**
+     *   The link graph in compressed sparse row form: the out-links of page i
+     *   are outTo[outStart[i]] to outTo[outStart[i+1]-1], and its in-links
+     *   inFrom[inStart[i]] to inFrom[inStart[i+1]-1]
+     */
+    int[] outStart;
+    int[] outTo;
+    int[] inStart;
+    int[] inFrom;
+
+    /**
+     *   The page of each docID (-1 if none), and the docID of each page (-1 if none)
      */
-    HashMap<Integer,Double> hubs;
+    int[] nodeOfDoc;
+    int[] docOfNode;
 
     /**
-     *   Sparse vector containing authority scores
+     *   The pages of the last base set, and their hub and authority scores
      */
-    HashMap<Integer,Double> authorities;
+    int[] baseNodes;
+    double[] hubs;
+    double[] authorities;
+
+    /**
+     *   Local number of every page in the base set being built, valid where
+     *   stamp equals the current stamp (so nothing needs clearing per query)
+     */
+    private int[] local;
+    private int[] stamp;
+    private int currentStamp = 0;
+
+    /**
+     *   The base set being built
+     */
+    private int[] base;
+    private int baseSize;
+
+    /**
+     *   Threads iterating over large subgraphs
+     */
+    private final ExecutorService pool;
+    private final int threads = Runtime.getRuntime().availableProcessors();
+
 
-    
     /* --------------------------------------------- */
 
     /**
      * Constructs the HITSRanker object
-     * 
+     *
      * A set of linked documents can be presented as a graph.
      * Each page is a node in graph with a distinct nodeID associated with it.
      * There is an edge between two nodes if there is a link between two pages.
-     * 
+     *
      * Each line in the links file has the following format:
      *  nodeID;outNodeID1,outNodeID2,...,outNodeIDK
      * This means that there are edges between nodeID and outNodeIDi, where i is between 1 and K.
-     * 
+     *
      * Each line in the titles file has the following format:
      *  nodeID;pageTitle
-     *  
+     *
      * NOTE: nodeIDs are consistent between these two files, but they are NOT the same
      *       as docIDs used by search engine's Indexer
      *
@@ -70,6 +123,11 @@ public class HITSRanker {
      */
     public HITSRanker( String linksFilename, String titlesFilename, Index index ) {
         this.index = index;
+        this.pool = Executors.newFixedThreadPool( threads, r -> {
+            Thread t = new Thread( r, "hits" );
+            t.setDaemon( true );
+            return t;
+        });
         readDocs( linksFilename, titlesFilename );
     }
 
@@ -102,20 +160,214 @@ public class HITSRanker {
      * @param      titlesFilename  File containing the mapping between nodeIDs and pages titles
      */
     void readDocs( String linksFilename, String titlesFilename ) {
-        //
-        // YOUR CODE HERE
-        //
+        PageRank graph;
+        try {
+            graph = new PageRank( linksFilename, titlesFilename );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read the link graph: " + e.getMessage() );
+            graph = null;
+        }
+        numberOfNodes = graph == null ? 0 : graph.numberOfNodes;
+        nodeIDs = graph == null ? new String[0] : graph.nodeIDs;
+        titles = graph == null ? new String[0] : graph.titles;
+        inStart = graph == null ? new int[1] : graph.inStart;
+        inFrom = graph == null ? new int[0] : graph.inFrom;
+        // The reverse of the in-links are the out-links
+        outStart = new int[numberOfNodes + 1];
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            outStart[i+1] = outStart[i] + graph.outDegree[i];
+        }
+        outTo = new int[inFrom.length];
+        int[] fill = Arrays.copyOf( outStart, numberOfNodes );
+        for ( int j=0; j<numberOfNodes; j++ ) {
+            for ( int e=inStart[j]; e<inStart[j+1]; e++ ) {
+                outTo[fill[inFrom[e]]++] = j;
+            }
+        }
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            titleToId.put( titles[i], i );
+        }
+        local = new int[numberOfNodes];
+        stamp = new int[numberOfNodes];
     }
 
+
+    /**
+     * Maps the docIDs of the index to pages of the graph by their file names.
+     */
+    private void mapDocuments() {
+        int numDocs = index == null ? 0 : index.numberOfDocs();
+        if ( nodeOfDoc != null && nodeOfDoc.length == numDocs ) return;
+        nodeOfDoc = new int[numDocs];
+        docOfNode = new int[numberOfNodes];
+        Arrays.fill( docOfNode, -1 );
+        for ( int docID=0; docID<numDocs; docID++ ) {
+            String name = index.docName( docID );
+            Integer node = name == null ? null : titleToId.get( getFileName( name ));
+            nodeOfDoc[docID] = node == null ? -1 : node;
+            if ( node != null ) docOfNode[node] = docID;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Work on a range of the pages in the base set. */
+    private interface RangeLoop {
+        void run( int from, int to );
+    }
+
+
+    /** Runs <code>body</code> over [0,n), in parallel if <code>parallel</code>. */
+    private void forRange( int n, boolean parallel, RangeLoop body ) {
+        if ( !parallel ) {
+            body.run( 0, n );
+            return;
+        }
+        ArrayList<Future<?>> parts = new ArrayList<Future<?>>();
+        int chunks = 2 * threads;
+        for ( int c=0; c<chunks; c++ ) {
+            final int from = (int)((long)n * c / chunks);
+            final int to = (int)((long)n * (c+1) / chunks);
+            parts.add( pool.submit( () -> body.run( from, to )));
+        }
+        try {
+            for ( Future<?> part : parts ) part.get();
+        } catch ( InterruptedException | ExecutionException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /** Scales <code>v</code> to unit length, and returns how much it changed from <code>old</code>. */
+    private static double normalize( double[] v, double[] old ) {
+        double sum = 0;
+        for ( double x : v ) sum += x*x;
+        double norm = sum == 0 ? 1 : Math.sqrt( sum );
+        double diff = 0;
+        for ( int i=0; i<v.length; i++ ) {
+            v[i] /= norm;
+            diff += Math.abs( v[i] - old[i] );
+        }
+        return diff;
+    }
+
+
+    /**
+     * Perform HITS iterations until convergence on the base set of the
+     * given root set: the root pages, the pages they link to, and at most
+     * MAX_IN_LINKS of the pages linking to each of them.
+     *
+     * @param      root  The pages in the root set
+     */
+    synchronized void iterate( int[] root ) {
+        if ( ++currentStamp == 0 ) {
+            Arrays.fill( stamp, 0 );
+            currentStamp = 1;
+        }
+        base = new int[Math.max( 16, root.length * 4 )];
+        baseSize = 0;
+        for ( int r : root ) {
+            add( r );
+        }
+        for ( int r : root ) {
+            for ( int e=outStart[r]; e<outStart[r+1]; e++ ) add( outTo[e] );
+        }
+        for ( int r : root ) {
+            int end = Math.min( inStart[r+1], inStart[r] + MAX_IN_LINKS );
+            for ( int e=inStart[r]; e<end; e++ ) add( inFrom[e] );
+        }
+        final int n = baseSize;
+        baseNodes = Arrays.copyOf( base, n );
+        base = null;
+        // The subgraph induced by the base set, with local numbers
+        final int[] subStart = new int[n + 1];
+        int m = 0;
+        for ( int i=0; i<n; i++ ) {
+            int x = baseNodes[i];
+            for ( int e=outStart[x]; e<outStart[x+1]; e++ ) {
+                if ( stamp[outTo[e]] == currentStamp ) m++;
+            }
+            subStart[i+1] = m;
+        }
+        final int[] subTo = new int[m];
+        final int[] revStart = new int[n + 1];
+        for ( int i=0, k=0; i<n; i++ ) {
+            int x = baseNodes[i];
+            for ( int e=outStart[x]; e<outStart[x+1]; e++ ) {
+                if ( stamp[outTo[e]] == currentStamp ) {
+                    subTo[k] = local[outTo[e]];
+                    revStart[subTo[k++] + 1]++;
+                }
+            }
+        }
+        for ( int i=0; i<n; i++ ) revStart[i+1] += revStart[i];
+        final int[] revFrom = new int[m];
+        int[] fill = Arrays.copyOf( revStart, n );
+        for ( int i=0; i<n; i++ ) {
+            for ( int e=subStart[i]; e<subStart[i+1]; e++ ) {
+                revFrom[fill[subTo[e]]++] = i;
+            }
+        }
+
+        final double[] h = new double[n];
+        final double[] a = new double[n];
+        double[] oldH = new double[n];
+        double[] oldA = new double[n];
+        Arrays.fill( h, 1.0 );
+        Arrays.fill( a, 1.0 );
+        normalize( h, oldH );
+        normalize( a, oldA );
+        boolean parallel = m >= PARALLEL_LINKS;
+        for ( int step=0; step<MAX_NUMBER_OF_STEPS; step++ ) {
+            System.arraycopy( h, 0, oldH, 0, n );
+            System.arraycopy( a, 0, oldA, 0, n );
+            forRange( n, parallel, ( from, to ) -> {
+                for ( int j=from; j<to; j++ ) {
+                    double sum = 0;
+                    for ( int e=revStart[j]; e<revStart[j+1]; e++ ) sum += h[revFrom[e]];
+                    a[j] = sum;
+                }
+            });
+            forRange( n, parallel, ( from, to ) -> {
+                for ( int i=from; i<to; i++ ) {
+                    double sum = 0;
+                    for ( int e=subStart[i]; e<subStart[i+1]; e++ ) sum += a[subTo[e]];
+                    h[i] = sum;
+                }
+            });
+            double diff = normalize( a, oldA ) + normalize( h, oldH );
+            if ( diff < EPSILON ) break;
+        }
+        hubs = h;
+        authorities = a;
+    }
+
+
+    /** Adds page <code>x</code> to the base set unless it is in it already. */
+    private void add( int x ) {
+        if ( stamp[x] == currentStamp ) return;
+        stamp[x] = currentStamp;
+        if ( baseSize == base.length ) base = Arrays.copyOf( base, 2 * baseSize );
+        local[x] = baseSize;
+        base[baseSize++] = x;
+    }
+
+
     /**
      * Perform HITS iterations until convergence
      *
      * @param      titles  The titles of the documents in the root set
      */
     private void iterate(String[] titles) {
-        //
-        // YOUR CODE HERE
-        //
+        int[] root = new int[titles.length];
+        int n = 0;
+        for ( String title : titles ) {
+            Integer node = titleToId.get( title );
+            if ( node != null ) root[n++] = node;
+        }
+        iterate( Arrays.copyOf( root, n ));
     }
 
 
@@ -128,58 +380,71 @@ public class HITSRanker {
      * @return     A list of postings ranked according to the hub and authority scores.
      */
     PostingsList rank(PostingsList post) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+        PostingsList result = new PostingsList();
+        if ( post == null ) return result;
+        synchronized ( this ) {
+            mapDocuments();
+            int[] root = new int[post.size()];
+            int n = 0;
+            for ( PostingsEntry pe : post.list ) {
+                if ( pe.docID < nodeOfDoc.length && nodeOfDoc[pe.docID] >= 0 ) {
+                    root[n++] = nodeOfDoc[pe.docID];
+                }
+            }
+            iterate( Arrays.copyOf( root, n ));
+            BitSet scored = new BitSet();
+            for ( int i=0; i<baseNodes.length; i++ ) {
+                int docID = docOfNode[baseNodes[i]];
+                if ( docID < 0 ) continue;
+                PostingsEntry pe = new PostingsEntry( docID );
+                pe.score = hubs[i] + authorities[i];
+                result.insertPosting( pe );
+                scored.set( docID );
+            }
+            // Documents of the root set outside the graph come last
+            for ( PostingsEntry pe : post.list ) {
+                if ( !scored.get( pe.docID )) {
+                    PostingsEntry unranked = new PostingsEntry( pe.docID );
+                    result.insertPosting( unranked );
+                    scored.set( pe.docID );
+                }
+            }
+        }
+        Collections.sort( result.list );
+        return result;
     }
 
 
     /**
-     * Sort a hash map by values in the descending order
-     *
-     * @param      map    A hash map to sorted
+     * Returns the positions of the k largest scores, in descending order.
      *
-     * @return     A hash map sorted by values
-     */
-    private HashMap<Integer,Double> sortHashMapByValue(HashMap<Integer,Double> map) {
-        if (map == null) {
-            return null;
-        } else {
-            List<Map.Entry<Integer,Double> > list = new ArrayList<Map.Entry<Integer,Double> >(map.entrySet());
-      
-            Collections.sort(list, new Comparator<Map.Entry<Integer,Double>>() {
-                public int compare(Map.Entry<Integer,Double> o1, Map.Entry<Integer,Double> o2) { 
-                    return (o2.getValue()).compareTo(o1.getValue()); 
-                } 
-            }); 
-              
-            HashMap<Integer,Double> res = new LinkedHashMap<Integer,Double>(); 
-            for (Map.Entry<Integer,Double> el : list) { 
-                res.put(el.getKey(), el.getValue()); 
-            }
-            return res;
-        }
-    } 
+     * @param      scores  The scores
+     * @param      k       The number of positions to return
+     */
+    private static int[] top( double[] scores, int k ) {
+        Integer[] order = new Integer[scores.length];
+        for ( int i=0; i<order.length; i++ ) order[i] = i;
+        Arrays.sort( order, ( x, y ) -> Double.compare( scores[y], scores[x] ));
+        int[] result = new int[Math.min( k, order.length )];
+        for ( int i=0; i<result.length; i++ ) result[i] = order[i];
+        return result;
+    }
 
 
     /**
-     * Write the first `k` entries of a hash map `map` to the file `fname`.
+     * Write the `k` highest `scores` of the last base set to the file `fname`.
      *
-     * @param      map        A hash map
+     * @param      scores     The hub or authority scores
      * @param      fname      The filename
      * @param      k          A number of entries to write
      */
-    void writeToFile(HashMap<Integer,Double> map, String fname, int k) {
+    void writeToFile(double[] scores, String fname, int k) {
         try {
             BufferedWriter writer = new BufferedWriter(new FileWriter(fname));
-            
-            if (map != null) {
-                int i = 0;
-                for (Map.Entry<Integer,Double> e : map.entrySet()) {
-                    i++;
-                    writer.write(e.getKey() + ": " + String.format("%.5g%n", e.getValue()));
-                    if (i >= k) break;
+
+            if (scores != null) {
+                for (int i : top(scores, k)) {
+                    writer.write(nodeIDs[baseNodes[i]] + ": " + String.format("%.5g%n", scores[i]));
                 }
             }
             writer.close();
@@ -194,10 +459,8 @@ public class HITSRanker {
      */
     void rank() {
         iterate(titleToId.keySet().toArray(new String[0]));
-        HashMap<Integer,Double> sortedHubs = sortHashMapByValue(hubs);
-        HashMap<Integer,Double> sortedAuthorities = sortHashMapByValue(authorities);
-        writeToFile(sortedHubs, "hubs_top_30.txt", 30);
-        writeToFile(sortedAuthorities, "authorities_top_30.txt", 30);
+        writeToFile(hubs, "hubs_top_30.txt", 30);
+        writeToFile(authorities, "authorities_top_30.txt", 30);
     }
 
 
@@ -213,4 +476,4 @@ public class HITSRanker {
             hr.rank();
         }
     }
-} 
\ No newline at end of file
+}
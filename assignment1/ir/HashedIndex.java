@@ -8,6 +8,7 @@
 
 package ir;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -21,6 +22,18 @@ public class HashedIndex implements Index {
     /** The index as a hashtable. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** Number of terms in <code>index</code>, for other threads than the indexer. */
+    private volatile int numTerms = 0;
+
+    /** The names, lengths and ranks of the documents. */
+    private final DocMetadata metadata = new DocMetadata();
+
+
+    /** Returns the names, lengths and ranks of the documents. */
+    public DocMetadata metadata() {
+        return metadata;
+    }
+
 
     /**
      *  Inserts this token in the hashtable.
@@ -34,6 +47,7 @@ public class HashedIndex implements Index {
                 PostingsList pl = new PostingsList();
                 pl.insertPosting(pe);
                 index.put(token,pl);
+                numTerms = index.size();
             } else {
                 // not the first time encountering the word
                 PostingsList pl = index.get(token);
@@ -54,7 +68,28 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        return index.getOrDefault(token, null);
+        PostingsList pl = index.getOrDefault(token, null);
+        if ( pl != null ) Metrics.postingsRead( pl.size() );
+        return pl;
+    }
+
+
+    /** Returns the number of documents containing a term. */
+    public int docFrequency( String token ) {
+        PostingsList pl = index.get( token );
+        return pl == null ? 0 : pl.size();
+    }
+
+
+    /** Returns the number of distinct terms. */
+    public int numberOfTerms() {
+        return numTerms;
+    }
+
+
+    /** Returns the distinct terms of the index. */
+    public Collection<String> vocabulary() {
+        return index.keySet();
     }
 
 
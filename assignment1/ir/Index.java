@@ -7,8 +7,8 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
+
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -16,14 +16,23 @@ import java.util.Iterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
-    
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    /** Returns the names, lengths and ranks of the documents in this index. */
+    public DocMetadata metadata();
+
+    /** Returns the name of a document, or null if there is no such document. */
+    public default String docName( int docID ) {
+        return metadata().name( docID );
+    }
+
+    /** Returns the length of a document, in tokens. */
+    public default int docLength( int docID ) {
+        return metadata().length( docID );
+    }
 
-    /** Mapping from document titles to document PageRank. */
-    public HashMap<String,Double> docRanks = new HashMap<>();
+    /** Returns the number of documents in the index. */
+    public default int numberOfDocs() {
+        return metadata().size();
+    }
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
@@ -31,6 +40,27 @@ public interface Index {
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns the number of documents containing a term. An index that
+     *  keeps it with its dictionary does not read the postings.
+     */
+    public default int docFrequency( String token ) {
+        PostingsList pl = getPostings( token );
+        return pl == null ? 0 : pl.size();
+    }
+
+    /**
+     *  Returns the distinct terms of the index, each once. An index on disk
+     *  that does not store its terms returns the terms it holds in memory.
+     */
+    public Collection<String> vocabulary();
+
+    /**
+     *  Returns the number of distinct terms, as counted by the index itself,
+     *  so that it may be asked from any thread, also while indexing.
+     */
+    public int numberOfTerms();
+
     /** This method is called on exit. */
     public void cleanup();
 
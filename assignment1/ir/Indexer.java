@@ -8,8 +8,9 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.nio.charset.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -20,15 +21,52 @@ public class Indexer {
     /** The index to be built up by this Indexer. */
     Index index;
 
-    /** K-gram index to be built up by this Indexer */
+    /** K-gram index to be built from the vocabulary, or null */
     KGramIndex kgIndex;
 
+    /** The terms of every document, or null if they are not kept. */
+    ForwardIndex forwardIndex = null;
+
+    /** Where the text of every document is, or null. */
+    DocumentStore documents = null;
+
+    /** Progress and throughput of the indexing. */
+    final IndexingStats stats = new IndexingStats();
+
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** Creates the token streams, sharing the compiled patterns. */
+    TokenizerFactory tokenizerFactory;
+
+    /** Token stream reused for every document. */
+    private TokenStream tokens = null;
+
+    /** Start and length of every token of the current document, if the document store keeps them. */
+    private int[] spans = new int[1024];
+
+    /** The terms of the current document. */
+    private String[] terms = new String[1024];
+
+
+    /**
+     *  The tokens of a document of a container, as tokenized by a worker
+     *  thread: the terms, and their starts and lengths in the text if the
+     *  document store keeps them (otherwise null).
+     */
+    private static class TokenizedDocument {
+        final String[] terms;
+        final int[] spans;
+
+        TokenizedDocument( String[] terms, int[] spans ) {
+            this.terms = terms;
+            this.spans = spans;
+        }
+    }
+
 
     /* ----------------------------------------------- */
 
@@ -38,6 +76,7 @@ public class Indexer {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.tokenizerFactory = new TokenizerFactory( true, false, true, patterns_file );
     }
 
 
@@ -47,6 +86,15 @@ public class Indexer {
     }
 
 
+    /**
+     *  Sets the docID of the next document, so that documents can be
+     *  added to an index that already holds <code>docID</code> documents.
+     */
+    public void setNextDocID( int docID ) {
+        lastDocID = docID;
+    }
+
+
 
     /**
      *  Tokenizes and indexes the file @code{f}. If <code>f</code> is a directory,
@@ -68,18 +116,12 @@ public class Indexer {
                     // First register the document and get a docID
                     int docID = generateDocID();
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                          //  System.out.println("insert into index");
-                            insertIntoIndex( docID, token, offset++ );
-                        }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
+                    stats.start();
+                    long startTime = System.nanoTime();
+                    try ( DocumentReader reader = DocumentReader.open( f )) {
+                        stats.addRead( System.nanoTime() - startTime );
+                        indexDocument( docID, reader, f.getPath() );
+                        if ( documents != null ) documents.addFile( docID, f.length() );
                     } catch ( IOException e ) {
                         System.err.println( "Warning: IOException during indexing." );
                     }
@@ -89,19 +131,236 @@ public class Indexer {
     }
 
 
+    /**
+     *  Counts the files of a directory structure, so that the time left
+     *  can be estimated while they are indexed.
+     */
+    public void expectFiles( File f ) {
+        long n = 0;
+        ArrayDeque<File> dirs = new ArrayDeque<File>();
+        dirs.add( f );
+        while ( !dirs.isEmpty() ) {
+            File dir = dirs.poll();
+            if ( !dir.canRead() ) continue;
+            if ( !dir.isDirectory() ) {
+                n++;
+                continue;
+            }
+            String[] fs = dir.list();
+            if ( fs != null ) {
+                for ( String name : fs ) dirs.add( new File( dir, name ));
+            }
+        }
+        stats.expect( n );
+    }
+
+
+    /**
+     *  Tokenizes one document and inserts its tokens into the index. The
+     *  document is tokenized first, then inverted, so that the time of
+     *  each phase is measured once per document.
+     */
+    private void indexDocument( int docID, DocumentReader reader, String path ) throws IOException {
+        long startTime = System.nanoTime();
+        long readBefore = reader.readNanos();
+        if ( tokens == null ) {
+            tokens = tokenizerFactory.newTokenStream( reader );
+        } else {
+            tokens.reset( reader );
+        }
+        boolean keepSpans = documents != null && documents.keepsTokens();
+        int n = 0;
+        while ( tokens.next() ) {
+            if ( n == terms.length ) terms = Arrays.copyOf( terms, 2 * n );
+            if ( keepSpans ) {
+                if ( 2*n + 2 > spans.length ) spans = Arrays.copyOf( spans, 2 * spans.length );
+                spans[2*n] = tokens.offset();
+                spans[2*n+1] = tokens.length();
+            }
+            terms[n++] = tokens.term();
+        }
+        long tokenized = System.nanoTime();
+        long read = reader.readNanos() - readBefore;
+        stats.addRead( read );
+        stats.addTokenize( tokenized - startTime - read );
+        invert( docID, terms, n );
+        Arrays.fill( terms, 0, n, null );
+        index.metadata().add( docID, path, n );
+        if ( forwardIndex != null ) forwardIndex.endDocument( docID );
+        if ( keepSpans ) documents.setTokens( docID, spans, n );
+        stats.document( n, reader.bytesRead() );
+    }
+
+
+    /**
+     *  Inserts the <code>n</code> first terms of a document into the index,
+     *  counting the segments written meanwhile as writing.
+     */
+    private void invert( int docID, String[] toks, int n ) {
+        long startTime = System.nanoTime();
+        long flushed = index instanceof SegmentedIndex ? ((SegmentedIndex)index).flushNanos() : 0;
+        for ( int offset=0; offset<n; offset++ ) {
+            insertIntoIndex( docID, toks[offset], offset );
+        }
+        if ( index instanceof SegmentedIndex ) {
+            flushed = ((SegmentedIndex)index).flushNanos() - flushed;
+            stats.addWrite( flushed );
+        }
+        stats.addInvert( System.nanoTime() - startTime - flushed );
+    }
+
+
+    /**
+     *  Indexes all documents in a corpus container (see {@link CorpusContainer}).
+     *
+     *  With one thread, the container is read slice by slice on this thread.
+     *  With more, slices are tokenized in parallel by a pool of workers while
+     *  this thread inserts the tokens into the index in document order, so the
+     *  docIDs are the same in both cases.
+     *
+     *  @return false if the indexing failed part way, so that the index is
+     *          incomplete and should not be written.
+     */
+    public boolean processContainer( File f, int threads ) {
+        try ( CorpusContainer container = new CorpusContainer( f )) {
+            int[] slices = container.slices();
+            int numSlices = slices.length - 1;
+            stats.start();
+            stats.expect( container.size() );
+            if ( threads <= 1 ) {
+                for ( int s=0; s<numSlices; s++ ) {
+                    ByteBuffer mapped = container.map( slices[s], slices[s+1] );
+                    for ( int i=slices[s]; i<slices[s+1]; i++ ) {
+                        int docID = generateDocID();
+                        if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                        try ( DocumentReader reader = DocumentReader.wrap( container.document( mapped, slices[s], i ))) {
+                            indexDocument( docID, reader, container.path( i ));
+                        }
+                        if ( documents != null ) documents.addRange( docID, f, container.offset( i ), container.length( i ));
+                    }
+                }
+                return true;
+            }
+            ExecutorService workers = Executors.newFixedThreadPool( threads );
+            try {
+                ArrayDeque<Future<ArrayList<TokenizedDocument>>> pending = new ArrayDeque<Future<ArrayList<TokenizedDocument>>>();
+                int next = 0;
+                for ( int s=0; s<numSlices; s++ ) {
+                    // Keep a bounded number of slices tokenized ahead of insertion
+                    while ( next < numSlices && pending.size() < 2*threads ) {
+                        final int from = slices[next];
+                        final int to = slices[next+1];
+                        pending.add( workers.submit( () -> tokenizeSlice( container, from, to )));
+                        next++;
+                    }
+                    ArrayList<TokenizedDocument> docs = pending.poll().get();
+                    for ( int i=0; i<docs.size(); i++ ) {
+                        int docID = generateDocID();
+                        if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                        String[] toks = docs.get( i ).terms;
+                        invert( docID, toks, toks.length );
+                        index.metadata().add( docID, container.path( slices[s] + i ), toks.length );
+                        if ( forwardIndex != null ) forwardIndex.endDocument( docID );
+                        if ( documents != null ) {
+                            documents.addRange( docID, f, container.offset( slices[s] + i ), container.length( slices[s] + i ));
+                            if ( docs.get( i ).spans != null ) documents.setTokens( docID, docs.get( i ).spans, toks.length );
+                        }
+                        stats.document( toks.length, container.length( slices[s] + i ));
+                    }
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                System.err.println( "Error: indexing of " + f + " was interrupted." );
+                return false;
+            } catch ( ExecutionException e ) {
+                System.err.println( "Error: indexing of " + f + " failed: " + e.getCause() );
+                e.getCause().printStackTrace();
+                return false;
+            } finally {
+                workers.shutdownNow();
+            }
+            return true;
+        } catch ( IOException e ) {
+            System.err.println( "Error: indexing of " + f + " failed: " + e );
+            return false;
+        }
+    }
+
+
+    /**
+     *  Tokenizes the documents <code>from</code> to <code>to</code> (exclusive)
+     *  of a container. Called by the worker threads of {@link #processContainer}.
+     */
+    private ArrayList<TokenizedDocument> tokenizeSlice( CorpusContainer container, int from, int to ) throws IOException {
+        ByteBuffer mapped = container.map( from, to );
+        ArrayList<TokenizedDocument> docs = new ArrayList<TokenizedDocument>( to - from );
+        ArrayList<String> toks = new ArrayList<String>();
+        boolean keepSpans = documents != null && documents.keepsTokens();
+        int[] sliceSpans = keepSpans ? new int[1024] : null;
+        TokenStream stream = null;
+        long startTime = System.nanoTime();
+        long read = 0;
+        try {
+            for ( int i=from; i<to; i++ ) {
+                DocumentReader reader = DocumentReader.wrap( container.document( mapped, from, i ));
+                if ( stream == null ) {
+                    stream = tokenizerFactory.newTokenStream( reader );
+                } else {
+                    stream.reset( reader );
+                }
+                toks.clear();
+                while ( stream.next() ) {
+                    if ( keepSpans ) {
+                        int k = 2 * toks.size();
+                        if ( k + 2 > sliceSpans.length ) sliceSpans = Arrays.copyOf( sliceSpans, 2 * sliceSpans.length );
+                        sliceSpans[k] = stream.offset();
+                        sliceSpans[k+1] = stream.length();
+                    }
+                    toks.add( stream.term() );
+                }
+                docs.add( new TokenizedDocument( toks.toArray( new String[toks.size()] ),
+                                                 keepSpans ? Arrays.copyOf( sliceSpans, 2 * toks.size() ) : null ));
+                read += reader.readNanos();
+            }
+        } finally {
+            if ( stream != null ) stream.close();
+        }
+        stats.addRead( read );
+        stats.addTokenize( System.nanoTime() - startTime - read );
+        return docs;
+    }
+
+
+    /**
+     *  Reads the PageRank of every title (file name), either from a rank
+     *  file written by {@link PageRank} or from a text file with lines
+     *  <code>title;rank</code>, and gives every indexed document the rank of
+     *  its file name. Called once the documents are indexed or loaded.
+     */
     public void buildRankMap(String filename){
+        HashMap<String,Float> ranks = new HashMap<>();
+        try {
+            HashMap<String,Float> computed = PageRank.readRanks(new File(filename));
+            if (computed != null) {
+                System.err.println(index.metadata().resolveRanks(computed) + " documents have a PageRank.");
+                return;
+            }
+        } catch(IOException e){
+            System.err.println("Warning: IOException while reading the ranks.");
+            return;
+        }
         try(BufferedReader br = new BufferedReader(new FileReader(filename))){
             String line;
             while((line = br.readLine())!= null){
                 String[] toks = line.split(";");
-                double rank = Double.parseDouble(toks[1]);
-                String title = "c:\\davisWiki\\"+toks[0];
-                index.docRanks.put(title,rank);
+                ranks.put(toks[0], Float.parseFloat(toks[1]));
             }
-            //System.out.println("map size : "+index.docRanks.size());
         } catch(IOException e){
-            System.err.println("Warning: IOException during docRanks map construction.");
+            System.err.println("Warning: IOException while reading the ranks.");
+            return;
         }
+        int found = index.metadata().resolveRanks(ranks);
+        System.err.println(found + " documents have a PageRank.");
     }
 
     /* ----------------------------------------------- */
@@ -113,8 +372,22 @@ public class Indexer {
     public void insertIntoIndex( int docID, String token, int offset ) {
       //  System.out.println("index insert");
         index.insert( token, docID, offset );
-        if (kgIndex != null)
-            kgIndex.insert(token);
+        if ( forwardIndex != null ) forwardIndex.add( token );
+    }
+
+
+    /**
+     *  Builds the k-gram index from the vocabulary of the index, once the
+     *  documents are indexed, so that every term is handled once rather
+     *  than at every occurrence.
+     */
+    public void buildKGramIndex( int threads ) {
+        if ( kgIndex == null ) return;
+        long startTime = System.currentTimeMillis();
+        kgIndex.build( index.vocabulary(), threads );
+        kgIndex.trim();
+        System.err.println( "K-gram index of " + kgIndex.numberOfTerms() + " terms built in " +
+                            (System.currentTimeMillis() - startTime) + " ms." );
     }
 }
 
@@ -0,0 +1,39 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ *  Appends the indexing reports to a file, one JSON object per line (see
+ *  {@link IndexingStats.Snapshot#toJson}), and prints them on stderr.
+ */
+public class IndexingLog implements IndexingStats.Listener {
+
+    /** The log file, or null if the reports are only printed. */
+    private final PrintWriter out;
+
+
+    /** Logs to <code>file</code>, or only to stderr if it is null. */
+    public IndexingLog( File file ) throws IOException {
+        out = file == null ? null :
+            new PrintWriter( new OutputStreamWriter( new FileOutputStream( file, true ), StandardCharsets.UTF_8 ));
+    }
+
+
+    public synchronized void progress( IndexingStats.Snapshot s ) {
+        System.err.println( ( s.done ? "Indexing done: " : "Indexing: " ) + s );
+        if ( out != null ) {
+            out.println( s.toJson() );
+            out.flush();
+            if ( s.done ) out.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *  Progress and throughput of the indexing: documents, tokens and bytes
+ *  read, the time spent in each phase, heap usage and an estimate of the
+ *  time left. Every {@link #REPORT_INTERVAL_MS} milliseconds, and when the
+ *  indexing is done, a {@link Snapshot} is given to the listeners.
+ *
+ *  The phases are reading (reading and decoding the documents), tokenizing,
+ *  inverting (inserting the tokens into the index) and writing (the index
+ *  and its companion files). With several indexing threads, reading and
+ *  tokenizing are summed over the worker threads, so they can exceed the
+ *  elapsed time.
+ *
+ *  Documents are counted by the indexing thread; the phase times may be
+ *  added by any thread.
+ */
+public class IndexingStats {
+
+    /** Time between two reports, in milliseconds. */
+    public static final long REPORT_INTERVAL_MS = 5000;
+
+    /** Receives the reports. */
+    public interface Listener {
+        void progress( Snapshot s );
+    }
+
+
+    /** The state of the indexing at one time. */
+    public static class Snapshot {
+        /** Time since the indexing started, in milliseconds. */
+        public final long elapsedMs;
+        /** Documents indexed so far, and the number expected (-1 if unknown). */
+        public final long documents, expectedDocuments;
+        /** Tokens and bytes read so far. */
+        public final long tokens, bytesRead;
+        /** Time spent in each phase, in milliseconds. */
+        public final long readMs, tokenizeMs, invertMs, writeMs;
+        /** Throughput since the previous report. */
+        public final double docsPerSecond, tokensPerSecond, bytesPerSecond;
+        /** Heap in use and maximal heap, in bytes. */
+        public final long heapUsedBytes, heapMaxBytes;
+        /** Estimated time left, in seconds, or -1 if it is unknown. */
+        public final long etaSeconds;
+        /** Is this the report made once the indexing is done? */
+        public final boolean done;
+
+        Snapshot( long elapsedMs, long documents, long expectedDocuments, long tokens, long bytesRead,
+                  long readMs, long tokenizeMs, long invertMs, long writeMs,
+                  double docsPerSecond, double tokensPerSecond, double bytesPerSecond,
+                  long heapUsedBytes, long heapMaxBytes, long etaSeconds, boolean done ) {
+            this.elapsedMs = elapsedMs;
+            this.documents = documents;
+            this.expectedDocuments = expectedDocuments;
+            this.tokens = tokens;
+            this.bytesRead = bytesRead;
+            this.readMs = readMs;
+            this.tokenizeMs = tokenizeMs;
+            this.invertMs = invertMs;
+            this.writeMs = writeMs;
+            this.docsPerSecond = docsPerSecond;
+            this.tokensPerSecond = tokensPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.heapUsedBytes = heapUsedBytes;
+            this.heapMaxBytes = heapMaxBytes;
+            this.etaSeconds = etaSeconds;
+            this.done = done;
+        }
+
+        /** The snapshot as a JSON object on one line. */
+        public String toJson() {
+            return String.format( Locale.ROOT,
+                "{\"elapsedMs\":%d,\"documents\":%d,\"expectedDocuments\":%d,\"tokens\":%d,\"bytesRead\":%d," +
+                "\"readMs\":%d,\"tokenizeMs\":%d,\"invertMs\":%d,\"writeMs\":%d," +
+                "\"docsPerSecond\":%.1f,\"tokensPerSecond\":%.1f,\"bytesPerSecond\":%.1f," +
+                "\"heapUsedBytes\":%d,\"heapMaxBytes\":%d,\"etaSeconds\":%d,\"done\":%b}",
+                elapsedMs, documents, expectedDocuments, tokens, bytesRead,
+                readMs, tokenizeMs, invertMs, writeMs,
+                docsPerSecond, tokensPerSecond, bytesPerSecond,
+                heapUsedBytes, heapMaxBytes, etaSeconds, done );
+        }
+
+        public String toString() {
+            return String.format( Locale.ROOT,
+                "%d docs, %d tokens, %.1f MB in %.1f s (%.0f docs/s, %.0f tokens/s, %.1f MB/s); " +
+                "read %.1f s, tokenize %.1f s, invert %.1f s, write %.1f s; heap %d/%d MB%s",
+                documents, tokens, bytesRead / 1e6, elapsedMs / 1000.0,
+                docsPerSecond, tokensPerSecond, bytesPerSecond / 1e6,
+                readMs / 1000.0, tokenizeMs / 1000.0, invertMs / 1000.0, writeMs / 1000.0,
+                heapUsedBytes >> 20, heapMaxBytes >> 20,
+                etaSeconds >= 0 ? "; " + etaSeconds + " s left" : "" );
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder tokenizeNanos = new LongAdder();
+    private final LongAdder invertNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+
+    private long startTime = -1;
+    private long documents = 0;
+    private long expectedDocuments = 0;
+    private boolean expectedKnown = true;
+    private long tokens = 0;
+    private long bytesRead = 0;
+
+    /** Time, documents, tokens and bytes at the previous report. */
+    private long lastTime, lastDocuments, lastTokens, lastBytes;
+
+
+    public void addListener( Listener listener ) {
+        listeners.add( listener );
+    }
+
+
+    /** Are there listeners? If not, nothing is reported. */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+
+    /** Starts the clock, if it has not been started. */
+    public synchronized void start() {
+        if ( startTime >= 0 ) return;
+        startTime = System.nanoTime();
+        lastTime = startTime;
+    }
+
+
+    /**
+     *  Adds <code>n</code> documents to those expected, for the estimate of
+     *  the time left; if <code>n</code> is negative, their number is unknown.
+     */
+    public synchronized void expect( long n ) {
+        if ( n < 0 ) expectedKnown = false;
+        else expectedDocuments += n;
+    }
+
+
+    public void addRead( long nanos ) {
+        readNanos.add( nanos );
+    }
+
+    public void addTokenize( long nanos ) {
+        tokenizeNanos.add( nanos );
+    }
+
+    public void addInvert( long nanos ) {
+        invertNanos.add( nanos );
+    }
+
+    public void addWrite( long nanos ) {
+        writeNanos.add( nanos );
+    }
+
+
+    /**
+     *  Counts a document of <code>numTokens</code> tokens and
+     *  <code>bytes</code> bytes, and reports if it is time to.
+     */
+    public void document( int numTokens, long bytes ) {
+        boolean report;
+        synchronized ( this ) {
+            documents++;
+            tokens += numTokens;
+            bytesRead += bytes;
+            report = !listeners.isEmpty() && System.nanoTime() - lastTime >= REPORT_INTERVAL_MS * 1000000L;
+        }
+        if ( report ) report( false );
+    }
+
+
+    /** Reports the final state, once the indexing is done. */
+    public void finish() {
+        report( true );
+    }
+
+
+    /**
+     *  The current state. The throughput is that since the previous
+     *  snapshot, or since the start for the final one.
+     */
+    public synchronized Snapshot snapshot( boolean done ) {
+        long now = System.nanoTime();
+        if ( startTime < 0 ) start();
+        if ( done ) {
+            lastTime = startTime;
+            lastDocuments = lastTokens = lastBytes = 0;
+        }
+        double seconds = Math.max( 1e-9, ( now - lastTime ) / 1e9 );
+        double docsPerSecond = ( documents - lastDocuments ) / seconds;
+        long eta = -1;
+        if ( !done && expectedKnown && expectedDocuments > 0 && docsPerSecond > 0 ) {
+            eta = (long)Math.ceil( Math.max( 0, expectedDocuments - documents ) / docsPerSecond );
+        }
+        Runtime rt = Runtime.getRuntime();
+        Snapshot s = new Snapshot( ( now - startTime ) / 1000000L, documents, expectedKnown ? expectedDocuments : -1,
+                                   tokens, bytesRead,
+                                   readNanos.sum() / 1000000L, tokenizeNanos.sum() / 1000000L,
+                                   invertNanos.sum() / 1000000L, writeNanos.sum() / 1000000L,
+                                   docsPerSecond, ( tokens - lastTokens ) / seconds, ( bytesRead - lastBytes ) / seconds,
+                                   rt.totalMemory() - rt.freeMemory(), rt.maxMemory(), eta, done );
+        lastTime = now;
+        lastDocuments = documents;
+        lastTokens = tokens;
+        lastBytes = bytesRead;
+        return s;
+    }
+
+
+    private void report( boolean done ) {
+        if ( listeners.isEmpty() ) return;
+        Snapshot s = snapshot( done );
+        for ( Listener l : listeners ) {
+            l.progress( s );
+        }
+    }
+}
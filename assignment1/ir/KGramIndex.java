@@ -9,19 +9,51 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 
+/**
+ *  An index from k-grams to the terms containing them, used for spelling
+ *  correction and wildcard queries. A term is indexed with a '^' before
+ *  and a '$' after it, so "ve" gives the 3-grams "^ve" and "ve$".
+ *
+ *  A k-gram is packed into a long, 16 bits per character, and looked up in
+ *  an open-addressing table of longs. Its postings are a sorted array of
+ *  term IDs, since the terms get increasing IDs as they are inserted, and
+ *  lists are intersected by galloping through the longer one.
+ */
 public class KGramIndex {
 
+    /** The k-grams of at most this many characters fit in a long. */
+    public static final int MAX_K = 4;
+
     /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
+    String[] id2term = new String[1024];
 
     /** Mapping from term strings to term ids */
     HashMap<String,Integer> term2id = new HashMap<String,Integer>();
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /** The postings slot of every packed k-gram. */
+    LongIntMap index = new LongIntMap();
+
+    /** The term IDs containing the k-gram of each slot, in increasing order. */
+    int[][] postings = new int[1024][];
+
+    /** Number of term IDs in each slot. */
+    int[] postingsSize = new int[1024];
+
+    /** The packed k-gram of each slot. */
+    long[] slotKGram = new long[1024];
+
+    /** Number of slots, i.e. of distinct k-grams. */
+    int numKGrams = 0;
 
     /** The ID of the last processed term */
     int lastTermID = -1;
@@ -35,6 +67,10 @@ public class KGramIndex {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
+        if (k > MAX_K) {
+            System.err.println("The K-gram index can't be constructed for K larger than " + MAX_K);
+            System.exit(1);
+        }
     }
 
     /** Generate the ID for an unknown term */
@@ -46,43 +82,688 @@ public class KGramIndex {
         return K;
     }
 
+    /* --------------------------------------------- */
+
+
+    /**
+     *  An open-addressing hash table from longs to non-negative ints.
+     */
+    static class LongIntMap {
+        long[] keys = new long[1 << 12];
+        int[] values = new int[1 << 12];
+        int size = 0;
+
+        LongIntMap() {
+            Arrays.fill( values, -1 );
+        }
+
+        private static int slot( long key, int mask ) {
+            return (int)(( key * 0x9E3779B97F4A7C15L ) >>> 32 ) & mask;
+        }
+
+        /** Returns the value of <code>key</code>, or -1. */
+        int get( long key ) {
+            int mask = keys.length - 1;
+            int i = slot( key, mask );
+            while ( values[i] >= 0 ) {
+                if ( keys[i] == key ) return values[i];
+                i = ( i + 1 ) & mask;
+            }
+            return -1;
+        }
+
+        /** Sets the value of a key that is not in the table. */
+        void putNew( long key, int value ) {
+            if ( 2 * ( size + 1 ) > keys.length ) grow();
+            int mask = keys.length - 1;
+            int i = slot( key, mask );
+            while ( values[i] >= 0 ) i = ( i + 1 ) & mask;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[2 * oldKeys.length];
+            values = new int[2 * oldKeys.length];
+            Arrays.fill( values, -1 );
+            size = 0;
+            for ( int i=0; i<oldKeys.length; i++ ) {
+                if ( oldValues[i] >= 0 ) putNew( oldKeys[i], oldValues[i] );
+            }
+        }
+    }
+
+
+    /** Packs the <code>k</code> characters of <code>s</code> from <code>from</code> into a long. */
+    static long pack( CharSequence s, int from, int k ) {
+        long v = 0;
+        for ( int i=from; i<from+k; i++ ) {
+            v = ( v << 16 ) | s.charAt( i );
+        }
+        return v;
+    }
+
+
+    /** Unpacks a k-gram packed by {@link #pack}. */
+    String unpack( long v ) {
+        char[] c = new char[K];
+        for ( int i=K-1; i>=0; i-- ) {
+            c[i] = (char)( v & 0xffff );
+            v >>>= 16;
+        }
+        return new String( c );
+    }
+
+
+    /** Returns the distinct k-grams of a term, with the boundary markers. */
+    public String[] kgrams( String term ) {
+        String padded = "^" + term + "$";
+        LinkedHashSet<String> result = new LinkedHashSet<String>();
+        for ( int i=0; i+K<=padded.length(); i++ ) {
+            result.add( padded.substring( i, i+K ));
+        }
+        return result.toArray( new String[result.size()] );
+    }
+
+
+    /**
+     *  Returns the terms matching a wildcard pattern, in which '*' stands
+     *  for any sequence of characters. The candidates are the terms having
+     *  every k-gram of the pattern that has no '*' in it (with the boundary
+     *  markers, so "mon*" requires "^mo"), and are then matched against the
+     *  pattern itself. At most <code>limit</code> terms are returned.
+     */
+    public String[] wildcardTerms( String pattern, int limit ) {
+        LinkedHashSet<String> kgrams = new LinkedHashSet<String>();
+        for ( String piece : ( "^" + pattern + "$" ).split( "\\*" )) {
+            for ( int i=0; i+K<=piece.length(); i++ ) {
+                kgrams.add( piece.substring( i, i+K ));
+            }
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        if ( kgrams.isEmpty() ) {
+            // too short to narrow down the terms
+            for ( int id=0; id<numberOfTerms() && result.size()<limit; id++ ) {
+                String term = getTermByID( id );
+                if ( matches( term, pattern )) result.add( term );
+            }
+        } else {
+            for ( int id : getTermIDs( kgrams.toArray( new String[kgrams.size()] ))) {
+                String term = getTermByID( id );
+                if ( matches( term, pattern )) result.add( term );
+                if ( result.size() == limit ) break;
+            }
+        }
+        return result.toArray( new String[result.size()] );
+    }
+
+
+    /** Does <code>term</code> match <code>pattern</code>, which has at least one '*'? */
+    static boolean matches( String term, String pattern ) {
+        String[] parts = pattern.split( "\\*", -1 );
+        String first = parts[0];
+        String last = parts[parts.length-1];
+        if ( term.length() < first.length() + last.length() ) return false;
+        if ( !term.startsWith( first ) || !term.endsWith( last )) return false;
+        int pos = first.length();
+        int end = term.length() - last.length();
+        for ( int i=1; i<parts.length-1; i++ ) {
+            int found = term.indexOf( parts[i], pos );
+            if ( found < 0 || found + parts[i].length() > end ) return false;
+            pos = found + parts[i].length();
+        }
+        return true;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Returns the position of the first element from <code>from</code> on
+     *  in <code>b[0..nb)</code> that is at least <code>x</code>, or
+     *  <code>nb</code>: doubling steps, then a binary search.
+     */
+    static int advance( int[] b, int nb, int from, int x ) {
+        int lo = from;
+        int hi = from;
+        int step = 1;
+        while ( hi < nb && b[hi] < x ) {
+            lo = hi + 1;
+            hi = from + step;
+            step <<= 1;
+        }
+        if ( hi > nb ) hi = nb;
+        while ( lo < hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( b[mid] < x ) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+
+    /**
+     *  Intersects the sorted lists <code>a[0..na)</code> and
+     *  <code>b[0..nb)</code> into <code>out</code>, going through the shorter
+     *  list and galloping through the longer one.
+     *
+     *  @return The number of elements in the intersection.
+     */
+    static int intersect( int[] a, int na, int[] b, int nb, int[] out ) {
+        if ( na > nb ) {
+            int[] t = a; a = b; b = t;
+            int n = na; na = nb; nb = n;
+        }
+        int n = 0;
+        int j = 0;
+        for ( int i=0; i<na && j<nb; i++ ) {
+            j = advance( b, nb, j, a[i] );
+            if ( j < nb && b[j] == a[i] ) {
+                out[n++] = a[i];
+                j++;
+            }
+        }
+        return n;
+    }
+
 
     /**
      *  Get intersection of two postings lists
      */
     private List<KGramPostingsEntry> intersect(List<KGramPostingsEntry> p1, List<KGramPostingsEntry> p2) {
-        // 
-        // YOUR CODE HERE
-        //
-        return null;
+        if (p1 == null || p2 == null) return null;
+        int[] a = new int[p1.size()];
+        int[] b = new int[p2.size()];
+        for (int i=0; i<a.length; i++) a[i] = p1.get(i).tokenID;
+        for (int i=0; i<b.length; i++) b[i] = p2.get(i).tokenID;
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = intersect(a, a.length, b, b.length, out);
+        return n == 0 ? null : toEntries(out, n);
+    }
+
+
+    private static List<KGramPostingsEntry> toEntries( int[] ids, int n ) {
+        ArrayList<KGramPostingsEntry> result = new ArrayList<KGramPostingsEntry>( n );
+        for ( int i=0; i<n; i++ ) {
+            result.add( new KGramPostingsEntry( ids[i] ));
+        }
+        return result;
     }
 
 
+    /* --------------------------------------------- */
+
+
     /** Inserts all k-grams from a token into the index. */
-    public void insert( String token ) {
-        //
-        // YOUR CODE HERE
-        //
+    public synchronized void insert( String token ) {
+        materialize();
+        if (term2id.containsKey(token)) return;
+        int id = generateTermID();
+        term2id.put(token, id);
+        if (id == id2term.length) id2term = Arrays.copyOf(id2term, Math.max(1024, 2 * id));
+        id2term[id] = token;
+        addKGrams(token, id);
+    }
+
+
+    /** Adds term ID <code>id</code> to the postings of every k-gram of <code>term</code>. */
+    private void addKGrams(String term, int id) {
+        String padded = "^" + term + "$";
+        for (int i=0; i+K<=padded.length(); i++) {
+            long kgram = pack(padded, i, K);
+            int s = index.get(kgram);
+            if (s < 0) {
+                s = newSlot(kgram);
+            }
+            int n = postingsSize[s];
+            // a k-gram occurring twice in the term is listed once
+            if (n > 0 && postings[s][n-1] == id) continue;
+            if (n == postings[s].length) postings[s] = Arrays.copyOf(postings[s], 2 * n);
+            postings[s][postingsSize[s]++] = id;
+        }
+    }
+
+
+    /**
+     *  Inserts every term of <code>vocabulary</code> that is not yet in the
+     *  index. The new terms get consecutive IDs and are split into
+     *  <code>threads</code> ranges of IDs; each range is indexed into its own
+     *  table in parallel, and the tables are then appended to the index in
+     *  range order, so that every postings list stays sorted.
+     */
+    public synchronized void build( Collection<String> vocabulary, int threads ) {
+        materialize();
+        int first = lastTermID + 1;
+        for ( String term : vocabulary ) {
+            if ( term2id.containsKey( term )) continue;
+            int id = generateTermID();
+            term2id.put( term, id );
+            if ( id == id2term.length ) id2term = Arrays.copyOf( id2term, Math.max( 1024, 2 * id ));
+            id2term[id] = term;
+        }
+        int n = lastTermID + 1 - first;
+        if ( n == 0 ) return;
+        threads = Math.max( 1, Math.min( threads, n / 10000 + 1 ));
+        KGramIndex[] parts = new KGramIndex[threads];
+        if ( threads == 1 ) {
+            parts[0] = partition( first, first + n );
+        } else {
+            ExecutorService workers = Executors.newFixedThreadPool( threads );
+            try {
+                ArrayList<Future<KGramIndex>> futures = new ArrayList<Future<KGramIndex>>();
+                for ( int t=0; t<threads; t++ ) {
+                    final int from = first + (int)( (long)n * t / threads );
+                    final int to = first + (int)( (long)n * (t+1) / threads );
+                    futures.add( workers.submit( () -> partition( from, to )));
+                }
+                for ( int t=0; t<threads; t++ ) {
+                    parts[t] = futures.get( t ).get();
+                }
+            } catch ( InterruptedException | ExecutionException e ) {
+                throw new RuntimeException( "Building the k-gram index failed", e );
+            } finally {
+                workers.shutdown();
+            }
+        }
+        for ( KGramIndex part : parts ) {
+            for ( int p=0; p<part.numKGrams; p++ ) {
+                int s = index.get( part.slotKGram[p] );
+                if ( s < 0 ) s = newSlot( part.slotKGram[p] );
+                int size = postingsSize[s];
+                int add = part.postingsSize[p];
+                if ( size + add > postings[s].length ) {
+                    postings[s] = Arrays.copyOf( postings[s], Math.max( 2 * postings[s].length, size + add ));
+                }
+                System.arraycopy( part.postings[p], 0, postings[s], size, add );
+                postingsSize[s] = size + add;
+            }
+        }
+    }
+
+
+    /** Indexes the k-grams of the terms with IDs <code>from</code> to <code>to</code>-1 into a new table. */
+    private KGramIndex partition( int from, int to ) {
+        KGramIndex part = new KGramIndex( K );
+        for ( int id=from; id<to; id++ ) {
+            part.addKGrams( id2term[id], id );
+        }
+        return part;
     }
 
+
+    private int newSlot( long kgram ) {
+        int s = numKGrams++;
+        if ( s == postings.length ) {
+            postings = Arrays.copyOf( postings, 2 * s );
+            postingsSize = Arrays.copyOf( postingsSize, 2 * s );
+            slotKGram = Arrays.copyOf( slotKGram, 2 * s );
+        }
+        postings[s] = new int[4];
+        slotKGram[s] = kgram;
+        index.putNew( kgram, s );
+        return s;
+    }
+
+
+    /** Shrinks the postings arrays to their sizes, once all terms are inserted. */
+    public synchronized void trim() {
+        if ( mapped != null ) return;
+        for ( int s=0; s<numKGrams; s++ ) {
+            if ( postings[s].length > postingsSize[s] ) {
+                postings[s] = Arrays.copyOf( postings[s], postingsSize[s] );
+            }
+        }
+        id2term = Arrays.copyOf( id2term, lastTermID + 1 );
+    }
+
+
+    /** Returns the slot of a k-gram, or -1. */
+    private int slotOf( String kgram ) {
+        if ( kgram.length() != K ) return -1;
+        long key = pack( kgram, 0, K );
+        if ( mapped != null ) return mappedSlot( key );
+        return index.get( key );
+    }
+
+
+    /** Number of term IDs in a slot. */
+    private int sizeOf( int slot ) {
+        if ( mapped != null ) return mapped.getInt( dictPos + DICT_ENTRY_SIZE*slot + 12 );
+        return postingsSize[slot];
+    }
+
+
+    /** The term IDs of a slot, in a new array. */
+    private int[] termIDsOf( int slot ) {
+        if ( mapped == null ) return Arrays.copyOf( postings[slot], postingsSize[slot] );
+        int n = sizeOf( slot );
+        int[] ids = new int[n];
+        ByteBuffer view = mapped.duplicate();
+        view.position( postingsPos + mapped.getInt( dictPos + DICT_ENTRY_SIZE*slot + 8 ));
+        int id = 0;
+        for ( int i=0; i<n; i++ ) {
+            id += VByte.read( view );
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+
+    /** Number of terms containing <code>kgram</code>. */
+    public int frequency( String kgram ) {
+        int s = slotOf( kgram );
+        return s < 0 ? 0 : sizeOf( s );
+    }
+
+
+    /** Returns the sorted IDs of the terms containing <code>kgram</code>. */
+    public int[] getTermIDs( String kgram ) {
+        int s = slotOf( kgram );
+        return s < 0 ? new int[0] : termIDsOf( s );
+    }
+
+
+    /**
+     *  Returns the sorted IDs of the terms containing all the given k-grams,
+     *  intersecting the shortest lists first.
+     */
+    public int[] getTermIDs( String[] kgrams ) {
+        if ( kgrams.length == 0 ) return new int[0];
+        Integer[] order = new Integer[kgrams.length];
+        for ( int i=0; i<kgrams.length; i++ ) {
+            order[i] = slotOf( kgrams[i] );
+            if ( order[i] < 0 ) return new int[0];
+        }
+        Arrays.sort( order, ( x, y ) -> sizeOf( x ) - sizeOf( y ));
+        int[] result = termIDsOf( order[0] );
+        int n = result.length;
+        for ( int i=1; i<order.length && n>0; i++ ) {
+            int[] other = termIDsOf( order[i] );
+            n = intersect( result, n, other, other.length, result );
+        }
+        return Arrays.copyOf( result, n );
+    }
+
+
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kgram) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+        int s = slotOf(kgram);
+        if (s < 0) return null;
+        int[] ids = termIDsOf(s);
+        return toEntries(ids, ids.length);
     }
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
+        if (mapped != null) {
+            int id = mappedTermID(term);
+            return id < 0 ? null : id;
+        }
         return term2id.get(term);
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        if (id == null || id < 0 || id >= numberOfTerms()) return null;
+        if (mapped != null) return mappedTerm(id);
+        return id2term[id];
     }
 
+
+    /* --------------------------------------------- *
+     *
+     *  The index on disk. All positions are from the start of the file.
+     *
+     *    header:     int MAGIC, int VERSION, int K, int numTerms,
+     *                int numKGrams, int dictCapacity, int termCapacity,
+     *                int postingsPos, int namesPos
+     *    dictionary: dictCapacity entries of (long k-gram, int position of
+     *                its postings after postingsPos, int number of term IDs),
+     *                an open-addressing table where a free entry has
+     *                position -1
+     *    term table: termCapacity ints, an open-addressing table from the
+     *                hash of a term to its ID + 1, 0 for a free entry
+     *    offsets:    int offset of the name of term i after namesPos, for
+     *                every i, followed by the total size of the names
+     *    postings:   the term IDs of every k-gram as variable-byte gaps
+     *    names:      the terms in UTF-8, one after the other
+     *
+     * --------------------------------------------- */
+
+
+    /** Identifies a k-gram index file ("IRKG"). */
+    static final int MAGIC = 0x49524b47;
+
+    /** Version of the layout. */
+    static final int VERSION = 1;
+
+    /** Name of the k-gram index file in the index directory. */
+    public static final String KGRAMS_FNAME = "kgrams";
+
+    static final int HEADER_SIZE = 9 * 4;
+
+    static final int DICT_ENTRY_SIZE = 8 + 4 + 4;
+
+    /** The mapped file, or null if the index is in memory. */
+    private ByteBuffer mapped = null;
+
+    private int mappedTerms, dictCapacity, termCapacity, dictPos, termTablePos, offsetsPos, postingsPos, namesPos;
+
+
+    /** Number of terms in the index. */
+    public int numberOfTerms() {
+        return mapped != null ? mappedTerms : lastTermID + 1;
+    }
+
+
+    /**
+     *  A checksum of the terms in ID order (CRC-32 of each term in UTF-8
+     *  followed by a newline), the same whether the index is mapped or in
+     *  memory. Files built from the term IDs store it, to tell whether they
+     *  were built for these terms.
+     */
+    public synchronized int termsChecksum() {
+        CRC32 crc = new CRC32();
+        int n = numberOfTerms();
+        if ( mapped != null ) {
+            ByteBuffer view = mapped.duplicate();
+            for ( int id=0; id<n; id++ ) {
+                view.limit( namesPos + mapped.getInt( offsetsPos + 4*id + 4 ));
+                view.position( namesPos + mapped.getInt( offsetsPos + 4*id ));
+                crc.update( view );
+                crc.update( '\n' );
+            }
+        } else {
+            for ( int id=0; id<n; id++ ) {
+                crc.update( id2term[id].getBytes( StandardCharsets.UTF_8 ));
+                crc.update( '\n' );
+            }
+        }
+        return (int)crc.getValue();
+    }
+
+
+    private static int hashSlot( int h, int mask ) {
+        int x = h * 0x9E3779B9;
+        return ( x ^ ( x >>> 16 )) & mask;
+    }
+
+
+    private int mappedSlot( long key ) {
+        int mask = dictCapacity - 1;
+        int i = LongIntMap.slot( key, mask );
+        while ( true ) {
+            int pos = dictPos + DICT_ENTRY_SIZE*i;
+            if ( mapped.getInt( pos + 8 ) < 0 ) return -1;
+            if ( mapped.getLong( pos ) == key ) return i;
+            i = ( i + 1 ) & mask;
+        }
+    }
+
+
+    private String mappedTerm( int id ) {
+        int start = mapped.getInt( offsetsPos + 4*id );
+        int end = mapped.getInt( offsetsPos + 4*id + 4 );
+        byte[] name = new byte[end - start];
+        ByteBuffer view = mapped.duplicate();
+        view.position( namesPos + start );
+        view.get( name );
+        return new String( name, StandardCharsets.UTF_8 );
+    }
+
+
+    private int mappedTermID( String term ) {
+        int mask = termCapacity - 1;
+        int i = hashSlot( term.hashCode(), mask );
+        while ( true ) {
+            int id = mapped.getInt( termTablePos + 4*i ) - 1;
+            if ( id < 0 ) return -1;
+            if ( mappedTerm( id ).equals( term )) return id;
+            i = ( i + 1 ) & mask;
+        }
+    }
+
+
+    /**
+     *  Maps the index written by {@link #save} to <code>file</code>.
+     *
+     *  @return false if there is no such file, or it is an index for another K.
+     */
+    public synchronized boolean load( File file ) throws IOException {
+        if ( !file.exists() ) return false;
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            long size = channel.size();
+            if ( size < HEADER_SIZE ) return false;
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            if ( buf.getInt( 0 ) != MAGIC || buf.getInt( 4 ) != VERSION || buf.getInt( 8 ) != K ) return false;
+            mappedTerms = buf.getInt( 12 );
+            numKGrams = buf.getInt( 16 );
+            dictCapacity = buf.getInt( 20 );
+            termCapacity = buf.getInt( 24 );
+            postingsPos = buf.getInt( 28 );
+            namesPos = buf.getInt( 32 );
+            dictPos = HEADER_SIZE;
+            termTablePos = dictPos + DICT_ENTRY_SIZE*dictCapacity;
+            offsetsPos = termTablePos + 4*termCapacity;
+            mapped = buf;
+        }
+        index = new LongIntMap();
+        term2id = new HashMap<String,Integer>();
+        postings = new int[1024][];
+        postingsSize = new int[1024];
+        slotKGram = new long[1024];
+        id2term = new String[1024];
+        lastTermID = -1;
+        return true;
+    }
+
+
+    /**
+     *  Reads a mapped index into memory, so that terms can be inserted.
+     */
+    private void materialize() {
+        if ( mapped == null ) return;
+        int n = mappedTerms;
+        String[] terms = new String[Math.max( 1024, n )];
+        for ( int id=0; id<n; id++ ) {
+            terms[id] = mappedTerm( id );
+            term2id.put( terms[id], id );
+        }
+        int kgrams = numKGrams;
+        postings = new int[Math.max( 1024, kgrams )][];
+        postingsSize = new int[postings.length];
+        slotKGram = new long[postings.length];
+        numKGrams = 0;
+        for ( int i=0; i<dictCapacity; i++ ) {
+            int pos = dictPos + DICT_ENTRY_SIZE*i;
+            if ( mapped.getInt( pos + 8 ) < 0 ) continue;
+            int[] ids = termIDsOf( i );
+            int s = newSlot( mapped.getLong( pos ));
+            postings[s] = ids.length > 0 ? ids : new int[4];
+            postingsSize[s] = ids.length;
+        }
+        id2term = terms;
+        lastTermID = n - 1;
+        mapped = null;
+    }
+
+
+    /**
+     *  Writes the index to <code>file</code>. A mapped index that has not
+     *  changed since it was loaded is already on disk, and is not written.
+     */
+    public synchronized void save( File file ) throws IOException {
+        if ( mapped != null ) return;
+        int n = lastTermID + 1;
+        int dictCap = Integer.highestOneBit( Math.max( 2, 2*numKGrams ) - 1 ) << 1;
+        int termCap = Integer.highestOneBit( Math.max( 2, 2*n ) - 1 ) << 1;
+
+        // The postings, and their positions in the dictionary order
+        ByteArrayOutputStream postingsBytes = new ByteArrayOutputStream();
+        DataOutputStream pout = new DataOutputStream( postingsBytes );
+        int[] dictSlot = new int[dictCap];
+        Arrays.fill( dictSlot, -1 );
+        int[] position = new int[numKGrams];
+        for ( int s=0; s<numKGrams; s++ ) {
+            int i = LongIntMap.slot( slotKGram[s], dictCap - 1 );
+            while ( dictSlot[i] >= 0 ) i = ( i + 1 ) & ( dictCap - 1 );
+            dictSlot[i] = s;
+            position[s] = pout.size();
+            int prev = 0;
+            for ( int j=0; j<postingsSize[s]; j++ ) {
+                VByte.write( pout, postings[s][j] - prev );
+                prev = postings[s][j];
+            }
+        }
+        byte[][] names = new byte[n][];
+        int[] termTable = new int[termCap];
+        for ( int id=0; id<n; id++ ) {
+            names[id] = id2term[id].getBytes( StandardCharsets.UTF_8 );
+            int i = hashSlot( id2term[id].hashCode(), termCap - 1 );
+            while ( termTable[i] != 0 ) i = ( i + 1 ) & ( termCap - 1 );
+            termTable[i] = id + 1;
+        }
+
+        int pPos = HEADER_SIZE + DICT_ENTRY_SIZE*dictCap + 4*termCap + 4*(n+1);
+        int nPos = pPos + pout.size();
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( K );
+            out.writeInt( n );
+            out.writeInt( numKGrams );
+            out.writeInt( dictCap );
+            out.writeInt( termCap );
+            out.writeInt( pPos );
+            out.writeInt( nPos );
+            for ( int i=0; i<dictCap; i++ ) {
+                int s = dictSlot[i];
+                out.writeLong( s < 0 ? 0 : slotKGram[s] );
+                out.writeInt( s < 0 ? -1 : position[s] );
+                out.writeInt( s < 0 ? 0 : postingsSize[s] );
+            }
+            for ( int i=0; i<termCap; i++ ) {
+                out.writeInt( termTable[i] );
+            }
+            int offset = 0;
+            for ( int id=0; id<n; id++ ) {
+                out.writeInt( offset );
+                offset += names[id].length;
+            }
+            out.writeInt( offset );
+            postingsBytes.writeTo( out );
+            for ( int id=0; id<n; id++ ) {
+                out.write( names[id] );
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
     private static HashMap<String,String> decodeArgs( String[] args ) {
         HashMap<String,String> decodedArgs = new HashMap<String,String>();
         int i=0, j=0;
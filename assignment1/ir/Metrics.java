@@ -0,0 +1,345 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+
+/**
+ *  Counters and latency histograms of the search engine, published as JMX
+ *  MBeans in the domain "ir", so that they can be watched with a JMX
+ *  client such as jconsole:
+ *  <pre>
+ *    ir:type=Search,query=Q[,ranking=R]   latency of the searches of each kind
+ *    ir:type=Spelling                     latency of the spelling corrections
+ *    ir:type=Cache,name=N                 hits and misses of each cache
+ *    ir:type=Index                        size of the index, postings and disk reads
+ *  </pre>
+ *
+ *  Recording is cheap (a few uncontended atomic additions), so it is
+ *  always on; the MBeans are registered by {@link #register}.
+ */
+public class Metrics {
+
+    /** The JMX domain of the MBeans. */
+    public static final String DOMAIN = "ir";
+
+    /** Number of postings lists read from the index. */
+    static final LongAdder postingsListsRead = new LongAdder();
+
+    /** Number of postings in those lists. */
+    static final LongAdder postingsRead = new LongAdder();
+
+    /** Number of postings decoded from bytes read from disk. */
+    static final LongAdder postingsDecoded = new LongAdder();
+
+    /** Number of reads from the index files. */
+    static final LongAdder diskReads = new LongAdder();
+
+    /** Number of bytes read from the index files. */
+    static final LongAdder diskBytesRead = new LongAdder();
+
+    /** Latency of the spelling corrections. */
+    public static final Latency spelling = new Latency();
+
+    /** The wildcard expansions of the {@link Searcher}. */
+    public static final Cache wildcardCache = new Cache();
+
+    /** The corrections of misspelled terms of the {@link SpellChecker}. */
+    public static final Cache correctionCache = new Cache();
+
+    /** Latency of the searches, by query type and ranking type. */
+    private static final ConcurrentHashMap<String,Latency> searches = new ConcurrentHashMap<String,Latency>();
+
+    /** The server the MBeans are registered with, or null before {@link #register}. */
+    private static MBeanServer server = null;
+
+
+    /* --------------------------------------------- */
+
+
+    /** The attributes of a {@link Latency}. */
+    public interface LatencyMBean {
+        long getCount();
+        double getMeanMillis();
+        double getMaxMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        void reset();
+    }
+
+
+    /**
+     *  A histogram of durations, with one bucket per power of two of
+     *  microseconds. Percentiles are the upper bounds of their buckets, so
+     *  they are at most twice too large.
+     */
+    public static class Latency implements LatencyMBean {
+        static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        /** Records a duration, in nanoseconds. */
+        public void record( long nanos ) {
+            long micros = Math.max( 0, nanos / 1000 );
+            int b = Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ));
+            buckets.incrementAndGet( b );
+            count.increment();
+            totalMicros.add( micros );
+            maxMicros.accumulateAndGet( micros, Math::max );
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalMicros.sum() / 1000.0 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros.get() / 1000.0;
+        }
+
+        public double getP50Millis() {
+            return percentile( 0.5 );
+        }
+
+        public double getP90Millis() {
+            return percentile( 0.9 );
+        }
+
+        public double getP99Millis() {
+            return percentile( 0.99 );
+        }
+
+        /** The duration below which a fraction <code>p</code> of the durations are, in milliseconds. */
+        double percentile( double p ) {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for ( int b=0; b<BUCKETS; b++ ) {
+                counts[b] = buckets.get( b );
+                n += counts[b];
+            }
+            if ( n == 0 ) return 0;
+            long rank = (long)Math.ceil( p * n );
+            long seen = 0;
+            for ( int b=0; b<BUCKETS; b++ ) {
+                seen += counts[b];
+                if ( seen >= rank ) {
+                    // bucket b holds the durations in [2^(b-1), 2^b) microseconds
+                    return Math.min( 1L << b, maxMicros.get() ) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        public void reset() {
+            for ( int b=0; b<BUCKETS; b++ ) buckets.set( b, 0 );
+            count.reset();
+            totalMicros.reset();
+            maxMicros.set( 0 );
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** The attributes of a {@link Cache}. */
+    public interface CacheMBean {
+        long getHits();
+        long getMisses();
+        double getHitRate();
+        void reset();
+    }
+
+
+    /** The hits and misses of a cache. */
+    public static class Cache implements CacheMBean {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public void hit() {
+            hits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public double getHitRate() {
+            long h = hits.sum();
+            long n = h + misses.sum();
+            return n == 0 ? 0 : (double)h / n;
+        }
+
+        public void reset() {
+            hits.reset();
+            misses.reset();
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** The attributes of the index. */
+    public interface IndexMBean {
+        int getNumberOfDocuments();
+        int getNumberOfTerms();
+        long getSizeOnDiskBytes();
+        long getPostingsListsRead();
+        long getPostingsRead();
+        long getPostingsDecoded();
+        long getDiskReads();
+        long getDiskBytesRead();
+    }
+
+
+    /** The size of an index, and the postings and bytes read from it. */
+    static class IndexStats implements IndexMBean {
+        private final Index index;
+
+        IndexStats( Index index ) {
+            this.index = index;
+        }
+
+        public int getNumberOfDocuments() {
+            return index.numberOfDocs();
+        }
+
+        /** As counted by the index, which may be indexing meanwhile. */
+        public int getNumberOfTerms() {
+            return index.numberOfTerms();
+        }
+
+        public long getSizeOnDiskBytes() {
+            if ( index instanceof HashedIndex ) return 0;
+            File[] files = new File( PersistentHashedIndex.INDEXDIR ).listFiles();
+            long size = 0;
+            if ( files != null ) {
+                for ( File f : files ) size += f.length();
+            }
+            return size;
+        }
+
+        public long getPostingsListsRead() {
+            return postingsListsRead.sum();
+        }
+
+        public long getPostingsRead() {
+            return postingsRead.sum();
+        }
+
+        public long getPostingsDecoded() {
+            return postingsDecoded.sum();
+        }
+
+        public long getDiskReads() {
+            return diskReads.sum();
+        }
+
+        public long getDiskBytesRead() {
+            return diskBytesRead.sum();
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Records that a postings list of <code>size</code> postings was read from the index. */
+    public static void postingsRead( int size ) {
+        postingsListsRead.increment();
+        postingsRead.add( size );
+    }
+
+
+    /** Records that <code>n</code> postings were decoded from bytes read from disk. */
+    public static void postingsDecoded( int n ) {
+        postingsDecoded.add( n );
+    }
+
+
+    /** Records a read of <code>bytes</code> bytes from an index file. */
+    public static void diskRead( long bytes ) {
+        diskReads.increment();
+        diskBytesRead.add( bytes );
+    }
+
+
+    /**
+     *  The latency of the searches of a query type and, for ranked queries,
+     *  a ranking type (null otherwise). Created and registered when first used.
+     */
+    public static Latency search( QueryType queryType, RankingType rankingType ) {
+        String name = "type=Search,query=" + queryType + ( rankingType == null ? "" : ",ranking=" + rankingType );
+        Latency latency = searches.get( name );
+        if ( latency == null ) {
+            latency = searches.computeIfAbsent( name, k -> {
+                Latency l = new Latency();
+                publish( k, l, LatencyMBean.class );
+                return l;
+            });
+        }
+        return latency;
+    }
+
+
+    /**
+     *  Registers the MBeans with the platform MBean server, those of the
+     *  index being about <code>index</code>.
+     */
+    public static synchronized void register( Index index ) {
+        server = ManagementFactory.getPlatformMBeanServer();
+        publish( "type=Index", new IndexStats( index ), IndexMBean.class );
+        publish( "type=Spelling", spelling, LatencyMBean.class );
+        publish( "type=Cache,name=wildcards", wildcardCache, CacheMBean.class );
+        publish( "type=Cache,name=corrections", correctionCache, CacheMBean.class );
+        for ( Map.Entry<String,Latency> e : searches.entrySet() ) {
+            publish( e.getKey(), e.getValue(), LatencyMBean.class );
+        }
+    }
+
+
+    /** Registers an MBean, replacing one of the same name, if {@link #register} has been called. */
+    private static synchronized <T> void publish( String name, T mbean, Class<T> type ) {
+        if ( server == null ) return;
+        try {
+            ObjectName objectName = new ObjectName( DOMAIN + ":" + name );
+            if ( server.isRegistered( objectName )) server.unregisterMBean( objectName );
+            server.registerMBean( new StandardMBean( mbean, type ), objectName );
+        } catch ( JMException e ) {
+            System.err.println( "Warning: could not register the MBean " + name + ": " + e.getMessage() );
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ *  Estimates PageRank with stored random walks, so that the ranks can be
+ *  updated when links are added or removed without computing them again.
+ *
+ *  From every page, <code>walksPerNode</code> walks are started. At every
+ *  step a walk stops with probability {@link PageRank#BORED}, stops at a
+ *  page without out-links, and otherwise follows a random out-link. The
+ *  rank of a page is its share of all visits, which converges to its
+ *  PageRank (Avrachenkov et al., "Monte Carlo methods in PageRank
+ *  computation", 2007).
+ *
+ *  The walks are kept, together with the walks visiting each page. When a
+ *  link u&rarr;v is added, a walk that left u continues along the new link
+ *  with probability 1/outdegree(u), and is rerun from there; when it is
+ *  removed, the walks that used it are rerun from u. Only the walks through
+ *  u change (Bahmani et al., "Fast incremental and personalized PageRank",
+ *  2010), and the new ranks are published to the {@link DocMetadata} the
+ *  searcher reads. The engine does this with the options -mc and -mcu,
+ *  following a file of link changes as it is written (see {@link #follow}).
+ *
+ *  Updates are made by one thread at a time; searches can read the published
+ *  ranks meanwhile.
+ */
+public class MonteCarloPageRank {
+
+    /** Default number of walks started from every page. */
+    public static final int WALKS_PER_NODE = 8;
+
+    /** Number of walks started from every page. */
+    final int walksPerNode;
+
+    /** Number of pages. */
+    int n;
+
+    /** The number of each nodeID. */
+    final HashMap<String,Integer> numbers = new HashMap<String,Integer>();
+
+    /** The title of each page. */
+    String[] titles;
+
+    /** The out-links of each page, in <code>out[i][0]</code> to <code>out[i][outCount[i]-1]</code>. */
+    int[][] out;
+    int[] outCount;
+
+    /** The pages visited by each walk, in <code>walks[w][0]</code> to <code>walks[w][walkLength[w]-1]</code>. */
+    int[][] walks;
+    int[] walkLength;
+
+    /** The walks that stopped at a page without out-links. */
+    final BitSet danglingEnd = new BitSet();
+
+    /** Number of walks. */
+    int numWalks = 0;
+
+    /**
+     *  The walks visiting each page. A walk is listed at most once in a row,
+     *  and may still be listed after it has been rerun elsewhere.
+     */
+    int[][] visitors;
+    int[] visitorCount;
+
+    /** Number of visits to each page, and in total. */
+    int[] visits;
+    long totalVisits = 0;
+
+    /** Random numbers for the walks. */
+    final SplittableRandom random;
+
+    /** The document metadata the ranks are published to, or null. */
+    private DocMetadata target = null;
+
+    /** The docID of every title in <code>target</code>. */
+    private HashMap<String,Integer> docByTitle = null;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Reads the link graph and starts the walks from every page, using
+     *  <code>threads</code> threads.
+     *
+     *  @param titlesFilename The titles file, or null if the nodeIDs are the titles.
+     */
+    public MonteCarloPageRank( String linksFilename, String titlesFilename, int walksPerNode, int threads, long seed ) throws IOException, InterruptedException {
+        this.walksPerNode = walksPerNode;
+        this.random = new SplittableRandom( seed );
+        PageRank graph = new PageRank( linksFilename, titlesFilename );
+        n = graph.numberOfNodes;
+        titles = graph.titles;
+        for ( int i=0; i<n; i++ ) {
+            numbers.put( graph.nodeIDs[i], i );
+        }
+        // Turn the in-links into out-links
+        outCount = new int[n];
+        out = new int[n][];
+        for ( int i=0; i<n; i++ ) {
+            out[i] = new int[Math.max( 1, graph.outDegree[i] )];
+        }
+        for ( int j=0; j<n; j++ ) {
+            for ( int e=graph.inStart[j]; e<graph.inStart[j+1]; e++ ) {
+                int i = graph.inFrom[e];
+                out[i][outCount[i]++] = j;
+            }
+        }
+        visits = new int[n];
+        visitors = new int[n][];
+        visitorCount = new int[n];
+        for ( int i=0; i<n; i++ ) {
+            visitors[i] = new int[2 * walksPerNode];
+        }
+        startWalks( threads );
+    }
+
+
+    /**
+     *  Starts the walks of all pages in parallel, then counts the visits.
+     */
+    private void startWalks( int threads ) throws InterruptedException {
+        numWalks = n * walksPerNode;
+        walks = new int[Math.max( 16, numWalks )][];
+        walkLength = new int[walks.length];
+        final boolean[] dangling = new boolean[numWalks];
+        int chunks = 4 * Math.max( 1, threads );
+        SplittableRandom[] rnd = new SplittableRandom[chunks];
+        for ( int c=0; c<chunks; c++ ) {
+            rnd[c] = random.split();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, threads ));
+        try {
+            ArrayList<Future<?>> parts = new ArrayList<Future<?>>();
+            for ( int c=0; c<chunks; c++ ) {
+                final int from = (int)((long)n * c / chunks);
+                final int to = (int)((long)n * (c+1) / chunks);
+                final SplittableRandom r = rnd[c];
+                parts.add( pool.submit( () -> {
+                    int[] path = new int[16];
+                    for ( int i=from; i<to; i++ ) {
+                        for ( int k=0; k<walksPerNode; k++ ) {
+                            int len = 0;
+                            int x = i;
+                            path[len++] = x;
+                            while ( r.nextDouble() >= PageRank.BORED ) {
+                                if ( outCount[x] == 0 ) {
+                                    dangling[i * walksPerNode + k] = true;
+                                    break;
+                                }
+                                x = out[x][r.nextInt( outCount[x] )];
+                                if ( len == path.length ) path = Arrays.copyOf( path, 2*len );
+                                path[len++] = x;
+                            }
+                            int w = i * walksPerNode + k;
+                            walks[w] = Arrays.copyOf( path, len );
+                            walkLength[w] = len;
+                        }
+                    }
+                }));
+            }
+            for ( Future<?> part : parts ) {
+                part.get();
+            }
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+        for ( int w=0; w<numWalks; w++ ) {
+            if ( dangling[w] ) danglingEnd.set( w );
+            for ( int p=0; p<walkLength[w]; p++ ) {
+                visit( w, walks[w][p] );
+            }
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Counts a visit of walk <code>w</code> to page <code>x</code>. */
+    private void visit( int w, int x ) {
+        visits[x]++;
+        totalVisits++;
+        int c = visitorCount[x];
+        if ( c > 0 && visitors[x][c-1] == w ) return;
+        if ( c == visitors[x].length ) {
+            visitors[x] = Arrays.copyOf( visitors[x], 2*c );
+        }
+        visitors[x][visitorCount[x]++] = w;
+    }
+
+
+    /** Appends page <code>x</code> to walk <code>w</code>. */
+    private void append( int w, int x ) {
+        int len = walkLength[w];
+        if ( len == walks[w].length ) {
+            walks[w] = Arrays.copyOf( walks[w], 2*len );
+        }
+        walks[w][len] = x;
+        walkLength[w] = len + 1;
+        visit( w, x );
+    }
+
+
+    /** Continues walk <code>w</code> at random from its last page. */
+    private void continueWalk( int w ) {
+        int x = walks[w][walkLength[w]-1];
+        danglingEnd.clear( w );
+        while ( random.nextDouble() >= PageRank.BORED ) {
+            if ( outCount[x] == 0 ) {
+                danglingEnd.set( w );
+                return;
+            }
+            x = out[x][random.nextInt( outCount[x] )];
+            append( w, x );
+        }
+    }
+
+
+    /**
+     *  Reruns walk <code>w</code> after position <code>p</code>: the walk
+     *  goes on to page <code>next</code>, or stops at a dangling page if
+     *  <code>next</code> is -1, and continues at random from there.
+     */
+    private void reroute( int w, int p, int next ) {
+        for ( int q=p+1; q<walkLength[w]; q++ ) {
+            visits[walks[w][q]]--;
+            totalVisits--;
+        }
+        walkLength[w] = p + 1;
+        if ( next < 0 ) {
+            danglingEnd.set( w );
+            return;
+        }
+        append( w, next );
+        continueWalk( w );
+    }
+
+
+    /** Starts a new walk from page <code>x</code>. */
+    private void startWalk( int x ) {
+        if ( numWalks == walks.length ) {
+            walks = Arrays.copyOf( walks, 2*numWalks );
+            walkLength = Arrays.copyOf( walkLength, 2*numWalks );
+        }
+        int w = numWalks++;
+        walks[w] = new int[16];
+        walkLength[w] = 0;
+        append( w, x );
+        continueWalk( w );
+    }
+
+
+    /** Returns the number of a nodeID, adding a page with its own walks if it is new. */
+    private int node( String nodeID ) {
+        Integer i = numbers.get( nodeID );
+        if ( i != null ) return i;
+        if ( n == out.length ) {
+            int size = Math.max( 16, 2*n );
+            out = Arrays.copyOf( out, size );
+            outCount = Arrays.copyOf( outCount, size );
+            titles = Arrays.copyOf( titles, size );
+            visits = Arrays.copyOf( visits, size );
+            visitors = Arrays.copyOf( visitors, size );
+            visitorCount = Arrays.copyOf( visitorCount, size );
+        }
+        int x = n++;
+        numbers.put( nodeID, x );
+        titles[x] = nodeID;
+        out[x] = new int[1];
+        visitors[x] = new int[2 * walksPerNode];
+        for ( int k=0; k<walksPerNode; k++ ) {
+            startWalk( x );
+        }
+        return x;
+    }
+
+
+    /**
+     *  Drops the walks from the list of visitors of page <code>u</code>
+     *  that no longer visit it.
+     */
+    private void compactVisitors( int u ) {
+        int kept = 0;
+        for ( int i=0; i<visitorCount[u]; i++ ) {
+            int w = visitors[u][i];
+            if ( kept > 0 && visitors[u][kept-1] == w ) continue;
+            if ( position( w, u, -1 ) >= 0 ) {
+                visitors[u][kept++] = w;
+            }
+        }
+        visitorCount[u] = kept;
+    }
+
+
+    /**
+     *  Returns the first position of page <code>u</code> in walk
+     *  <code>w</code> followed by page <code>v</code> (any page if
+     *  <code>v</code> is -1), or -1.
+     */
+    private int position( int w, int u, int v ) {
+        int[] walk = walks[w];
+        for ( int p=0; p<walkLength[w]; p++ ) {
+            if ( walk[p] == u && ( v < 0 || ( p+1 < walkLength[w] && walk[p+1] == v ))) return p;
+        }
+        return -1;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Adds the link <code>from</code>&rarr;<code>to</code>, creating pages
+     *  that are new, and reruns the walks that now take it.
+     *
+     *  @return The number of walks rerun.
+     */
+    public synchronized int addEdge( String from, String to ) {
+        int u = node( from );
+        int v = node( to );
+        for ( int i=0; i<outCount[u]; i++ ) {
+            if ( out[u][i] == v ) return 0;
+        }
+        if ( outCount[u] == out[u].length ) {
+            out[u] = Arrays.copyOf( out[u], 2 * out[u].length );
+        }
+        out[u][outCount[u]++] = v;
+        int degree = outCount[u];
+        compactVisitors( u );
+        int[] affected = Arrays.copyOf( visitors[u], visitorCount[u] );
+        int rerun = 0;
+        for ( int w : affected ) {
+            int[] walk = walks[w];
+            int len = walkLength[w];
+            for ( int p=0; p<len; p++ ) {
+                if ( walk[p] != u ) continue;
+                if ( p == len-1 ) {
+                    // The walk would have gone on if u had had out-links
+                    if ( danglingEnd.get( w )) {
+                        reroute( w, p, v );
+                        rerun++;
+                    }
+                    break;
+                }
+                if ( random.nextInt( degree ) == 0 ) {
+                    reroute( w, p, v );
+                    rerun++;
+                    break;
+                }
+            }
+        }
+        return rerun;
+    }
+
+
+    /**
+     *  Removes the link <code>from</code>&rarr;<code>to</code>, and reruns
+     *  the walks that took it.
+     *
+     *  @return The number of walks rerun.
+     */
+    public synchronized int removeEdge( String from, String to ) {
+        Integer u = numbers.get( from );
+        Integer v = numbers.get( to );
+        if ( u == null || v == null ) return 0;
+        int i = 0;
+        while ( i < outCount[u] && out[u][i] != v ) i++;
+        if ( i == outCount[u] ) return 0;
+        out[u][i] = out[u][--outCount[u]];
+        compactVisitors( u );
+        int[] affected = Arrays.copyOf( visitors[u], visitorCount[u] );
+        int rerun = 0;
+        for ( int w : affected ) {
+            int p = position( w, u, v );
+            if ( p < 0 ) continue;
+            // The walk went on from u, so it takes one of the remaining links
+            int next = outCount[u] == 0 ? -1 : out[u][random.nextInt( outCount[u] )];
+            reroute( w, p, next );
+            rerun++;
+        }
+        return rerun;
+    }
+
+
+    /**
+     *  Applies one line of link changes: "+from;to" adds a link and
+     *  "-from;to" removes it.
+     *
+     *  @return The number of walks rerun, or -1 if the line is not a link change.
+     */
+    public int update( String line ) {
+        int semi = line.indexOf( ';' );
+        if ( line.length() < 2 || semi < 0 ) return -1;
+        String from = line.substring( 1, semi ).trim();
+        String to = line.substring( semi+1 ).trim();
+        if ( line.charAt( 0 ) == '+' ) {
+            return addEdge( from, to );
+        } else if ( line.charAt( 0 ) == '-' ) {
+            return removeEdge( from, to );
+        }
+        return -1;
+    }
+
+
+    /**
+     *  Follows a file of link changes as it grows, like "tail -f": every
+     *  <code>pollMs</code> milliseconds, the complete lines added since the
+     *  last look are applied as one batch, and the new ranks are published.
+     *  If the file gets shorter, it is read again from the start. Returns
+     *  when the thread is interrupted.
+     */
+    public void follow( File updates, long pollMs ) {
+        long pos = 0;
+        byte[] buf = new byte[1 << 16];
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        while ( !Thread.currentThread().isInterrupted() ) {
+            int changes = 0, rerun = 0;
+            long startTime = System.currentTimeMillis();
+            try ( RandomAccessFile in = new RandomAccessFile( updates, "r" )) {
+                long length = in.length();
+                if ( length < pos ) {
+                    pos = 0;
+                    pending.reset();
+                }
+                in.seek( pos );
+                int n;
+                while ( pos < length && ( n = in.read( buf, 0, (int)Math.min( buf.length, length - pos ))) > 0 ) {
+                    pos += n;
+                    int start = 0;
+                    for ( int i=0; i<n; i++ ) {
+                        if ( buf[i] != '\n' ) continue;
+                        pending.write( buf, start, i - start );
+                        int r = update( new String( pending.toByteArray(), StandardCharsets.UTF_8 ).trim() );
+                        pending.reset();
+                        start = i + 1;
+                        if ( r < 0 ) continue;
+                        rerun += r;
+                        changes++;
+                    }
+                    // an incomplete last line is kept until the rest is written
+                    pending.write( buf, start, n - start );
+                }
+            } catch ( FileNotFoundException e ) {
+                // not written yet
+            } catch ( IOException e ) {
+                System.err.println( "Warning: could not read the link changes: " + e.getMessage() );
+            }
+            if ( changes > 0 ) {
+                publish();
+                long elapsedTime = System.currentTimeMillis() - startTime;
+                System.err.println( String.format( "%d link changes, %d walks rerun in %.3f seconds.", changes, rerun, elapsedTime/1000.0 ));
+            }
+            try {
+                Thread.sleep( pollMs );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** The estimated PageRank of page <code>x</code>. */
+    public double rank( int x ) {
+        return totalVisits == 0 ? 0 : (double)visits[x] / totalVisits;
+    }
+
+
+    /** The estimated PageRank of all pages. */
+    public double[] ranks() {
+        double[] r = new double[n];
+        for ( int x=0; x<n; x++ ) r[x] = rank( x );
+        return r;
+    }
+
+
+    /**
+     *  Publishes the ranks to <code>metadata</code> now and after every
+     *  {@link #publish()}, matching titles and file names of documents.
+     */
+    public synchronized void attach( DocMetadata metadata ) {
+        target = metadata;
+        docByTitle = new HashMap<String,Integer>();
+        for ( int docID=0; docID<metadata.size(); docID++ ) {
+            String name = metadata.name( docID );
+            if ( name != null ) docByTitle.put( DocMetadata.fileName( name ), docID );
+        }
+        publish();
+    }
+
+
+    /**
+     *  Publishes the current ranks to the attached document metadata, as
+     *  a new rank vector indexed by docID.
+     */
+    public synchronized void publish() {
+        if ( target == null ) return;
+        float[] r = new float[target.size()];
+        for ( int x=0; x<n; x++ ) {
+            Integer docID = docByTitle.get( titles[x] );
+            if ( docID != null && docID < r.length ) {
+                r[docID] = (float)rank( x );
+            }
+        }
+        target.setRanks( r );
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -l <filename> : the links file (mandatory)" );
+        System.err.println( "  -t <filename> : the titles file" );
+        System.err.println( "  -o <filename> : the rank file to be written (mandatory)" );
+        System.err.println( "  -u <filename> : link changes to apply, lines +from;to or -from;to" );
+        System.err.println( "  -w <n> : the number of walks per page (default " + WALKS_PER_NODE + ")" );
+        System.err.println( "  -threads <n> : the number of threads (default: number of cores)" );
+    }
+
+
+    public static void main( String[] args ) {
+        String links = null;
+        String titles = null;
+        String out = null;
+        String updates = null;
+        int walks = WALKS_PER_NODE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i=0;
+        while ( i < args.length ) {
+            if ( "-l".equals( args[i] ) && i+1 < args.length ) {
+                links = args[i+1];
+            } else if ( "-t".equals( args[i] ) && i+1 < args.length ) {
+                titles = args[i+1];
+            } else if ( "-o".equals( args[i] ) && i+1 < args.length ) {
+                out = args[i+1];
+            } else if ( "-u".equals( args[i] ) && i+1 < args.length ) {
+                updates = args[i+1];
+            } else if ( "-w".equals( args[i] ) && i+1 < args.length ) {
+                walks = Integer.parseInt( args[i+1] );
+            } else if ( "-threads".equals( args[i] ) && i+1 < args.length ) {
+                threads = Integer.parseInt( args[i+1] );
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += 2;
+        }
+        if ( links == null || out == null ) {
+            printHelpMessage();
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            MonteCarloPageRank mc = new MonteCarloPageRank( links, titles, walks, threads, System.nanoTime() );
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            System.err.println( String.format( "%d walks over %d pages in %.1f seconds.", mc.numWalks, mc.n, elapsedTime/1000.0 ));
+            if ( updates != null ) {
+                startTime = System.currentTimeMillis();
+                int changes = 0, rerun = 0;
+                try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( updates ), StandardCharsets.UTF_8 ))) {
+                    String line;
+                    while (( line = in.readLine()) != null ) {
+                        int r = mc.update( line );
+                        if ( r < 0 ) continue;
+                        rerun += r;
+                        changes++;
+                    }
+                }
+                elapsedTime = System.currentTimeMillis() - startTime;
+                System.err.println( String.format( "%d link changes, %d walks rerun in %.3f seconds.", changes, rerun, elapsedTime/1000.0 ));
+            }
+            PageRank.write( new File( out ), mc.n, mc.ranks(), mc.titles );
+        } catch ( IOException | InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+}
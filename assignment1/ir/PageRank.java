@@ -0,0 +1,497 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ *  Computes the PageRank of every page in a link graph, and writes the
+ *  ranks to a binary file that {@link Indexer#buildRankMap} reads.
+ *
+ *  The links file has the same format as for {@link HITSRanker}:
+ *  <pre>
+ *    nodeID;outNodeID1,outNodeID2,...,outNodeIDK
+ *  </pre>
+ *  and the titles file maps nodeIDs to page titles (file names):
+ *  <pre>
+ *    nodeID;pageTitle
+ *  </pre>
+ *
+ *  The graph is kept in compressed sparse row form: the in-links of node
+ *  <code>j</code> are <code>inFrom[inStart[j]]</code> to
+ *  <code>inFrom[inStart[j+1]-1]</code>. Power iteration then only reads
+ *  flat arrays, and the nodes are split in ranges of about the same number
+ *  of links that are computed in parallel. The rank of the dangling nodes
+ *  (pages without out-links) is spread evenly over all pages.
+ *
+ *  Layout of the rank file:
+ *  <pre>
+ *    header:  int MAGIC, int VERSION, int number of nodes n
+ *    ranks:   float rank of node i, for every i
+ *    titles:  short length, title in UTF-8, for every i
+ *  </pre>
+ */
+public class PageRank {
+
+    /** Identifies a rank file ("IRPR"). */
+    public static final int MAGIC = 0x49525052;
+
+    /** Version of the layout. */
+    public static final int VERSION = 1;
+
+    /** Probability that the surfer gets bored and jumps to a random page. */
+    final static double BORED = 0.15;
+
+    /** Iteration stops when the ranks change less than this (L1 norm). */
+    final static double EPSILON = 1e-6;
+
+    /** Max number of iterations. */
+    final static int MAX_NUMBER_OF_ITERATIONS = 1000;
+
+    /** Number of nodes. */
+    int numberOfNodes = 0;
+
+    /** The nodeID of each node, as written in the links file. */
+    String[] nodeIDs;
+
+    /** The title of each node, or its nodeID if it has no title. */
+    String[] titles;
+
+    /** Number of distinct out-links of each node. */
+    int[] outDegree;
+
+    /** Start of the in-links of each node in <code>inFrom</code>; entry n is the number of links. */
+    int[] inStart;
+
+    /** The nodes linking to each node, node by node. */
+    int[] inFrom;
+
+    /** The computed ranks, summing to 1. */
+    double[] ranks;
+
+    /** Number of iterations of the last computation. */
+    int iterations = 0;
+
+    /** The numbers of the nodeIDs, while the files are read. */
+    private NodeNumbers ids;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Reads the link graph and the titles of the nodes.
+     *
+     *  @param titlesFilename The titles file, or null if the nodeIDs are the titles.
+     */
+    public PageRank( String linksFilename, String titlesFilename ) throws IOException {
+        readGraph( linksFilename );
+        titles = nodeIDs.clone();
+        if ( titlesFilename != null ) {
+            readTitles( titlesFilename );
+        }
+        ids = null;
+    }
+
+
+    /**
+     *  Numbers the nodeIDs 0, 1, 2, ... in order of appearance. Numeric
+     *  nodeIDs, the usual case, are looked up in an open-addressing table
+     *  of ints without creating any objects; others in a hash map.
+     */
+    private static class NodeNumbers {
+        int[] keys = new int[1 << 16];
+        int[] values = new int[1 << 16];
+        int used = 0;
+        HashMap<String,Integer> other = new HashMap<String,Integer>();
+        ArrayList<String> names = new ArrayList<String>();
+
+        /**
+         *  Returns the number of the nodeID in <code>line</code> from
+         *  <code>start</code> to <code>end</code>. If it has none, it gets
+         *  the next number if <code>add</code> is true, otherwise -1 is returned.
+         */
+        int get( String line, int start, int end, boolean add ) {
+            long v = 0;
+            boolean numeric = end - start > 0 && end - start < 10;
+            for ( int i=start; i<end && numeric; i++ ) {
+                char c = line.charAt( i );
+                numeric = c >= '0' && c <= '9';
+                v = 10*v + ( c - '0' );
+            }
+            if ( !numeric ) {
+                String id = line.substring( start, end );
+                Integer n = other.get( id );
+                if ( n == null ) {
+                    if ( !add ) return -1;
+                    n = names.size();
+                    other.put( id, n );
+                    names.add( id );
+                }
+                return n;
+            }
+            int key = (int)v + 1;   // 0 marks an empty slot
+            int mask = keys.length - 1;
+            int slot = ( key * 0x9E3779B9 ) >>> 7 & mask;
+            while ( keys[slot] != 0 ) {
+                if ( keys[slot] == key ) return values[slot];
+                slot = ( slot + 1 ) & mask;
+            }
+            if ( !add ) return -1;
+            keys[slot] = key;
+            values[slot] = names.size();
+            names.add( line.substring( start, end ));
+            if ( ++used * 2 > keys.length ) grow();
+            return names.size() - 1;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[2 * oldKeys.length];
+            values = new int[2 * oldKeys.length];
+            int mask = keys.length - 1;
+            for ( int i=0; i<oldKeys.length; i++ ) {
+                if ( oldKeys[i] == 0 ) continue;
+                int slot = ( oldKeys[i] * 0x9E3779B9 ) >>> 7 & mask;
+                while ( keys[slot] != 0 ) slot = ( slot + 1 ) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+
+    /**
+     *  Reads the links file and builds the in-link graph in CSR form.
+     *  Repeated links from one page to another are counted once.
+     */
+    void readGraph( String filename ) throws IOException {
+        ids = new NodeNumbers();
+        int[] from = new int[1 << 16];
+        int[] to = new int[1 << 16];
+        int m = 0;
+        int[] targets = new int[64];
+        try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( filename ), StandardCharsets.UTF_8 ), 1 << 16 )) {
+            String line;
+            while (( line = in.readLine()) != null ) {
+                int semi = line.indexOf( ';' );
+                int end = semi < 0 ? line.length() : semi;
+                int start = skipSpace( line, 0, end );
+                end = trimSpace( line, start, end );
+                if ( start == end ) continue;
+                int src = ids.get( line, start, end, true );
+                if ( semi < 0 ) continue;
+                int k = 0;
+                start = semi + 1;
+                while ( start < line.length() ) {
+                    int comma = line.indexOf( ',', start );
+                    if ( comma < 0 ) comma = line.length();
+                    int s = skipSpace( line, start, comma );
+                    int e = trimSpace( line, s, comma );
+                    if ( s < e ) {
+                        if ( k == targets.length ) targets = Arrays.copyOf( targets, 2*k );
+                        targets[k++] = ids.get( line, s, e, true );
+                    }
+                    start = comma + 1;
+                }
+                Arrays.sort( targets, 0, k );
+                for ( int i=0; i<k; i++ ) {
+                    if ( i > 0 && targets[i] == targets[i-1] ) continue;
+                    if ( m == from.length ) {
+                        from = Arrays.copyOf( from, 2*m );
+                        to = Arrays.copyOf( to, 2*m );
+                    }
+                    from[m] = src;
+                    to[m] = targets[i];
+                    m++;
+                }
+            }
+        }
+        ArrayList<String> names = ids.names;
+        numberOfNodes = names.size();
+        nodeIDs = names.toArray( new String[numberOfNodes] );
+        outDegree = new int[numberOfNodes];
+        inStart = new int[numberOfNodes + 1];
+        for ( int e=0; e<m; e++ ) {
+            outDegree[from[e]]++;
+            inStart[to[e] + 1]++;
+        }
+        for ( int j=0; j<numberOfNodes; j++ ) {
+            inStart[j+1] += inStart[j];
+        }
+        inFrom = new int[m];
+        int[] fill = Arrays.copyOf( inStart, numberOfNodes );
+        for ( int e=0; e<m; e++ ) {
+            inFrom[fill[to[e]]++] = from[e];
+        }
+    }
+
+
+    private static int skipSpace( String s, int start, int end ) {
+        while ( start < end && s.charAt( start ) <= ' ' ) start++;
+        return start;
+    }
+
+
+    private static int trimSpace( String s, int start, int end ) {
+        while ( end > start && s.charAt( end-1 ) <= ' ' ) end--;
+        return end;
+    }
+
+
+    /** Reads the titles of the nodes. */
+    void readTitles( String filename ) throws IOException {
+        try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( filename ), StandardCharsets.UTF_8 ), 1 << 16 )) {
+            String line;
+            while (( line = in.readLine()) != null ) {
+                int semi = line.indexOf( ';' );
+                if ( semi < 0 ) continue;
+                int start = skipSpace( line, 0, semi );
+                int i = ids.get( line, start, trimSpace( line, start, semi ), false );
+                if ( i >= 0 ) {
+                    titles[i] = line.substring( semi + 1 );
+                }
+            }
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Work on a range of nodes, returning a partial sum. */
+    private interface RangeTask {
+        double apply( int from, int to );
+    }
+
+
+    /**
+     *  Runs <code>task</code> on the ranges between consecutive bounds in
+     *  parallel, and returns the sum of the results.
+     */
+    private static double run( ExecutorService pool, int[] bounds, RangeTask task ) throws InterruptedException, ExecutionException {
+        ArrayList<Future<Double>> parts = new ArrayList<Future<Double>>();
+        for ( int c=0; c+1<bounds.length; c++ ) {
+            final int from = bounds[c];
+            final int to = bounds[c+1];
+            parts.add( pool.submit( () -> task.apply( from, to )));
+        }
+        double sum = 0;
+        for ( Future<Double> part : parts ) {
+            sum += part.get();
+        }
+        return sum;
+    }
+
+
+    /**
+     *  Splits the nodes into <code>chunks</code> ranges with about the same
+     *  number of nodes plus in-links each.
+     */
+    int[] balancedRanges( int chunks ) {
+        long work = (long)numberOfNodes + inFrom.length;
+        int[] bounds = new int[chunks + 1];
+        int j = 0;
+        for ( int c=1; c<chunks; c++ ) {
+            long target = work * c / chunks;
+            while ( j < numberOfNodes && (long)j + inStart[j] < target ) j++;
+            bounds[c] = j;
+        }
+        bounds[chunks] = numberOfNodes;
+        return bounds;
+    }
+
+
+    /**
+     *  Computes the ranks by power iteration, until they change less than
+     *  <code>epsilon</code> from one iteration to the next.
+     */
+    public void iterate( int threads, double epsilon ) throws InterruptedException {
+        final int n = numberOfNodes;
+        final double c = 1.0 - BORED;
+        ranks = new double[n];
+        if ( n == 0 ) return;
+        Arrays.fill( ranks, 1.0 / n );
+        final double[][] x = { ranks, new double[n] };
+        final double[] share = new double[n];
+        int[] bounds = balancedRanges( 4 * threads );
+        int[] even = new int[4 * threads + 1];
+        for ( int i=0; i<even.length; i++ ) {
+            even[i] = (int)((long)n * i / ( even.length - 1 ));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        try {
+            for ( iterations=1; iterations<=MAX_NUMBER_OF_ITERATIONS; iterations++ ) {
+                final double[] cur = x[0];
+                final double[] next = x[1];
+                // What every page gives to each of its out-links; dangling pages give to all
+                double dangling = run( pool, even, ( from, to ) -> {
+                    double d = 0;
+                    for ( int i=from; i<to; i++ ) {
+                        if ( outDegree[i] == 0 ) {
+                            d += cur[i];
+                        } else {
+                            share[i] = cur[i] / outDegree[i];
+                        }
+                    }
+                    return d;
+                });
+                final double base = ( c * dangling + BORED ) / n;
+                double diff = run( pool, bounds, ( from, to ) -> {
+                    double d = 0;
+                    for ( int j=from; j<to; j++ ) {
+                        double sum = 0;
+                        for ( int e=inStart[j]; e<inStart[j+1]; e++ ) {
+                            sum += share[inFrom[e]];
+                        }
+                        next[j] = base + c * sum;
+                        d += Math.abs( next[j] - cur[j] );
+                    }
+                    return d;
+                });
+                x[0] = next;
+                x[1] = cur;
+                if ( diff < epsilon ) break;
+            }
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+        iterations = Math.min( iterations, MAX_NUMBER_OF_ITERATIONS );
+        ranks = x[0];
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Writes the ranks and titles to a rank file. */
+    public void write( File file ) throws IOException {
+        write( file, numberOfNodes, ranks, titles );
+    }
+
+
+    /** Writes the first <code>n</code> ranks and titles to a rank file. */
+    static void write( File file, int n, double[] ranks, String[] titles ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( n );
+            for ( int i=0; i<n; i++ ) {
+                out.writeFloat( (float)ranks[i] );
+            }
+            for ( int i=0; i<n; i++ ) {
+                byte[] title = titles[i].getBytes( StandardCharsets.UTF_8 );
+                out.writeShort( title.length );
+                out.write( title );
+            }
+        }
+    }
+
+
+    /**
+     *  Reads a rank file written by {@link #write(File)}.
+     *
+     *  @return The rank of every title, or null if <code>file</code> is not
+     *          a rank file (e.g. a text file with lines <code>title;rank</code>).
+     */
+    public static HashMap<String,Float> readRanks( File file ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( file.length() < 12 || in.readInt() != MAGIC || in.readInt() != VERSION ) return null;
+            int n = in.readInt();
+            float[] ranks = new float[n];
+            for ( int i=0; i<n; i++ ) {
+                ranks[i] = in.readFloat();
+            }
+            HashMap<String,Float> result = new HashMap<String,Float>( 2 * n );
+            for ( int i=0; i<n; i++ ) {
+                byte[] title = new byte[in.readUnsignedShort()];
+                in.readFully( title );
+                result.put( new String( title, StandardCharsets.UTF_8 ), ranks[i] );
+            }
+            return result;
+        }
+    }
+
+
+    /** Prints the <code>k</code> highest ranked pages. */
+    void printTop( int k ) {
+        Integer[] order = new Integer[numberOfNodes];
+        for ( int i=0; i<numberOfNodes; i++ ) order[i] = i;
+        Arrays.sort( order, ( a, b ) -> Double.compare( ranks[b], ranks[a] ));
+        for ( int i=0; i<k && i<numberOfNodes; i++ ) {
+            System.out.println( titles[order[i]] + ": " + String.format( "%.5g", ranks[order[i]] ));
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -l <filename> : the links file (mandatory)" );
+        System.err.println( "  -t <filename> : the titles file" );
+        System.err.println( "  -o <filename> : the rank file to be written (mandatory)" );
+        System.err.println( "  -e <epsilon> : the convergence threshold (default " + EPSILON + ")" );
+        System.err.println( "  -threads <n> : the number of threads (default: number of cores)" );
+    }
+
+
+    public static void main( String[] args ) {
+        String links = null;
+        String titles = null;
+        String out = null;
+        double epsilon = EPSILON;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i=0;
+        while ( i < args.length ) {
+            if ( "-l".equals( args[i] ) && i+1 < args.length ) {
+                links = args[i+1];
+            } else if ( "-t".equals( args[i] ) && i+1 < args.length ) {
+                titles = args[i+1];
+            } else if ( "-o".equals( args[i] ) && i+1 < args.length ) {
+                out = args[i+1];
+            } else if ( "-e".equals( args[i] ) && i+1 < args.length ) {
+                epsilon = Double.parseDouble( args[i+1] );
+            } else if ( "-threads".equals( args[i] ) && i+1 < args.length ) {
+                threads = Integer.parseInt( args[i+1] );
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+            i += 2;
+        }
+        if ( links == null || out == null ) {
+            printHelpMessage();
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            PageRank pr = new PageRank( links, titles );
+            long readTime = System.currentTimeMillis() - startTime;
+            System.err.println( String.format( "Read %d nodes and %d links in %.1f seconds.", pr.numberOfNodes, pr.inFrom.length, readTime/1000.0 ));
+            startTime = System.currentTimeMillis();
+            pr.iterate( Math.max( 1, threads ), epsilon );
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            System.err.println( String.format( "%d iterations in %.1f seconds.", pr.iterations, elapsedTime/1000.0 ));
+            pr.write( new File( out ));
+            pr.printTop( 30 );
+        } catch ( IOException | InterruptedException e ) {
+            e.printStackTrace();
+        }
+    }
+}
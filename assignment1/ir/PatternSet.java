@@ -0,0 +1,403 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *  The compiled patterns matching non-standard words, shared by all tokenizers.
+ *
+ *  The patterns are combined into the single alternation
+ *  <code>(?:[\s\S]*?(p1)|[\s\S]*?(p2)|...)</code>. Anchored at the start of a
+ *  candidate, it finds the leftmost match of the first pattern (in file order)
+ *  that matches anywhere, which is what trying the patterns one by one with
+ *  <code>find()</code> gives, but in one pass of one matcher.
+ *
+ *  In addition, every pattern is analyzed to see whether it can match a string
+ *  made of word characters only (letters, digits, underscore and non-ASCII
+ *  letters). If none of them can, candidates made of word characters only are
+ *  never handed to the regular expression engine at all.
+ *
+ *  Instances are immutable and can be shared between threads; each tokenizer
+ *  uses its own {@link Finder}.
+ */
+public final class PatternSet {
+
+    /** The patterns, in the order they are tried. */
+    final List<Pattern> patterns;
+
+    /** The combined alternation, or null if the patterns must be tried one by one. */
+    final Pattern combined;
+
+    /** Group number in <code>combined</code> of each pattern. */
+    final int[] groups;
+
+    /** <code>true</code> if no pattern can match a string of word characters only. */
+    final boolean prefilter;
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Compiles a set of patterns.
+     */
+    public PatternSet( List<Pattern> patterns ) {
+        this.patterns = new ArrayList<Pattern>( patterns );
+        groups = new int[patterns.size()];
+        boolean combinable = true;
+        boolean filterable = true;
+        StringBuilder sb = new StringBuilder( "(?:" );
+        int group = 1;
+        for ( int i=0; i<patterns.size(); i++ ) {
+            String regex = patterns.get( i ).pattern();
+            if ( hasBackReference( regex )) {
+                // Group numbers would shift inside the alternation.
+                combinable = false;
+            }
+            if ( new Analyzer( regex ).canMatchWordCharacters() ) {
+                filterable = false;
+            }
+            if ( i > 0 ) sb.append( '|' );
+            sb.append( "[\\s\\S]*?(" ).append( regex ).append( ')' );
+            groups[i] = group;
+            group += 1 + patterns.get( i ).matcher( "" ).groupCount();
+        }
+        sb.append( ')' );
+        Pattern p = null;
+        if ( combinable && !patterns.isEmpty() ) {
+            try {
+                p = Pattern.compile( sb.toString() );
+            } catch ( PatternSyntaxException e ) {
+                p = null;
+            }
+        }
+        combined = p;
+        prefilter = filterable;
+    }
+
+
+    /**
+     *  Reads and compiles the patterns in a file. Lines starting with
+     *  "//" are comments.
+     */
+    public static PatternSet read( String filename ) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        String line = null;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            while (( line = in.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
+                    patterns.add( Pattern.compile( line ));
+                }
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        catch ( PatternSyntaxException e ) {
+            System.err.println( "ERROR: Malformed regular expression: " + line );
+        }
+        return new PatternSet( patterns );
+    }
+
+
+    /** Returns the number of patterns. */
+    public int size() {
+        return patterns.size();
+    }
+
+
+    /** Returns a new finder; finders must not be shared between threads. */
+    public Finder finder() {
+        return new Finder();
+    }
+
+
+    /**
+     *  Returns false if no pattern can match anywhere in <code>s</code>,
+     *  judging from its characters alone.
+     */
+    boolean mayMatch( CharSequence s ) {
+        if ( !prefilter ) return true;
+        for ( int i=0, n=s.length(); i<n; i++ ) {
+            if ( !isWordChar( s.charAt( i ))) return true;
+        }
+        return false;
+    }
+
+
+    /** Word characters: ASCII letters, digits and underscore, and everything non-ASCII. */
+    static boolean isWordChar( char c ) {
+        return c >= 128 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+
+    /** Returns true if the regular expression contains a back reference. */
+    private static boolean hasBackReference( String regex ) {
+        for ( int i=0; i+1<regex.length(); i++ ) {
+            if ( regex.charAt( i ) == '\\' ) {
+                char c = regex.charAt( i+1 );
+                if (( c >= '1' && c <= '9' ) || c == 'k' ) return true;
+                i++;
+            }
+        }
+        return false;
+    }
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Finds the first pattern matching a candidate token. Keeps its matchers
+     *  between calls, so it must be used by one thread only.
+     */
+    public final class Finder {
+
+        /** Matcher of the combined pattern, or null. */
+        private final Matcher matcher;
+
+        /** One matcher per pattern, used when the patterns cannot be combined. */
+        private final Matcher[] matchers;
+
+        /** Bounds of the last match. */
+        private int start, end;
+
+        Finder() {
+            if ( combined != null ) {
+                matcher = combined.matcher( "" );
+                matchers = null;
+            } else {
+                matcher = null;
+                matchers = new Matcher[patterns.size()];
+                for ( int i=0; i<matchers.length; i++ ) {
+                    matchers[i] = patterns.get( i ).matcher( "" );
+                }
+            }
+        }
+
+        /**
+         *  Looks for a non-empty match of the first matching pattern in
+         *  <code>s</code>.
+         *
+         *  @return true if a match was found; its bounds are then given by
+         *  {@link #start()} and {@link #end()}.
+         */
+        public boolean find( CharSequence s ) {
+            if ( !mayMatch( s )) return false;
+            if ( matcher != null ) {
+                matcher.reset( s );
+                if ( matcher.lookingAt() ) {
+                    for ( int g : groups ) {
+                        if ( matcher.start( g ) >= 0 ) {
+                            start = matcher.start( g );
+                            end = matcher.end( g );
+                            return end > start;
+                        }
+                    }
+                }
+                return false;
+            }
+            for ( Matcher m : matchers ) {
+                m.reset( s );
+                if ( m.find() ) {
+                    start = m.start();
+                    end = m.end();
+                    return end > start;
+                }
+            }
+            return false;
+        }
+
+        /** Start of the last match. */
+        public int start() {
+            return start;
+        }
+
+        /** End of the last match. */
+        public int end() {
+            return end;
+        }
+    }
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  A conservative analysis of a regular expression, deciding whether it
+     *  could match some string made of word characters only. Anything that is
+     *  not understood is assumed to match.
+     */
+    static final class Analyzer {
+
+        final String re;
+        int pos = 0;
+
+        Analyzer( String re ) {
+            this.re = re;
+        }
+
+        boolean canMatchWordCharacters() {
+            try {
+                boolean result = alternation();
+                return pos < re.length() || result;
+            } catch ( RuntimeException e ) {
+                return true;
+            }
+        }
+
+        /** alternation := sequence ('|' sequence)* */
+        private boolean alternation() {
+            boolean result = sequence();
+            while ( pos < re.length() && re.charAt( pos ) == '|' ) {
+                pos++;
+                result |= sequence();
+            }
+            return result;
+        }
+
+        /** sequence := (atom quantifier?)* */
+        private boolean sequence() {
+            boolean result = true;
+            while ( pos < re.length() && re.charAt( pos ) != '|' && re.charAt( pos ) != ')' ) {
+                boolean atom = atom();
+                if ( !quantifierAllowsZero() ) {
+                    result &= atom;
+                }
+            }
+            return result;
+        }
+
+        /** Consumes an optional quantifier and returns true if it allows zero repetitions. */
+        private boolean quantifierAllowsZero() {
+            if ( pos >= re.length() ) return false;
+            char c = re.charAt( pos );
+            boolean zero;
+            if ( c == '*' || c == '?' ) {
+                zero = true;
+                pos++;
+            } else if ( c == '+' ) {
+                zero = false;
+                pos++;
+            } else if ( c == '{' ) {
+                int close = re.indexOf( '}', pos );
+                String[] bounds = re.substring( pos+1, close ).split( ",", -1 );
+                zero = Integer.parseInt( bounds[0].trim() ) == 0;
+                pos = close + 1;
+            } else {
+                return false;
+            }
+            // lazy or possessive suffix
+            if ( pos < re.length() && ( re.charAt( pos ) == '?' || re.charAt( pos ) == '+' )) {
+                pos++;
+            }
+            return zero;
+        }
+
+        private boolean atom() {
+            char c = re.charAt( pos++ );
+            switch ( c ) {
+            case '(':
+                if ( pos < re.length() && re.charAt( pos ) == '?' ) {
+                    // Non-capturing groups, flags and lookaround: only plain
+                    // non-capturing and named groups are analyzed.
+                    if ( re.startsWith( "?:", pos )) {
+                        pos += 2;
+                    } else if ( re.startsWith( "?<", pos ) && pos+2 < re.length()
+                                && Character.isLetter( re.charAt( pos+2 ))) {
+                        pos = re.indexOf( '>', pos ) + 1;
+                    } else {
+                        throw new IllegalArgumentException( "unsupported group" );
+                    }
+                }
+                boolean result = alternation();
+                if ( pos >= re.length() || re.charAt( pos ) != ')' ) {
+                    throw new IllegalArgumentException( "unbalanced group" );
+                }
+                pos++;
+                return result;
+            case '[':
+                return characterClass();
+            case '.':
+            case '^':
+            case '$':
+                return true;
+            case '\\':
+                return escape( false );
+            default:
+                return isWordChar( c );
+            }
+        }
+
+        /** Analyzes an escape sequence; the backslash has been consumed. */
+        private boolean escape( boolean inClass ) {
+            char c = re.charAt( pos++ );
+            switch ( c ) {
+            case 'd': case 'w':
+            case 'D': case 'W': case 'S':
+                return true;
+            case 's':
+            case 't': case 'n': case 'r': case 'f': case 'a': case 'e':
+                return false;
+            case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+                if ( inClass ) throw new IllegalArgumentException( "unsupported escape" );
+                return true;
+            default:
+                if ( Character.isLetterOrDigit( c )) {
+                    // \p{..}, hexadecimal and unicode escapes, back references and the like
+                    throw new IllegalArgumentException( "unsupported escape" );
+                }
+                return isWordChar( c );
+            }
+        }
+
+        /** Analyzes a character class; the opening bracket has been consumed. */
+        private boolean characterClass() {
+            boolean negated = false;
+            if ( re.charAt( pos ) == '^' ) {
+                negated = true;
+                pos++;
+            }
+            boolean result = false;
+            boolean first = true;
+            while ( true ) {
+                char c = re.charAt( pos++ );
+                if ( c == ']' && !first ) break;
+                first = false;
+                if ( c == '[' || ( c == '&' && re.charAt( pos ) == '&' )) {
+                    throw new IllegalArgumentException( "unsupported class" );
+                }
+                if ( c == '\\' ) {
+                    result |= escape( true );
+                    continue;
+                }
+                if ( re.charAt( pos ) == '-' && re.charAt( pos+1 ) != ']' ) {
+                    char to = re.charAt( pos+1 );
+                    if ( to == '\\' ) throw new IllegalArgumentException( "unsupported range" );
+                    pos += 2;
+                    for ( int x=c; x<=to && !result; x++ ) {
+                        result |= isWordChar( (char)x );
+                    }
+                } else {
+                    result |= isWordChar( c );
+                }
+            }
+            return negated || result;
+        }
+    }
+}
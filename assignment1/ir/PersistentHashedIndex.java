@@ -11,6 +11,8 @@ import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.math.BigInteger;
@@ -44,6 +46,12 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /** Identifies a terms file ("IRTF"). */
+    static final int TERMS_MAGIC = 0x49525446;
+
+    /** Version of the layout of the terms file. */
+    static final int TERMS_VERSION = 1;
+
     /** The dictionary hash table on disk can fit this many entries. */
     public static final long TABLESIZE = 611953L;
 
@@ -59,6 +67,19 @@ public class PersistentHashedIndex implements Index {
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /**
+     *  The number of documents of every term on disk, from the terms file.
+     *  The dictionary only holds checksums, so this is where the terms are.
+     *  Null until {@link #terms} first needs it.
+     */
+    private volatile HashMap<String,Integer> termDocFreq = null;
+
+    /** Number of terms of {@link #vocabulary}, for other threads than the indexer. */
+    private volatile int numTerms = 0;
+
+    /** The names, lengths and ranks of the documents. */
+    final DocMetadata metadata = new DocMetadata();
+
 
 
     // ===================================================================
@@ -102,6 +123,12 @@ public class PersistentHashedIndex implements Index {
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+
+        try {
+            numTerms = readTermsHeader();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -130,6 +157,7 @@ public class PersistentHashedIndex implements Index {
             dataFile.seek( ptr );
             byte[] data = new byte[size];
             dataFile.readFully( data );
+            Metrics.diskRead( size );
             return new String(data);
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -180,6 +208,7 @@ public class PersistentHashedIndex implements Index {
             dictionaryFile.seek(ptr);
             byte[] buffer = new byte[78];
             while(dictionaryFile.read(buffer) != -1){
+                Metrics.diskRead( buffer.length );
                 // read data from buffer and compare checksums
                 ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
                 long address = byteBuffer.getLong();
@@ -205,40 +234,124 @@ public class PersistentHashedIndex implements Index {
 
     // ==================================================================
 
+    /** Returns the names, lengths and ranks of the documents. */
+    public DocMetadata metadata() {
+        return metadata;
+    }
+
+
     /**
      *  Writes the document names and document lengths to file.
      *
      * @throws IOException  { exception_description }
      */
     private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-        for ( Map.Entry<Integer,String> entry : docNames.entrySet() ) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write( docInfoEntry.getBytes() );
-        }
-        fout.close();
+        DocInfoFile.write( new File( INDEXDIR + "/" + DOCINFO_FNAME ), metadata );
     }
 
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Maps the document names and document lengths from file. They are
+     *  read from the file when asked for, until documents are indexed.
+     *  A docInfo file in the older text format is read in full instead.
      *
      * @throws     IOException  { exception_description }
      */
     private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try ( BufferedReader br = new BufferedReader(freader) ) {
+        File file = new File( INDEXDIR + "/" + DOCINFO_FNAME );
+        if ( !file.exists() ) return;
+        DocInfoFile docInfo = DocInfoFile.open( file );
+        if ( docInfo != null ) {
+            metadata.setBacking( docInfo );
+            return;
+        }
+        TreeMap<Integer,String[]> docs = new TreeMap<Integer,String[]>();
+        try ( BufferedReader br = new BufferedReader( new FileReader( file ))) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] data = line.split(";");
-                docNames.put( new Integer(data[0]), data[1] );
-                docLengths.put( new Integer(data[0]), new Integer(data[2]) );
+                docs.put( Integer.valueOf(data[0]), data );
+            }
+        }
+        for ( String[] data : docs.values() ) {
+            metadata.add( Integer.parseInt(data[0]), data[1], Integer.parseInt(data[2]) );
+        }
+    }
+
+
+    /**
+     *  Writes the terms and their number of documents to the terms file:
+     *  <pre>
+     *    header:   int TERMS_MAGIC, int TERMS_VERSION, int number of terms
+     *    terms:    for every term, the term as written by writeUTF and int df
+     *  </pre>
+     */
+    private void writeTerms() throws IOException {
+        File file = new File( INDEXDIR + "/" + TERMS_FNAME );
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ))) {
+            out.writeInt( TERMS_MAGIC );
+            out.writeInt( TERMS_VERSION );
+            out.writeInt( termDocFreq.size() );
+            for ( Map.Entry<String,Integer> e : termDocFreq.entrySet() ) {
+                out.writeUTF( e.getKey() );
+                out.writeInt( e.getValue() );
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
+    /**
+     *  Returns the number of terms in the terms file, reading only its
+     *  header, or 0 if there is no terms file.
+     */
+    private int readTermsHeader() throws IOException {
+        File file = new File( INDEXDIR + "/" + TERMS_FNAME );
+        if ( !file.exists() ) return 0;
+        try ( DataInputStream in = new DataInputStream( new FileInputStream( file ))) {
+            if ( in.readInt() != TERMS_MAGIC || in.readInt() != TERMS_VERSION ) return 0;
+            return in.readInt();
+        }
+    }
+
+
+    /**
+     *  Reads the terms file, if there is one. An index written before there
+     *  were terms files has none, and then has no vocabulary until it is
+     *  indexed again.
+     */
+    private HashMap<String,Integer> readTerms() throws IOException {
+        HashMap<String,Integer> terms = new HashMap<String,Integer>();
+        File file = new File( INDEXDIR + "/" + TERMS_FNAME );
+        if ( !file.exists() ) return terms;
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ))) {
+            if ( in.readInt() != TERMS_MAGIC || in.readInt() != TERMS_VERSION ) return terms;
+            int n = in.readInt();
+            terms = new HashMap<String,Integer>( 2 * n );
+            for ( int i=0; i<n; i++ ) {
+                String term = in.readUTF();
+                terms.put( term, in.readInt() );
+            }
+        }
+        return terms;
+    }
+
+
+    /**
+     *  Returns the terms of the index on disk, reading the terms file the
+     *  first time they are needed. Indexing from scratch never needs them.
+     */
+    private synchronized HashMap<String,Integer> terms() {
+        if ( termDocFreq == null ) {
+            try {
+                termDocFreq = readTerms();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+                termDocFreq = new HashMap<String,Integer>();
             }
         }
-        freader.close();
+        return termDocFreq;
     }
 
 
@@ -248,7 +361,7 @@ public class PersistentHashedIndex implements Index {
     public void writeIndex() {
         int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
+            // Write the document names and lengths to a file
             writeDocInfo();
 
             // Write the dictionary and the postings list
@@ -285,6 +398,14 @@ public class PersistentHashedIndex implements Index {
                 dataFilePointer = dataFilePointer + size;
             }
 
+            // Write the terms, which the dictionary does not keep
+            HashMap<String,Integer> terms = new HashMap<String,Integer>( 2 * index.size() );
+            for ( Map.Entry<String,PostingsList> e : index.entrySet() ) {
+                terms.put( e.getKey(), e.getValue().size() );
+            }
+            termDocFreq = terms;
+            writeTerms();
+
         } catch ( IOException e ) {
             e.printStackTrace();
         }
@@ -346,7 +467,26 @@ public class PersistentHashedIndex implements Index {
        Entry entry = readEntry(token, hash);
        if (entry == null) return null;
        String postingListString = readData(entry.startAddress, entry.size);
-        return PostingsList.fromString(postingListString);
+        PostingsList pl = PostingsList.fromString(postingListString);
+        if ( pl != null ) {
+            Metrics.postingsDecoded( pl.size() );
+            Metrics.postingsRead( pl.size() );
+        }
+        return pl;
+    }
+
+
+    /**
+     *  Returns the number of documents containing a term, from the terms
+     *  file, without reading the postings from disk.
+     */
+    public int docFrequency( String token ) {
+        if ( !index.isEmpty() ) {
+            PostingsList pl = index.get( token );
+            return pl == null ? 0 : pl.size();
+        }
+        Integer df = terms().get( token );
+        return df == null ? 0 : df;
     }
 
 
@@ -362,6 +502,7 @@ public class PersistentHashedIndex implements Index {
             PostingsList pl = new PostingsList();
             pl.insertPosting(pe);
             index.put(token,pl);
+            numTerms = index.size();
         } else {
             // not the first time encountering the word
             PostingsList pl = index.get(token);
@@ -377,6 +518,22 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Returns the terms indexed since the engine started or, if none has
+     *  been, those of the terms file. An index written before there were
+     *  terms files has none.
+     */
+    public Collection<String> vocabulary() {
+        return index.isEmpty() ? terms().keySet() : index.keySet();
+    }
+
+
+    /** Returns the number of terms of {@link #vocabulary}. */
+    public int numberOfTerms() {
+        return numTerms;
+    }
+
+
     /**
      *  Write index to file after indexing is done.
      */
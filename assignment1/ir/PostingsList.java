@@ -14,6 +14,9 @@ public class PostingsList implements Comparable<PostingsList>{
     /** The postings list */
     public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
 
+    /** True if this is a search result cut short by its deadline (see {@link Deadline}). */
+    public boolean incomplete = false;
+
 
     /** Number of postings in this list. */
     public int size() {
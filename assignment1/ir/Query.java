@@ -7,7 +7,11 @@
 
 package ir;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Iterator;
 import java.nio.charset.*;
@@ -51,6 +55,19 @@ public class Query {
      *  (only used in assignment 3).
      */
     double beta = 1 - alpha;
+
+    /** Number of terms of the relevant documents added to the query by relevance feedback. */
+    static final int FEEDBACK_TERMS = 10;
+
+    /** Number of terms of the relevant documents considered for addition to the query. */
+    static final int FEEDBACK_CANDIDATES = 50;
+
+    /**
+     *  Maximal distance (in words) allowed between the terms of the query,
+     *  given in the query string as <code>near/k</code>. A value of 0 means
+     *  that the query has no proximity constraint.
+     */
+    public int window = 0;
     
     
     /**
@@ -66,11 +83,27 @@ public class Query {
     public Query( String queryString  ) {
         StringTokenizer tok = new StringTokenizer( queryString );
         while ( tok.hasMoreTokens() ) {
-            queryterm.add( new QueryTerm(tok.nextToken(), 1.0) );
+            String t = tok.nextToken();
+            if ( t.startsWith( "near/" ) && t.length() > 5 && isNumber( t.substring( 5 ))) {
+                window = Integer.parseInt( t.substring( 5 ));
+            } else {
+                queryterm.add( new QueryTerm(t, 1.0) );
+            }
         }    
     }
     
     
+    /**
+     *  Returns true if the string consists of digits only.
+     */
+    private static boolean isNumber( String s ) {
+        for ( int i=0; i<s.length(); i++ ) {
+            if ( !Character.isDigit( s.charAt( i ))) return false;
+        }
+        return s.length() > 0 && s.length() < 10;
+    }
+
+
     /**
      *  Returns the number of terms
      */
@@ -99,6 +132,7 @@ public class Query {
         for ( QueryTerm t : queryterm ) {
             queryCopy.queryterm.add( new QueryTerm(t.term, t.weight) );
         }
+        queryCopy.window = window;
         return queryCopy;
     }
     
@@ -109,12 +143,57 @@ public class Query {
      *  @param results The results of the previous query.
      *  @param docIsRelevant A boolean array representing which query results the user deemed relevant.
      *  @param engine The search engine object
+     *  @return false if there is no forward index, so the query is left as it is.
      */
-    public void relevanceFeedback( PostingsList results, boolean[] docIsRelevant, Engine engine ) {
-        //
-        //  YOUR CODE HERE
-        //
-    }
-}
+    public boolean relevanceFeedback( PostingsList results, boolean[] docIsRelevant, Engine engine ) {
+        ForwardIndex forward = engine.forwardIndex;
+        if ( forward == null ) return false;
+        if ( results == null ) return true;
+        Index index = engine.index;
 
+        // Sum of the length-normalized term frequencies of the relevant documents
+        HashMap<Integer,Double> centroid = new HashMap<Integer,Double>();
+        int numRelevant = 0;
+        for ( int i=0; i<docIsRelevant.length && i<results.size(); i++ ) {
+            if ( !docIsRelevant[i] ) continue;
+            int docID = results.get( i ).docID;
+            ForwardIndex.Vector v = forward.vector( docID );
+            double length = Math.max( 1, index.docLength( docID ));
+            for ( int j=0; j<v.termIDs.length; j++ ) {
+                centroid.merge( v.termIDs[j], v.tfs[j] / length, Double::sum );
+            }
+            numRelevant++;
+        }
+        if ( numRelevant == 0 ) return true;
 
+        // Of the terms most frequent in the relevant documents, those with
+        // the highest idf are added. Scoring applies the idf, so it is not
+        // part of their weights.
+        ArrayList<Map.Entry<Integer,Double>> frequent = new ArrayList<Map.Entry<Integer,Double>>( centroid.entrySet() );
+        frequent.sort( ( x, y ) -> Double.compare( y.getValue(), x.getValue() ));
+        int numDocs = index.numberOfDocs();
+        LinkedHashMap<String,Double> weights = new LinkedHashMap<String,Double>();
+        for ( QueryTerm t : queryterm ) {
+            weights.merge( t.term, alpha * t.weight, Double::sum );
+        }
+        ArrayList<Map.Entry<Integer,Double>> expansion = new ArrayList<Map.Entry<Integer,Double>>();
+        for ( int i=0; i<frequent.size() && i<FEEDBACK_CANDIDATES; i++ ) {
+            int termID = frequent.get( i ).getKey();
+            int df = forward.docFrequency( termID );
+            if ( df == 0 ) continue;
+            double idf = Math.log( (double)numDocs / df );
+            expansion.add( new AbstractMap.SimpleEntry<Integer,Double>( termID, frequent.get( i ).getValue() * idf ));
+        }
+        expansion.sort( ( x, y ) -> Double.compare( y.getValue(), x.getValue() ));
+        for ( int i=0; i<expansion.size() && i<FEEDBACK_TERMS; i++ ) {
+            int termID = expansion.get( i ).getKey();
+            weights.merge( forward.term( termID ), beta * centroid.get( termID ) / numRelevant, Double::sum );
+        }
+
+        queryterm.clear();
+        for ( Map.Entry<String,Double> e : weights.entrySet() ) {
+            queryterm.add( new QueryTerm( e.getKey(), e.getValue() ));
+        }
+        return true;
+    }
+}
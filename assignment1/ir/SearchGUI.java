@@ -14,6 +14,9 @@ import javax.swing.event.*;
 import javax.swing.border.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -21,6 +24,8 @@ import java.io.*;
  */
 public class SearchGUI extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     /**  The search engine. */
     Engine engine;
 
@@ -30,7 +35,32 @@ public class SearchGUI extends JFrame {
     /**  The results of a search query. */
     private PostingsList results;
 
-    /**  The query type (either intersection, phrase, or ranked). */
+    /**  Which results the user has marked as relevant. */
+    private boolean[] relevant = null;
+
+    /**  The extracts of the results, made as they are shown, or null. */
+    private String[] snippets = null;
+
+    /**  Pages of results whose extracts have been asked for. */
+    private boolean[] snippetPages = null;
+
+    /**  Runs the searches, one at a time, off the event dispatch thread. */
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor( r -> {
+        Thread t = new Thread( r, "search" );
+        t.setDaemon( true );
+        return t;
+    });
+
+    /**  The search running or waiting to run, or null. */
+    private Future<?> pendingSearch = null;
+
+    /**  The deadline of that search, cancelled when a newer search is started. */
+    private Deadline pendingDeadline = null;
+
+    /**  Number of searches started; results of an older search are dropped. */
+    private volatile int searchGeneration = 0;
+
+    /**  The query type (either intersection, phrase, ranked, or proximity). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
 
     /**  The ranking type (either tf-idf, pagerank, or combination). */
@@ -39,7 +69,7 @@ public class SearchGUI extends JFrame {
     /**  The type of normalization for tf-idf computation */
     NormalizationType normType = NormalizationType.NUMBER_OF_WORDS;
 
-    /**  Max number of results to display. */
+    /**  Number of results whose extracts are made together. */
     static final int MAX_RESULTS = 10;
 
     /** Demarkator between file name and file contents in the file contents text area*/
@@ -49,14 +79,16 @@ public class SearchGUI extends JFrame {
     /*
      *   Common GUI resources
      */
-    public JCheckBox[] box = null;
     public JPanel resultWindow = new JPanel();
+    private ResultListModel resultModel = new ResultListModel();
+    private JList<PostingsEntry> resultList = new JList<PostingsEntry>( resultModel );
     private JScrollPane resultPane = new JScrollPane( resultWindow );
     public JTextField queryWindow = new JTextField( "", 28 );
     public JTextArea docTextView = new JTextArea( "", 15, 28 );
     private JScrollPane docViewPane = new JScrollPane( docTextView );
     private Font queryFont = new Font( "Arial", Font.BOLD, 24 );
     private Font resultFont = new Font( "Arial", Font.BOLD, 16 );
+    private Font snippetFont = new Font( "Arial", Font.PLAIN, 13 );
     JMenuBar menuBar = new JMenuBar();
     JMenu fileMenu = new JMenu( "File" );
     JMenu optionsMenu = new JMenu( "Search options" );
@@ -68,9 +100,11 @@ public class SearchGUI extends JFrame {
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem( "Intersection query" );
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem( "Phrase query" );
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem( "Ranked retrieval" );
+    JRadioButtonMenuItem proximityItem = new JRadioButtonMenuItem( "Proximity query" );
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem( "tf-idf" );
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem( "PageRank" );
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem( "Combination" );
+    JRadioButtonMenuItem hitsItem = new JRadioButtonMenuItem( "HITS" );
     JRadioButtonMenuItem numberOfWordsItem = new JRadioButtonMenuItem( "Number of words" );
     JRadioButtonMenuItem euclideanLengthItem = new JRadioButtonMenuItem( "Euclidean length" );
     ButtonGroup queries = new ButtonGroup();
@@ -109,17 +143,21 @@ public class SearchGUI extends JFrame {
         optionsMenu.add( intersectionItem );
         optionsMenu.add( phraseItem );
         optionsMenu.add( rankedItem );
+        optionsMenu.add( proximityItem );
         rankingMenu.add( tfidfItem );
         rankingMenu.add( pagerankItem );
         rankingMenu.add( combinationItem );
+        rankingMenu.add( hitsItem );
         normalizationMenu.add(numberOfWordsItem);
         normalizationMenu.add(euclideanLengthItem);
         queries.add( intersectionItem );
         queries.add( phraseItem );
         queries.add( rankedItem );
+        queries.add( proximityItem );
         ranking.add( tfidfItem );
         ranking.add( pagerankItem );
         ranking.add( combinationItem );
+        ranking.add( hitsItem );
         normalization.add(numberOfWordsItem);
         normalization.add(euclideanLengthItem);
         intersectionItem.setSelected( true );
@@ -146,60 +184,107 @@ public class SearchGUI extends JFrame {
         p.add(docViewPane);
         setVisible( true );
 
+        resultList.setCellRenderer( new ResultRenderer() );
+        resultList.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+        resultList.addMouseListener( new MouseAdapter() {
+                public void mouseClicked( MouseEvent e ) {
+                    int i = resultList.locationToIndex( e.getPoint() );
+                    if ( i < 0 || !resultList.getCellBounds( i, i ).contains( e.getPoint() )) return;
+                    // A click on the check box marks the document as relevant, anywhere
+                    // else shows the document
+                    if ( e.getX() < resultRenderer().box.getPreferredSize().width ) {
+                        relevant[i] = !relevant[i];
+                        resultList.repaint( resultList.getCellBounds( i, i ));
+                    } else {
+                        showDocument( results.get( i ).docID );
+                    }
+                }
+            });
+
         /*
          *  Searches for documents matching the string in the search box, and displays
-         *  the first few results.
+         *  the results. The search runs on a background thread; its results are
+         *  shown unless a newer search has been started in the meantime.
          */
         Action search = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
-                // Empty the results window
-                displayInfoText( " " );
                 // Turn the search string into a Query
                 String queryString = queryWindow.getText().toLowerCase().trim();
-                query = new Query( queryString );
+                final Query newQuery = new Query( queryString );
                 // Take relevance feedback from the user into account (assignment 3)
                 // Check which documents the user has marked as relevant.
-                if ( box != null ) {
-                    boolean[] relevant = new boolean[box.length];
-                    for ( int i=0; i<box.length; i++ ) {
-                        if ( box[i] != null )
-                            relevant[i] = box[i].isSelected();
-                    }
-                    query.relevanceFeedback( results, relevant, engine );
+                final PostingsList previous = results;
+                final boolean[] marked = relevant;
+                final QueryType qt = queryType;
+                final RankingType rt = rankingType;
+                final NormalizationType nt = normType;
+                final int generation = ++searchGeneration;
+                if ( pendingSearch != null ) {
+                    // Not interrupted: an interrupt would close the channels the index reads
+                    // from. A running search stops at its next deadline check instead.
+                    pendingSearch.cancel( false );
+                    pendingDeadline.cancel();
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
-                long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType, normType );
-                }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                // Display the first few results + a button to see all results.
-                //
-                // We don't want to show all results directly since the displaying itself
-                // might take a long time, if there are many results.
-                if ( results != null ) {
-                    displayResults( MAX_RESULTS, elapsedTime/1000.0 );
-                } else {
-                    displayInfoText( "Found 0 matching document(s)" );
-                    
-                    if (engine.speller != null) {
-                        SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
-                        startTime = System.currentTimeMillis();
-                        String[] corrections = engine.speller.check(query, 10);
-                        elapsedTime = System.currentTimeMillis() - startTime;
-                        System.err.println("It took " + elapsedTime / 1000.0 + "s to check spelling");
-                        if (corrections != null && corrections.length > 0) {
-                            String choice = dialog.show(corrections, corrections[0]);
-                            if (choice != null) {
-                                queryWindow.setText(choice);
-                                queryWindow.grabFocus();
-                                this.actionPerformed(e);
+                final Deadline deadline = new Deadline( engine.search_budget );
+                pendingDeadline = deadline;
+                displayInfoText( "Searching..." );
+                pendingSearch = searchExecutor.submit( () -> {
+                    if ( generation != searchGeneration ) return;
+                    try {
+                        String note = null;
+                        if ( isMarked( marked )) {
+                            boolean used;
+                            synchronized ( engine.indexLock ) {
+                                used = newQuery.relevanceFeedback( previous, marked, engine );
                             }
+                            if ( !used ) note = "no relevance feedback: the engine has no forward index (option -fi)";
+                        }
+                        final String feedbackNote = note;
+                        // Search and print results. Access to the index is synchronized since
+                        // we don't want to search at the same time we're indexing new files
+                        // (this might corrupt the index).
+                        long startTime = System.currentTimeMillis();
+                        PostingsList found;
+                        synchronized ( engine.indexLock ) {
+                            found = engine.searcher.search( newQuery, qt, rt, nt, deadline );
                         }
+                        final double elapsedTime = ( System.currentTimeMillis() - startTime ) / 1000.0;
+                        String[] corrections = null;
+                        if ( found == null && engine.speller != null && generation == searchGeneration ) {
+                            startTime = System.currentTimeMillis();
+                            corrections = engine.speller.check( newQuery, 10 );
+                            System.err.println( "It took " + ( System.currentTimeMillis() - startTime ) / 1000.0 + "s to check spelling" );
+                        }
+                        final String[] suggestions = corrections;
+                        SwingUtilities.invokeLater( () -> {
+                            if ( generation != searchGeneration ) return;
+                            pendingSearch = null;
+                            pendingDeadline = null;
+                            query = newQuery;
+                            results = found;
+                            if ( results != null ) {
+                                displayResults( elapsedTime, feedbackNote );
+                            } else {
+                                relevant = null;
+                                displayInfoText( "Found 0 matching document(s)" );
+                                if ( suggestions != null && suggestions.length > 0 ) {
+                                    SpellingOptionsDialog dialog = new SpellingOptionsDialog( 50 );
+                                    String choice = dialog.show( suggestions, suggestions[0] );
+                                    if ( choice != null ) {
+                                        queryWindow.setText( choice );
+                                        queryWindow.grabFocus();
+                                        this.actionPerformed( e );
+                                    }
+                                }
+                            }
+                        });
+                    } catch ( RuntimeException ex ) {
+                        ex.printStackTrace();
+                        SwingUtilities.invokeLater( () -> {
+                            if ( generation == searchGeneration ) displayInfoText( "The search failed: " + ex );
+                        });
                     }
-                }
+                });
             }
             };
 
@@ -238,6 +323,13 @@ public class SearchGUI extends JFrame {
             };
         rankedItem.addActionListener( setRankedQuery );
 
+        Action setProximityQuery = new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                queryType = QueryType.PROXIMITY_QUERY;
+            }
+            };
+        proximityItem.addActionListener( setProximityQuery );
+
         Action setTfidfRanking = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
                 rankingType = RankingType.TF_IDF;
@@ -260,6 +352,13 @@ public class SearchGUI extends JFrame {
             };
         combinationItem.addActionListener( setCombinationRanking );
 
+        Action setHitsRanking = new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                rankingType = RankingType.HITS;
+            }
+            };
+        hitsItem.addActionListener( setHitsRanking );
+
         Action setNumberOfWordsNormalization = new AbstractAction() {
             public void actionPerformed( ActionEvent e ) {
                 normType = NormalizationType.NUMBER_OF_WORDS;
@@ -287,124 +386,173 @@ public class SearchGUI extends JFrame {
         JLabel label = new JLabel( info );
         label.setFont( resultFont );
         resultWindow.add( label );
+        resultPane.setColumnHeaderView( null );
+        resultPane.setViewportView( resultWindow );
         revalidate();
         repaint();
     }
 
+    /** Has any document been marked as relevant? */
+    private static boolean isMarked( boolean[] marked ) {
+        if ( marked == null ) return false;
+        for ( boolean m : marked ) {
+            if ( m ) return true;
+        }
+        return false;
+    }
+
+
     /**
-     *  Displays the results in the results window.
-     *  @param maxResultsToDisplay The results list is cut off after this many results
-     *      have been displayed.
+     *  Displays the results in the results window. They are shown by a list
+     *  that only renders the rows in view, so all of them can be shown at once.
      *  @param elapsedTime Shows how long time it took to compute the results.
+     *  @param note Shown after the number of results, or null.
      */
-    void displayResults( int maxResultsToDisplay, double elapsedTime ) {
-        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
-        box = new JCheckBox[maxResultsToDisplay];
-        int i;
-        for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
-            if ( queryType == QueryType.RANKED_QUERY ) {
-                description += "   " + String.format( "%.5f", results.get(i).score );
-            }
-            box[i] = new JCheckBox();
-            box[i].setSelected( false );
+    void displayResults( double elapsedTime, String note ) {
+        String found = String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime );
+        if ( results.incomplete ) {
+            found += " (time limit reached, results are partial)";
+        }
+        if ( note != null ) {
+            found += " (" + note + ")";
+        }
+        JLabel info = new JLabel( found );
+        info.setFont( resultFont );
+        relevant = new boolean[results.size()];
+        snippets = engine.snippets == null ? null : new String[results.size()];
+        snippetPages = engine.snippets == null ? null : new boolean[( results.size() + MAX_RESULTS - 1 ) / MAX_RESULTS];
+        resultModel.setResults( results );
+        // Rows have a fixed size, so the list need not render all of them to lay
+        // itself out; being narrower than the view, they are widened to fill it
+        resultList.setFixedCellHeight( resultRenderer().prototypeHeight() );
+        resultList.setFixedCellWidth( 1 );
+        resultList.clearSelection();
+        resultPane.setColumnHeaderView( info );
+        resultPane.setViewportView( resultList );
+        resultList.ensureIndexIsVisible( 0 );
+        revalidate();
+        repaint();
+    }
 
-            JPanel result = new JPanel();
-            result.setAlignmentX(Component.LEFT_ALIGNMENT);
-            result.setLayout(new BoxLayout(result, BoxLayout.X_AXIS));
 
-            JLabel label = new JLabel(description);
-            label.setFont( resultFont );
+    /** Shows the text of a document in the document view. */
+    private void showDocument( int docID ) {
+        String fileName = displayableFileName( engine.index.docName( docID ));
+        String text = engine.documents == null ? null : engine.documents.text( docID );
+        StringBuilder contents = new StringBuilder();
+        contents.append( "Displaying contents of " ).append( fileName ).append( "\n" ).append( MARKER ).append( "\n" );
+        contents.append( text == null ? "No file found\n" : text );
+        docTextView.setText(contents.toString());
+        docTextView.setCaretPosition(0);
+    }
 
-            MouseAdapter showDocument = new MouseAdapter() {
-                public void mouseClicked(MouseEvent e) {
-                    String fileName = ((JLabel)e.getSource()).getText().split(" ")[1];
-                    String contents = "Displaying contents of " + fileName + "\n" + MARKER + "\n";
-                    String line;
 
-                    Queue<String> fqueue = new LinkedList<>();
+    /**
+     *  The extract of result <code>i</code>, or null if it is not made yet
+     *  or there is none. The extracts are made a page of {@link #MAX_RESULTS}
+     *  results at a time, on the search thread, when a row of the page is
+     *  first shown.
+     */
+    private String snippet( int i ) {
+        if ( snippets == null ) return null;
+        int page = i / MAX_RESULTS;
+        if ( !snippetPages[page] ) {
+            snippetPages[page] = true;
+            final Query q = query;
+            final PostingsList r = results;
+            final String[] target = snippets;
+            final int generation = searchGeneration;
+            searchExecutor.submit( () -> {
+                if ( generation != searchGeneration ) return;
+                String[] page_snippets;
+                synchronized ( engine.indexLock ) {
+                    page_snippets = engine.snippets.snippets( q, r, page * MAX_RESULTS, ( page + 1 ) * MAX_RESULTS );
+                }
+                SwingUtilities.invokeLater( () -> {
+                    System.arraycopy( page_snippets, 0, target, page * MAX_RESULTS, page_snippets.length );
+                    if ( target == snippets ) resultList.repaint();
+                });
+            });
+        }
+        return snippets[i];
+    }
 
-                    for (int j = 0, sz = engine.dirNames.size(); j < sz; j++) {
-                        File curDir = new File(engine.dirNames.get(j));
-                        fqueue.offer(curDir.toString());
 
-                        String[] directories = curDir.list(new FilenameFilter() {
-                            @Override
-                            public boolean accept(File current, String name) {
-                                return new File(current, name).isDirectory();
-                            }
-                        });
+    /** The results, as the model of the results list. */
+    private static class ResultListModel extends AbstractListModel<PostingsEntry> {
+        private static final long serialVersionUID = 1L;
 
-                        for (String dir : directories) {
-                            fqueue.offer(new File(curDir.toString(), dir).toString());
-                        }
-                    }
+        private PostingsList results = null;
 
-                    boolean foundFile = false;
-                    while(!fqueue.isEmpty()) {
-                        String dirName = fqueue.poll();
-                        File file = new File(dirName, fileName);
+        void setResults( PostingsList results ) {
+            int old = getSize();
+            this.results = results;
+            if ( old > 0 ) fireIntervalRemoved( this, 0, old - 1 );
+            if ( getSize() > 0 ) fireIntervalAdded( this, 0, getSize() - 1 );
+        }
 
-                        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                            while ((line = br.readLine()) != null) {
-                                contents += line.trim() + "\n";
-                            }
-                            foundFile = true;
-                            break;
-                        } catch (FileNotFoundException exc) {
-                        } catch (IOException exc) {
-                        } catch (NullPointerException exc) {
-                        }
-                    }
+        public int getSize() {
+            return results == null ? 0 : results.size();
+        }
 
-                    if (!foundFile) {
-                        contents += "No file found\n";
-                    }
+        public PostingsEntry getElementAt( int i ) {
+            return results.get( i );
+        }
+    }
 
-                    docTextView.setText(contents);
-                    docTextView.setCaretPosition(0);
-                }
-            };
-            label.addMouseListener(showDocument);
-            result.add(box[i]);
-            result.add(label);
 
-            resultWindow.add( result );
-        }
-        // If there were many results, give the user an option to see all of them.
-        if ( i<results.size() ) {
-            JPanel actionButtons = new JPanel();
-            actionButtons.setLayout(new BoxLayout(actionButtons, BoxLayout.X_AXIS));
-            actionButtons.setAlignmentX(Component.LEFT_ALIGNMENT);
-
-            JButton display10MoreBut = new JButton( "Display 10 more results" );
-            display10MoreBut.setFont( resultFont );
-            actionButtons.add( display10MoreBut );
-            Action display10More = new AbstractAction() {
-                public void actionPerformed( ActionEvent e ) {
-                    displayResults( (int)this.getValue("resCurSize") + 10, elapsedTime );
-                }
-            };
-            display10More.putValue("resCurSize", i);
-            display10MoreBut.addActionListener( display10More );
+    /** The renderer of the results list. */
+    private ResultRenderer resultRenderer() {
+        return (ResultRenderer)resultList.getCellRenderer();
+    }
 
-            actionButtons.add(Box.createRigidArea(new Dimension(5,0)));
 
-            JButton displayAllBut = new JButton( "Display all " + results.size() + " results" );
-            displayAllBut.setFont( resultFont );
-            actionButtons.add( displayAllBut );
-            Action displayAll = new AbstractAction() {
-                public void actionPerformed( ActionEvent e ) {
-                    displayResults( results.size(), elapsedTime );
-                }
-            };
-            displayAllBut.addActionListener( displayAll );
+    /**
+     *  Draws a result as a check box (marking the document as relevant for
+     *  relevance feedback), its rank, name and score, and its extract if
+     *  there is one. The same components draw every row.
+     */
+    private class ResultRenderer extends JPanel implements ListCellRenderer<PostingsEntry> {
+        private static final long serialVersionUID = 1L;
+
+        final JCheckBox box = new JCheckBox();
+        final JLabel label = new JLabel();
+        final JLabel extract = new JLabel();
 
-            resultWindow.add(actionButtons);
+        ResultRenderer() {
+            setLayout( new BorderLayout() );
+            box.setOpaque( false );
+            label.setFont( resultFont );
+            extract.setFont( snippetFont );
+            extract.setBorder( BorderFactory.createEmptyBorder( 0, box.getPreferredSize().width, 5, 0 ));
+            add( box, BorderLayout.WEST );
+            add( label, BorderLayout.CENTER );
+            add( extract, BorderLayout.SOUTH );
         }
-        revalidate();
-        repaint();
-    };
+
+        /** Height of a row, with an extract if extracts are made. */
+        int prototypeHeight() {
+            label.setText( "0. x" );
+            extract.setText( "<html><b>x</b></html>" );
+            extract.setVisible( engine.snippets != null );
+            return getPreferredSize().height;
+        }
+
+        public Component getListCellRendererComponent( JList<? extends PostingsEntry> list, PostingsEntry entry, int i,
+                                                       boolean selected, boolean focused ) {
+            String description = i + ". " + displayableFileName( engine.index.docName( entry.docID ));
+            if ( queryType == QueryType.RANKED_QUERY ) {
+                description += "   " + String.format( "%.5f", entry.score );
+            }
+            label.setText( description );
+            box.setSelected( relevant != null && i < relevant.length && relevant[i] );
+            String s = snippet( i );
+            extract.setText( s == null ? " " : "<html>" + s + "</html>" );
+            extract.setVisible( snippets != null );
+            setBackground( selected ? list.getSelectionBackground() : list.getBackground() );
+            return this;
+        }
+    }
 
 
     /**
@@ -19,6 +19,26 @@ public class Searcher {
 
     /** The k-gram index to be searched by this Searcher */
     KGramIndex kgIndex;
+
+    /** Ranks by hubs and authorities in the link graph, or null if there is no link graph. */
+    HITSRanker hitsRanker = null;
+
+    /** Window size used by proximity queries that do not give one with near/k. */
+    public static final int DEFAULT_PROXIMITY_WINDOW = 5;
+
+    /** A wildcard term is expanded to at most this many terms. */
+    public static final int MAX_WILDCARD_TERMS = 1000;
+
+    /** Number of wildcard expansions kept in the cache. */
+    public static final int WILDCARD_CACHE_SIZE = 256;
+
+    /** The terms of the most recently used wildcard patterns. */
+    private final Map<String,String[]> wildcardCache = Collections.synchronizedMap(
+        new LinkedHashMap<String,String[]>( 16, 0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry<String,String[]> eldest ) {
+                return size() > WILDCARD_CACHE_SIZE;
+            }
+        });
     
     /** Constructor */
     public Searcher( Index index, KGramIndex kgIndex ) {
@@ -26,12 +46,85 @@ public class Searcher {
         this.kgIndex = kgIndex;
     }
 
+    /**
+     *  Returns the postings of a query term, or null if there are none.
+     *  A term with a '*' is a wildcard pattern, whose postings are those of
+     *  all the terms matching it, found through the k-gram index.
+     */
+    PostingsList postings( String term ) {
+        if ( kgIndex == null || term.indexOf( '*' ) < 0 ) {
+            return index.getPostings( term );
+        }
+        String[] terms = wildcardCache.get( term );
+        if ( terms != null ) {
+            Metrics.wildcardCache.hit();
+        } else {
+            Metrics.wildcardCache.miss();
+            terms = kgIndex.wildcardTerms( term, MAX_WILDCARD_TERMS );
+            if ( terms.length == MAX_WILDCARD_TERMS ) {
+                System.err.println( term + " was expanded to its first " + MAX_WILDCARD_TERMS + " terms only" );
+            }
+            wildcardCache.put( term, terms );
+        }
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        for ( String t : terms ) {
+            PostingsList pl = index.getPostings( t );
+            if ( pl != null && pl.size() > 0 ) lists.add( pl );
+        }
+        if ( lists.isEmpty() ) return null;
+        if ( lists.size() == 1 ) return lists.get( 0 );
+        return union( lists );
+    }
+
+
+    /**
+     *  Merges postings lists into one, going through all of them at once
+     *  with a heap ordered by the current docID of each list. A document in
+     *  several lists gets the positions of all of them.
+     */
+    static PostingsList union( List<PostingsList> lists ) {
+        // heap of list numbers, ordered by the docID at their cursor
+        int[] cursor = new int[lists.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>( lists.size(),
+            ( x, y ) -> Integer.compare( lists.get( x ).get( cursor[x] ).docID, lists.get( y ).get( cursor[y] ).docID ));
+        for ( int i=0; i<lists.size(); i++ ) heap.add( i );
+        PostingsList answer = new PostingsList();
+        while ( !heap.isEmpty() ) {
+            int i = heap.poll();
+            PostingsEntry pe = lists.get( i ).get( cursor[i] );
+            int last = answer.size() - 1;
+            if ( last >= 0 && answer.get( last ).docID == pe.docID ) {
+                ArrayList<Integer> offsets = answer.get( last ).offsets;
+                offsets.addAll( pe.offsets );
+                Collections.sort( offsets );
+            } else {
+                answer.insertPosting( new PostingsEntry( pe.docID, new ArrayList<Integer>( pe.offsets )));
+            }
+            if ( ++cursor[i] < lists.get( i ).size() ) heap.add( i );
+        }
+        return answer;
+    }
+
+
     public PostingsList intersectionSearch(PostingsList p1, PostingsList p2){
+        return intersectionSearch(p1, p2, Deadline.NONE);
+    }
+
+    /**
+     *  Intersects two lists until <code>deadline</code> expires. The answer
+     *  is then the common documents up to where the lists were read, and is
+     *  flagged as incomplete.
+     */
+    public PostingsList intersectionSearch(PostingsList p1, PostingsList p2, Deadline deadline){
         PostingsList answer = new PostingsList();
         int point1 = 0;
         int point2 = 0;
         if (p1 == null | p2 == null) return answer;
         while(point1 != p1.size() && point2 != p2.size()){
+            if (deadline.expired()) {
+                answer.incomplete = true;
+                break;
+            }
             if(p1.get(point1).docID == p2.get(point2).docID){
                 answer.insertPosting(new PostingsEntry(p1.get(point1).docID));
                 point1++;
@@ -43,10 +136,24 @@ public class Searcher {
     }
 
     public PostingsList positionalSearch(PostingsList pl1, PostingsList pl2){
+        return positionalSearch(pl1, pl2, Deadline.NONE);
+    }
+
+    /**
+     *  Finds where the term of <code>pl2</code> follows that of
+     *  <code>pl1</code>, until <code>deadline</code> expires. The answer is
+     *  then the documents up to where the lists were read, and is flagged
+     *  as incomplete.
+     */
+    public PostingsList positionalSearch(PostingsList pl1, PostingsList pl2, Deadline deadline){
         PostingsList answer = new PostingsList();
         int p1 = 0;
         int p2 = 0;
         while(p1 != pl1.size() && p2 != pl2.size()){
+            if (deadline.expired()) {
+                answer.incomplete = true;
+                break;
+            }
             // matching document
             if(pl1.get(p1).docID == pl2.get(p2).docID){
                 // positional lists and pointers
@@ -79,27 +186,194 @@ public class Searcher {
         return answer;
     }
 
-    public PostingsList rankedRetrieval(Query query){
+    /**
+     *  Returns the index of the first posting at or after <code>from</code>
+     *  whose docID is at least <code>docID</code>, or <code>pl.size()</code>
+     *  if there is none. Uses galloping followed by binary search so that
+     *  long lists are skipped through in logarithmic time.
+     */
+    private static int advance( PostingsList pl, int from, int docID ) {
+        int n = pl.size();
+        if ( from >= n || pl.get(from).docID >= docID ) return from;
+        int step = 1;
+        int lo = from;
+        int hi = from + 1;
+        while ( hi < n && pl.get(hi).docID < docID ) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        if ( hi > n ) hi = n;
+        // pl.get(lo).docID < docID, and hi is either n or a posting >= docID
+        while ( lo + 1 < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if ( pl.get(mid).docID < docID ) lo = mid;
+            else hi = mid;
+        }
+        return hi;
+    }
+
+    /**
+     *  Finds the documents in which all the lists' terms occur within
+     *  <code>window</code> words of each other.
+     *
+     *  The lists are intersected by docID (leapfrogging with galloping skips,
+     *  driven by the shortest list), and every common document is checked with
+     *  one sweep over the merged positions that keeps the minimal window covering
+     *  one occurrence of each term. The offsets of the answer entries are the
+     *  start positions of the matching windows.
+     */
+    public PostingsList proximitySearch( ArrayList<PostingsList> lists, int window ) {
+        return proximitySearch( lists, window, Deadline.NONE );
+    }
+
+    /**
+     *  Like {@link #proximitySearch(ArrayList,int)}, until <code>deadline</code>
+     *  expires. The answer is then the documents up to where the lists were
+     *  read, and is flagged as incomplete.
+     */
+    public PostingsList proximitySearch( ArrayList<PostingsList> lists, int window, Deadline deadline ) {
+        PostingsList answer = new PostingsList();
+        int n = lists.size();
+        if ( n == 0 ) return answer;
+        PostingsList[] pls = lists.toArray( new PostingsList[n] );
+        Arrays.sort( pls );
+        int[] ptr = new int[n];
+        int[] pos = new int[n];
+        int[] cur = new int[n];
+        while ( ptr[0] < pls[0].size() ) {
+            if ( deadline.expired() ) {
+                answer.incomplete = true;
+                return answer;
+            }
+            int docID = pls[0].get(ptr[0]).docID;
+            boolean aligned = true;
+            for ( int j=1; j<n; j++ ) {
+                ptr[j] = advance( pls[j], ptr[j], docID );
+                if ( ptr[j] == pls[j].size() ) return answer;
+                int d = pls[j].get(ptr[j]).docID;
+                if ( d != docID ) {
+                    // Skip the driving list forward to the larger docID and retry
+                    ptr[0] = advance( pls[0], ptr[0], d );
+                    aligned = false;
+                    break;
+                }
+            }
+            if ( !aligned ) continue;
+
+            // All terms occur in docID; sweep their positions.
+            ArrayList<Integer> ansPos = null;
+            int max = Integer.MIN_VALUE;
+            for ( int j=0; j<n; j++ ) {
+                pos[j] = 0;
+                cur[j] = pls[j].get(ptr[j]).offsets.get(0);
+                if ( cur[j] > max ) max = cur[j];
+            }
+            while ( true ) {
+                int minTerm = 0;
+                for ( int j=1; j<n; j++ ) {
+                    if ( cur[j] < cur[minTerm] ) minTerm = j;
+                }
+                if ( max - cur[minTerm] <= window ) {
+                    if ( ansPos == null ) ansPos = new ArrayList<>();
+                    ansPos.add( cur[minTerm] );
+                }
+                ArrayList<Integer> offsets = pls[minTerm].get(ptr[minTerm]).offsets;
+                if ( ++pos[minTerm] == offsets.size() ) break;
+                cur[minTerm] = offsets.get(pos[minTerm]);
+                if ( cur[minTerm] > max ) max = cur[minTerm];
+            }
+            if ( ansPos != null ) {
+                answer.insertPosting( new PostingsEntry( docID, ansPos ));
+            }
+            for ( int j=0; j<n; j++ ) ptr[j]++;
+        }
+        return answer;
+    }
+
+    /**
+     *  Runs a proximity search for the distinct terms of the query.
+     *
+     *  @return The matching documents, or null if there are none. A search
+     *  cut short before it found any returns an empty, incomplete list.
+     */
+    private PostingsList proximitySearch( Query query, Deadline deadline ) {
+        ArrayList<PostingsList> lists = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        for ( Query.QueryTerm qt : query.queryterm ) {
+            if ( !seen.add( qt.term )) continue;
+            PostingsList pl = postings( qt.term );
+            if ( pl == null || pl.size() == 0 ) return null;
+            lists.add( pl );
+        }
+        int window = query.window > 0 ? query.window : DEFAULT_PROXIMITY_WINDOW;
+        PostingsList answer = proximitySearch( lists, window, deadline );
+        return answer.size() == 0 && !answer.incomplete ? null : answer;
+    }
+
+    /**
+     *  Returns the docIDs of a postings list as a bit set, to be used as
+     *  a filter for ranked retrieval.
+     */
+    private static BitSet docSet( PostingsList pl ) {
+        BitSet set = new BitSet();
+        for ( PostingsEntry pe : pl.list ) set.set( pe.docID );
+        return set;
+    }
+
+    /**
+     *  Looks up the postings of the query terms, and orders the terms that
+     *  have some by increasing document frequency, so that a search cut
+     *  short by its deadline has scored the terms with the highest idf.
+     *  Stops looking up (with the terms found so far) if the deadline expires.
+     */
+    private ArrayList<Map.Entry<Query.QueryTerm,PostingsList>> termPostings(Query query, Deadline deadline){
+        ArrayList<Map.Entry<Query.QueryTerm,PostingsList>> terms = new ArrayList<>();
+        for (Query.QueryTerm qt : query.queryterm){
+            if (deadline.expiredNow()) break;
+            PostingsList pl = postings(qt.term);
+            if (pl != null) terms.add(new AbstractMap.SimpleEntry<>(qt, pl));
+        }
+        terms.sort((x, y) -> Integer.compare(x.getValue().size(), y.getValue().size()));
+        return terms;
+    }
+
+    /**
+     *  Ranks the documents containing any of the query terms by tf-idf.
+     *  If <code>filter</code> is not null, only documents in it are scored.
+     */
+    public PostingsList rankedRetrieval(Query query, BitSet filter){
+        return rankedRetrieval(query, filter, Deadline.NONE);
+    }
+
+    /**
+     *  Ranks by tf-idf until <code>deadline</code> expires. The answer is
+     *  then ranked by the terms (rarest first) scored so far, and is
+     *  flagged as incomplete.
+     */
+    public PostingsList rankedRetrieval(Query query, BitSet filter, Deadline deadline){
         int i = 0;
         PostingsList answer = new PostingsList();
         // mapping docIds to their index in the answer list
         HashMap<Integer,Integer> indexMap = new HashMap<>();
-        int numDocs = index.docNames.size();
+        int numDocs = index.numberOfDocs();
         //System.out.println("total docs : " + numDocs);
-        for (Query.QueryTerm qt :query.queryterm ){
-          //  System.out.println("##############NEW TERM################");
-            //System.out.println("query term : "+qt.term);
-            PostingsList pl = index.getPostings(qt.term);
+        scoring:
+        for (Map.Entry<Query.QueryTerm,PostingsList> term : termPostings(query, deadline)){
+            Query.QueryTerm qt = term.getKey();
+            PostingsList pl = term.getValue();
             //System.out.println("doc frequency of term "+qt.term+ " is "+ pl.size());
             double idf = Math.log((double) numDocs/ pl.size());
             //System.out.println("idf of term "+qt.term+ " is "+idf);
             for (PostingsEntry pe: pl.list){
-                int docLength = index.docLengths.get(pe.docID);
+                if (deadline.expired()) break scoring;
+                if (filter != null && !filter.get(pe.docID)) continue;
+                int docLength = index.docLength(pe.docID);
                 if (indexMap.containsKey(pe.docID)) {
                     int in = indexMap.get(pe.docID); // get index of existing doc in answer list
-                    answer.get(in).incrementScore(pe.calculateScore(idf,docLength,1));
+                    answer.get(in).incrementScore(pe.calculateScore(idf,docLength,qt.weight));
                 }else{
-                    pe.calculateScore(idf,docLength,1);
+                    pe.calculateScore(idf,docLength,qt.weight);
                     answer.list.add(pe);
                     // put new doc in index map , increment index
                     indexMap.put(pe.docID,i);
@@ -107,50 +381,86 @@ public class Searcher {
                 }
             }
         }
+        answer.incomplete = deadline.expired();
         Collections.sort(answer.list);
         return answer;
     }
 
-    public PostingsList pagedRankSearch(Query query){
+    /**
+     *  Ranks the documents containing any of the query terms by PageRank.
+     *  If <code>filter</code> is not null, only documents in it are scored.
+     */
+    public PostingsList pagedRankSearch(Query query, BitSet filter){
+        return pagedRankSearch(query, filter, Deadline.NONE);
+    }
+
+    /**
+     *  Ranks by PageRank until <code>deadline</code> expires. The answer is
+     *  then the documents found so far, and is flagged as incomplete.
+     */
+    public PostingsList pagedRankSearch(Query query, BitSet filter, Deadline deadline){
         PostingsList answer = new PostingsList();
         HashSet<Integer> set = new HashSet<>();
+        float[] ranks = index.metadata().ranks();
+        scoring:
         for (Query.QueryTerm qt : query.queryterm){
-            PostingsList pl = index.getPostings(qt.term);
+            if (deadline.expiredNow()) break;
+            PostingsList pl = postings(qt.term);
+            if (pl == null) continue;
 
             for (PostingsEntry pe: pl.list){
+                if (deadline.expired()) break scoring;
+                if (filter != null && !filter.get(pe.docID)) continue;
                 if(!set.contains(pe.docID)){
                     set.add(pe.docID);
-                    String docTitle = index.docNames.get(pe.docID);
-                    pe.score = index.docRanks.get(docTitle);
+                    pe.score = pe.docID < ranks.length ? ranks[pe.docID] : 0;
                     answer.list.add(pe);
                 }
             }
         }
+        answer.incomplete = deadline.expired();
         Collections.sort(answer.list);
         return answer;
     }
 
-    public PostingsList combinationSearch(Query query, double idf_w, double rank_w){
+    /**
+     *  Ranks the documents containing any of the query terms by a weighted
+     *  sum of tf-idf and PageRank. If <code>filter</code> is not null, only
+     *  documents in it are scored.
+     */
+    public PostingsList combinationSearch(Query query, double idf_w, double rank_w, BitSet filter){
+        return combinationSearch(query, idf_w, rank_w, filter, Deadline.NONE);
+    }
+
+    /**
+     *  Ranks by tf-idf and PageRank until <code>deadline</code> expires. The
+     *  answer is then ranked by the terms (rarest first) scored so far, and
+     *  is flagged as incomplete.
+     */
+    public PostingsList combinationSearch(Query query, double idf_w, double rank_w, BitSet filter, Deadline deadline){
         int i = 0;
         PostingsList answer = new PostingsList();
         // mapping docIds to their index in the answer list
         HashMap<Integer,Integer> indexMap = new HashMap<>();
-        int numDocs = index.docNames.size();
+        int numDocs = index.numberOfDocs();
+        float[] ranks = index.metadata().ranks();
         //  System.out.println("total docs : " + numDocs);
-        for (Query.QueryTerm qt :query.queryterm ){
-
-            PostingsList pl = index.getPostings(qt.term);
+        scoring:
+        for (Map.Entry<Query.QueryTerm,PostingsList> term : termPostings(query, deadline)){
+            Query.QueryTerm qt = term.getKey();
+            PostingsList pl = term.getValue();
 
             double idf = Math.log((double) numDocs/ pl.size());
             for (PostingsEntry pe: pl.list){
-                int docLength = index.docLengths.get(pe.docID);
+                if (deadline.expired()) break scoring;
+                if (filter != null && !filter.get(pe.docID)) continue;
+                int docLength = index.docLength(pe.docID);
                 if (indexMap.containsKey(pe.docID)) {
                     int in = indexMap.get(pe.docID); // get index of existing doc in answer list
-                    answer.get(in).incrementScore(pe.calculateScore(idf,docLength,idf_w));
+                    answer.get(in).incrementScore(pe.calculateScore(idf,docLength,idf_w*qt.weight));
                 }else{
-                    pe.calculateScore(idf,docLength,idf_w);
-                    String docTitle = index.docNames.get(pe.docID);
-                    double rank = index.docRanks.get(docTitle);
+                    pe.calculateScore(idf,docLength,idf_w*qt.weight);
+                    double rank = pe.docID < ranks.length ? ranks[pe.docID] : 0;
                     pe.incrementScore(rank * rank_w);
 
                     answer.list.add(pe);
@@ -160,55 +470,165 @@ public class Searcher {
                 }
             }
         }
+        answer.incomplete = deadline.expired();
         Collections.sort(answer.list);
         return answer;
     }
 
 
 
+    /**
+     *  Ranks the documents containing any of the query terms, and the pages
+     *  linked to and from them, by their hub and authority scores. Without
+     *  a link graph, ranks by tf-idf instead.
+     */
+    public PostingsList hitsSearch(Query query, BitSet filter){
+        return hitsSearch(query, filter, Deadline.NONE);
+    }
+
+    /**
+     *  Ranks by HITS, with the root set found until <code>deadline</code>
+     *  expires; the answer is then flagged as incomplete. The HITS
+     *  iterations themselves are not cut short.
+     */
+    public PostingsList hitsSearch(Query query, BitSet filter, Deadline deadline){
+        if (hitsRanker == null) return rankedRetrieval(query, filter, deadline);
+        PostingsList root = new PostingsList();
+        BitSet seen = new BitSet();
+        collect:
+        for (Query.QueryTerm qt : query.queryterm){
+            if (deadline.expiredNow()) break;
+            PostingsList pl = postings(qt.term);
+            if (pl == null) continue;
+            for (PostingsEntry pe : pl.list){
+                if (deadline.expired()) break collect;
+                if (filter != null && !filter.get(pe.docID)) continue;
+                if (!seen.get(pe.docID)) {
+                    seen.set(pe.docID);
+                    root.insertPosting(pe);
+                }
+            }
+        }
+        if (root.size() == 0) return null;
+        PostingsList ranked = hitsRanker.rank(root);
+        if (ranked != null) ranked.incomplete = deadline.expired();
+        return ranked;
+    }
+
+
+
     /**
      *  Searches the index for postings matching the query.
      *  @return A postings list representing the result of the query.
      */
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType ) { 
+        return search( query, queryType, rankingType, normType, Deadline.NONE );
+    }
+
+    /**
+     *  Searches the index for postings matching the query, taking at most
+     *  <code>budgetMs</code> milliseconds (no limit if it is not positive).
+     */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, long budgetMs ) {
+        return search( query, queryType, rankingType, normType, new Deadline( budgetMs ));
+    }
+
+    /**
+     *  Searches the index for postings matching the query, until
+     *  <code>deadline</code> expires. A search cut short returns what it has
+     *  found so far, flagged as {@link PostingsList#incomplete}: the
+     *  documents of an intersection, phrase or proximity query up to where
+     *  the postings were read, or a ranking by the terms scored so far.
+     *  @return A postings list representing the result of the query.
+     */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, Deadline deadline ) {
+        long startTime = System.nanoTime();
+        try {
+            return execute( query, queryType, rankingType, normType, deadline );
+        } finally {
+            Metrics.search( queryType, queryType == QueryType.RANKED_QUERY ? rankingType : null ).record( System.nanoTime() - startTime );
+        }
+    }
+
+    private PostingsList execute( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, Deadline deadline ) {
         //
         //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
         //
        switch (queryType) {
            case INTERSECTION_QUERY:
-               if (query.queryterm.size() == 1) return index.getPostings(query.queryterm.get(0).term);
+               if (query.queryterm.size() == 1) return postings(query.queryterm.get(0).term);
                else {
                    // priority queue for postings lists with smaller lists having higher priority
                    PriorityQueue<PostingsList> qpl = new PriorityQueue<>();
                    for (Query.QueryTerm qt: query.queryterm) {
-                       if(index.getPostings(qt.term) == null) return null;
-                       qpl.add(index.getPostings(qt.term));
+                       PostingsList pl = postings(qt.term);
+                       if(pl == null) return null;
+                       qpl.add(pl);
                    }
                    PostingsList answer = qpl.poll();
+                   boolean incomplete = false;
                    while(!qpl.isEmpty()){
-                       answer = intersectionSearch(answer,qpl.poll());
-                       if (answer.size() == 0) return null;
+                       // once cut short, the answer is intersected with the other lists in full,
+                       // which only reads them up to its last document
+                       answer = intersectionSearch(answer,qpl.poll(), incomplete ? Deadline.NONE : deadline);
+                       incomplete |= answer.incomplete;
+                       if (answer.size() == 0) break;
                    }
+                   // an answer emptied by the deadline is not the same as no match
+                   if (answer.size() == 0 && !incomplete) return null;
+                   answer.incomplete = incomplete;
                    return answer;
                }
            case PHRASE_QUERY:
-               PostingsList answer = index.getPostings(query.queryterm.get(0).term);
-               for (int i=1; i<query.queryterm.size();i++){
-                   answer = positionalSearch(answer,index.getPostings(query.queryterm.get(i).term));
-                   if (answer.size() == 0) return null;
+               PostingsList answer = postings(query.queryterm.get(0).term);
+               boolean incomplete = false;
+               for (int i=1; i<query.queryterm.size() && answer != null;i++){
+                   PostingsList next = postings(query.queryterm.get(i).term);
+                   if (next == null) return null;
+                   // as for intersections, a cut short answer is completed with the other terms
+                   answer = positionalSearch(answer,next, incomplete ? Deadline.NONE : deadline);
+                   incomplete |= answer.incomplete;
+                   if (answer.size() == 0) break;
                }
+               if (answer == null || answer.size() == 0 && !incomplete) return null;
+               answer.incomplete = incomplete;
                return answer;
+           case PROXIMITY_QUERY:
+               return proximitySearch(query, deadline);
            case RANKED_QUERY:
+                // a near/k in a ranked query restricts the ranking to the
+                // documents passing the proximity filter
+                BitSet filter = null;
+                // once the proximity filter is cut short, the documents it
+                // found are ranked in full
+                Deadline rankDeadline = deadline;
+                if (query.window > 0) {
+                    PostingsList near = proximitySearch(query, deadline);
+                    if (near == null) return null;
+                    filter = docSet(near);
+                    if (near.incomplete) rankDeadline = Deadline.NONE;
+                }
+                PostingsList ranked = null;
                 switch(rankingType){
                     case TF_IDF:
-                        return rankedRetrieval(query);
+                        ranked = rankedRetrieval(query, filter, rankDeadline);
+                        break;
                     case PAGERANK:
-                        return pagedRankSearch(query);
+                        ranked = pagedRankSearch(query, filter, rankDeadline);
+                        break;
                     case COMBINATION:
-                        return combinationSearch(query,1,200);
+                        ranked = combinationSearch(query,1,200, filter, rankDeadline);
+                        break;
+                    case HITS:
+                        ranked = hitsSearch(query, filter, rankDeadline);
+                        break;
                 }
+                if (ranked == null) return null;
+                ranked.incomplete |= rankDeadline != deadline;
+                if (ranked.size() == 0 && !ranked.incomplete) return null;
+                return ranked;
            default:
-               return index.getPostings(query.queryterm.get(0).term);
+               return postings(query.queryterm.get(0).term);
        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,793 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ *   Implements an inverted index as a list of immutable segments on disk.
+ *
+ *   Tokens are first collected in a main-memory buffer. When the buffer holds
+ *   FLUSH_POSTINGS positions, it is written as a new segment covering the
+ *   documents indexed since the previous flush. A segment stores its docIDs
+ *   relative to its first document, so a postings list is read by
+ *   concatenating the lists of all segments in docID order, adding each
+ *   segment's base docID.
+ *
+ *   A background thread merges segments with a size-tiered policy: whenever
+ *   MERGE_FACTOR adjacent segments are in about the same size tier, they are
+ *   rewritten as one. A document is thus rewritten about log(N) times,
+ *   instead of once per commit as with PersistentHashedIndex.writeIndex.
+ *   The list of live segments is kept in the manifest file.
+ */
+public class SegmentedIndex implements Index {
+
+    /** The directory where the segments are stored. */
+    public static final String SEGMENTDIR = PersistentHashedIndex.INDEXDIR + "/segments";
+
+    /** The manifest file name */
+    public static final String MANIFEST_FNAME = "segments";
+
+    /** Number of buffered positions that triggers a flush to a new segment. */
+    public static final long FLUSH_POSTINGS = 2000000L;
+
+    /** Number of segments of one tier that are merged together. */
+    public static final int MERGE_FACTOR = 4;
+
+    /** Segments smaller than this many bytes are all in the lowest tier. */
+    public static final long MIN_TIER_BYTES = 1L << 20;
+
+    /** Identifies a segment file ("SEG2"). */
+    static final int MAGIC = 0x53454732;
+
+    /** Identifies a segment file written before the dictionary held the df ("SEG1"). */
+    static final int MAGIC_V1 = 0x53454731;
+
+    /** Size of the footer at the end of a segment file. */
+    static final int FOOTER_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+
+    /** Number of buffered positions that triggers a flush in this index. */
+    long flushPostings = FLUSH_POSTINGS;
+
+    /** Time spent writing segments, in nanoseconds. */
+    private long flushNanos = 0;
+
+    /** The names, lengths and ranks of the documents. */
+    private final DocMetadata metadata = new DocMetadata();
+
+    /** The buffered postings of the documents not yet in a segment. */
+    HashMap<String,PostingsList> buffer = new HashMap<String,PostingsList>();
+
+    /** Number of positions in the buffer. */
+    long bufferedPostings = 0;
+
+    /** The last docID inserted. */
+    int lastDocID = -1;
+
+    /** First docID not covered by a segment. */
+    int flushedUpTo = 0;
+
+    /** The live segments in docID order. Replaced, never modified. */
+    private volatile List<Segment> segments = Collections.emptyList();
+
+    /** The segments whose distinct terms were last counted, and their number. */
+    private List<Segment> countedSegments = null;
+    private int countedTerms = 0;
+
+    /** Guards changes to <code>segments</code> and the manifest. */
+    private final Object segmentsLock = new Object();
+
+    /** Generation number of the next segment file. */
+    private final AtomicInteger generation = new AtomicInteger( 0 );
+
+    /** The background thread merging segments. */
+    private final ExecutorService merger = Executors.newSingleThreadExecutor( r -> {
+        Thread t = new Thread( r, "segment-merger" );
+        t.setDaemon( true );
+        return t;
+    });
+
+
+    // ===================================================================
+
+    /**
+     *   One immutable segment on disk.
+     */
+    static class Segment {
+        final File file;
+        final int base;
+        final int numDocs;
+        final long bytes;
+        /** Where the doc table starts and ends in the file. */
+        final long docTableOffset, dictOffset;
+        final String[] terms;
+        final long[] offsets;
+        final int[] sizes;
+        /** The number of documents of each term, or null if the dictionary does not hold it. */
+        final int[] dfs;
+        final FileChannel channel;
+        private int refs = 0;
+        private boolean retired = false;
+
+        Segment( File file ) throws IOException {
+            this.file = file;
+            channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+            bytes = channel.size();
+            ByteBuffer footer = read( bytes - FOOTER_SIZE, FOOTER_SIZE );
+            docTableOffset = footer.getLong();
+            dictOffset = footer.getLong();
+            int numTerms = footer.getInt();
+            base = footer.getInt();
+            numDocs = footer.getInt();
+            int magic = footer.getInt();
+            if ( magic != MAGIC && magic != MAGIC_V1 ) {
+                channel.close();
+                throw new IOException( file + " is not a segment" );
+            }
+            terms = new String[numTerms];
+            offsets = new long[numTerms];
+            sizes = new int[numTerms];
+            dfs = magic == MAGIC ? new int[numTerms] : null;
+            ByteBuffer dict = read( dictOffset, (int)(bytes - FOOTER_SIZE - dictOffset) );
+            long offset = 0;
+            for ( int i=0; i<numTerms; i++ ) {
+                byte[] term = new byte[VByte.read( dict )];
+                dict.get( term );
+                terms[i] = new String( term, StandardCharsets.UTF_8 );
+                sizes[i] = VByte.read( dict );
+                if ( dfs != null ) dfs[i] = VByte.read( dict );
+                offsets[i] = offset;
+                offset += sizes[i];
+            }
+        }
+
+        ByteBuffer read( long pos, int size ) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate( size );
+            while ( buf.hasRemaining() ) {
+                if ( channel.read( buf, pos + buf.position() ) < 0 ) throw new EOFException();
+            }
+            buf.flip();
+            Metrics.diskRead( size );
+            return buf;
+        }
+
+        /**
+         *  Returns the number of documents of a term in this segment. For
+         *  an old segment, it is read from the start of the postings.
+         */
+        int docFrequency( String term ) throws IOException {
+            int i = Arrays.binarySearch( terms, term );
+            if ( i < 0 ) return 0;
+            if ( dfs != null ) return dfs[i];
+            return VByte.read( read( offsets[i], Math.min( sizes[i], 5 )));
+        }
+
+        /** Returns the encoded names and lengths of the documents. */
+        ByteBuffer docTable() throws IOException {
+            return read( docTableOffset, (int)(dictOffset - docTableOffset) );
+        }
+
+        /** Returns the encoded postings of a term, or null. */
+        ByteBuffer postings( String term ) throws IOException {
+            int i = Arrays.binarySearch( terms, term );
+            if ( i < 0 ) return null;
+            return read( offsets[i], sizes[i] );
+        }
+
+        synchronized void acquire() {
+            refs++;
+        }
+
+        synchronized void release() {
+            if ( --refs == 0 && retired ) delete();
+        }
+
+        /** Deletes the segment once no reader uses it any more. */
+        synchronized void retire() {
+            retired = true;
+            if ( refs == 0 ) delete();
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+            } catch ( IOException e ) {
+            }
+            file.delete();
+        }
+    }
+
+
+    // ==================================================================
+
+
+    /**
+     *  Constructor. Opens the segments listed in the manifest, if any.
+     */
+    public SegmentedIndex() {
+        new File( SEGMENTDIR ).mkdirs();
+        File manifest = new File( SEGMENTDIR, MANIFEST_FNAME );
+        if ( !manifest.exists() ) return;
+        ArrayList<Segment> list = new ArrayList<Segment>();
+        try ( BufferedReader br = new BufferedReader( new FileReader( manifest ))) {
+            String line;
+            while (( line = br.readLine()) != null ) {
+                line = line.trim();
+                if ( line.length() == 0 ) continue;
+                Segment seg = new Segment( new File( SEGMENTDIR, line ));
+                readDocTable( seg );
+                list.add( seg );
+                generation.set( Math.max( generation.get(), generationOf( line ) + 1 ));
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        segments = Collections.unmodifiableList( list );
+        removeUnlisted();
+        if ( !list.isEmpty() ) {
+            Segment last = list.get( list.size() - 1 );
+            flushedUpTo = last.base + last.numDocs;
+            lastDocID = flushedUpTo - 1;
+        }
+    }
+
+
+    /** Returns the names, lengths and ranks of the documents. */
+    public DocMetadata metadata() {
+        return metadata;
+    }
+
+
+    /** Time spent writing segments so far, in nanoseconds. */
+    public long flushNanos() {
+        return flushNanos;
+    }
+
+
+    /** The first docID that new documents should get. */
+    public int nextDocID() {
+        return flushedUpTo;
+    }
+
+
+    /** Number of live segments. */
+    public int numberOfSegments() {
+        return segments.size();
+    }
+
+
+    /**
+     *  Removes all segments and documents, so that the corpus can be
+     *  indexed from scratch.
+     */
+    public void clear() {
+        awaitMerges();
+        synchronized ( segmentsLock ) {
+            for ( Segment seg : segments ) {
+                seg.retire();
+            }
+            segments = Collections.emptyList();
+            writeManifest();
+        }
+        metadata.clear();
+        buffer.clear();
+        bufferedPostings = 0;
+        flushedUpTo = 0;
+        lastDocID = -1;
+    }
+
+
+    /** Deletes segment files left behind by an interrupted flush or merge. */
+    private void removeUnlisted() {
+        HashSet<String> live = new HashSet<String>();
+        for ( Segment seg : segments ) {
+            live.add( seg.file.getName() );
+        }
+        File[] files = new File( SEGMENTDIR ).listFiles();
+        if ( files == null ) return;
+        for ( File f : files ) {
+            if ( f.getName().endsWith( ".seg" ) && !live.contains( f.getName() )) {
+                f.delete();
+            }
+        }
+    }
+
+
+    private static int generationOf( String name ) {
+        try {
+            return Integer.parseInt( name.substring( 4, name.indexOf( '.' )));
+        } catch ( RuntimeException e ) {
+            return 0;
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Writing segments.
+
+
+    /**
+     *  Inserts this token in the main-memory buffer. When a new document
+     *  starts and the buffer is full, the previous documents are first
+     *  flushed to a new segment.
+     */
+    public void insert( String token, int docID, int offset ) {
+        if ( docID != lastDocID ) {
+            if ( bufferedPostings >= flushPostings ) {
+                flush( docID );
+            }
+            lastDocID = docID;
+        }
+        PostingsList pl = buffer.get( token );
+        if ( pl == null ) {
+            pl = new PostingsList();
+            buffer.put( token, pl );
+        }
+        if ( pl.size() == 0 || pl.get( pl.size()-1 ).docID != docID ) {
+            pl.insertPosting( new PostingsEntry( docID ));
+        }
+        pl.get( pl.size()-1 ).addOffset( offset );
+        bufferedPostings++;
+    }
+
+
+    /**
+     *  Writes the buffered documents below <code>end</code> as a new segment,
+     *  and schedules a merge check.
+     */
+    void flush( int end ) {
+        if ( end <= flushedUpTo ) return;
+        long startTime = System.nanoTime();
+        try {
+            File file = newSegmentFile();
+            SegmentWriter w = new SegmentWriter( file, flushedUpTo );
+            String[] terms = buffer.keySet().toArray( new String[0] );
+            Arrays.sort( terms );
+            for ( String term : terms ) {
+                w.addTerm( term, buffer.get( term ).list );
+            }
+            for ( int docID=flushedUpTo; docID<end; docID++ ) {
+                w.addDoc( metadata.name( docID ), metadata.length( docID ));
+            }
+            w.close();
+            Segment seg = new Segment( file );
+            synchronized ( segmentsLock ) {
+                ArrayList<Segment> list = new ArrayList<Segment>( segments );
+                list.add( seg );
+                segments = Collections.unmodifiableList( list );
+                writeManifest();
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        buffer = new HashMap<String,PostingsList>();
+        bufferedPostings = 0;
+        flushedUpTo = end;
+        flushNanos += System.nanoTime() - startTime;
+        merger.submit( this::maybeMerge );
+    }
+
+
+    private File newSegmentFile() {
+        return new File( SEGMENTDIR, "seg_" + generation.getAndIncrement() + ".seg" );
+    }
+
+
+    /**
+     *  Writes one segment file:
+     *  <pre>
+     *    postings:   for each term, in sorted order: df, then for each document
+     *                the docID gap, tf, and the position gaps (all VByte-coded)
+     *    doc table:  for each document: length, name length, name in UTF-8
+     *    dictionary: for each term: length of term, term in UTF-8, postings size, df
+     *    footer:     long doc table offset, long dictionary offset, int number
+     *                of terms, int base docID, int number of documents, int MAGIC
+     *  </pre>
+     */
+    static class SegmentWriter {
+        final CountingOutput counter;
+        final DataOutputStream out;
+        final ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        final DataOutputStream dictOut = new DataOutputStream( dict );
+        final ByteArrayOutputStream docs = new ByteArrayOutputStream();
+        final DataOutputStream docsOut = new DataOutputStream( docs );
+        final int base;
+        int numTerms = 0;
+        int numDocs = 0;
+
+        SegmentWriter( File file, int base ) throws IOException {
+            counter = new CountingOutput( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ));
+            out = new DataOutputStream( counter );
+            this.base = base;
+        }
+
+        /** Adds the postings of a term; the terms must come in sorted order. */
+        void addTerm( String term, List<PostingsEntry> entries ) throws IOException {
+            long before = counter.count;
+            VByte.write( out, entries.size() );
+            int prev = -1;
+            for ( PostingsEntry pe : entries ) {
+                int local = pe.docID - base;
+                VByte.write( out, local - prev );
+                prev = local;
+                VByte.write( out, pe.offsets.size() );
+                int prevPos = 0;
+                for ( int pos : pe.offsets ) {
+                    VByte.write( out, pos - prevPos );
+                    prevPos = pos;
+                }
+            }
+            int size = (int)(counter.count - before);
+            byte[] t = term.getBytes( StandardCharsets.UTF_8 );
+            VByte.write( dictOut, t.length );
+            dictOut.write( t );
+            VByte.write( dictOut, size );
+            VByte.write( dictOut, entries.size() );
+            numTerms++;
+        }
+
+        /** Adds the next document's name and length. */
+        void addDoc( String name, int length ) throws IOException {
+            byte[] n = ( name == null ? "" : name ).getBytes( StandardCharsets.UTF_8 );
+            VByte.write( docsOut, length );
+            VByte.write( docsOut, n.length );
+            docsOut.write( n );
+            numDocs++;
+        }
+
+        /** Adds the doc table of a segment as it is, for a merge. */
+        void addDocs( ByteBuffer table, int n ) throws IOException {
+            docsOut.write( table.array(), table.arrayOffset() + table.position(), table.remaining() );
+            numDocs += n;
+        }
+
+        void close() throws IOException {
+            long docTableOffset = counter.count;
+            docs.writeTo( out );
+            long dictOffset = docTableOffset + docs.size();
+            dict.writeTo( out );
+            out.writeLong( docTableOffset );
+            out.writeLong( dictOffset );
+            out.writeInt( numTerms );
+            out.writeInt( base );
+            out.writeInt( numDocs );
+            out.writeInt( MAGIC );
+            out.close();
+        }
+    }
+
+
+    /** Counts the bytes written through it, past what an int can hold. */
+    static class CountingOutput extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutput( OutputStream out ) {
+            super( out );
+        }
+
+        public void write( int b ) throws IOException {
+            out.write( b );
+            count++;
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+            count += len;
+        }
+    }
+
+
+    /** Reads the documents' names and lengths of a segment into the metadata. */
+    private void readDocTable( Segment seg ) throws IOException {
+        ByteBuffer table = seg.docTable();
+        for ( int i=0; i<seg.numDocs; i++ ) {
+            int length = VByte.read( table );
+            byte[] name = new byte[VByte.read( table )];
+            table.get( name );
+            metadata.add( seg.base + i, new String( name, StandardCharsets.UTF_8 ), length );
+        }
+    }
+
+
+    /** Writes the list of live segments, replacing the old list atomically. */
+    private void writeManifest() {
+        File tmp = new File( SEGMENTDIR, MANIFEST_FNAME + ".tmp" );
+        try ( PrintWriter pw = new PrintWriter( new FileWriter( tmp ))) {
+            for ( Segment seg : segments ) {
+                pw.println( seg.file.getName() );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move( tmp.toPath(), new File( SEGMENTDIR, MANIFEST_FNAME ).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Merging segments.
+
+
+    /** The size tier of a segment. */
+    static int tier( Segment seg ) {
+        int tier = 0;
+        long size = MIN_TIER_BYTES;
+        while ( seg.bytes >= size && tier < 30 ) {
+            size *= MERGE_FACTOR;
+            tier++;
+        }
+        return tier;
+    }
+
+
+    /**
+     *  Merges runs of MERGE_FACTOR adjacent segments of about the same size,
+     *  i.e. whose tiers differ by at most one, until there are none left.
+     *  The merged segment is at least one tier above the smallest of them,
+     *  so every document is rewritten a logarithmic number of times.
+     *  Runs on the merger thread.
+     */
+    void maybeMerge() {
+        while ( true ) {
+            List<Segment> current = segments;
+            int start = -1;
+            for ( int i=0; i+MERGE_FACTOR<=current.size() && start<0; i++ ) {
+                int min = Integer.MAX_VALUE, max = 0;
+                for ( int j=i; j<i+MERGE_FACTOR; j++ ) {
+                    int t = tier( current.get( j ));
+                    min = Math.min( min, t );
+                    max = Math.max( max, t );
+                }
+                if ( max - min <= 1 ) start = i;
+            }
+            if ( start < 0 ) return;
+            try {
+                merge( current.subList( start, start+MERGE_FACTOR ));
+            } catch ( IOException e ) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     *  Merges adjacent segments into one, then swaps it in for them.
+     */
+    private void merge( List<Segment> segs ) throws IOException {
+        final List<Segment> run = new ArrayList<Segment>( segs );
+        Segment first = run.get( 0 );
+        File file = newSegmentFile();
+        SegmentWriter w = new SegmentWriter( file, first.base );
+        // k-way merge of the sorted dictionaries
+        int[] next = new int[run.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(
+            (a, b) -> run.get( a ).terms[next[a]].compareTo( run.get( b ).terms[next[b]] ));
+        for ( int s=0; s<run.size(); s++ ) {
+            if ( run.get( s ).terms.length > 0 ) heap.add( s );
+        }
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>();
+        ArrayList<Integer> sources = new ArrayList<Integer>();
+        while ( !heap.isEmpty() ) {
+            String term = run.get( heap.peek() ).terms[next[heap.peek()]];
+            sources.clear();
+            while ( !heap.isEmpty() && run.get( heap.peek() ).terms[next[heap.peek()]].equals( term )) {
+                sources.add( heap.poll() );
+            }
+            Collections.sort( sources );
+            entries.clear();
+            for ( int s : sources ) {
+                Segment seg = run.get( s );
+                decode( seg.read( seg.offsets[next[s]], seg.sizes[next[s]] ), seg.base, entries );
+                if ( ++next[s] < seg.terms.length ) heap.add( s );
+            }
+            w.addTerm( term, entries );
+        }
+        for ( Segment seg : run ) {
+            w.addDocs( seg.docTable(), seg.numDocs );
+        }
+        w.close();
+        Segment merged = new Segment( file );
+        synchronized ( segmentsLock ) {
+            ArrayList<Segment> list = new ArrayList<Segment>( segments );
+            int at = list.indexOf( first );
+            list.subList( at, at + run.size() ).clear();
+            list.add( at, merged );
+            segments = Collections.unmodifiableList( list );
+            writeManifest();
+        }
+        for ( Segment seg : run ) {
+            seg.retire();
+        }
+    }
+
+
+    /** Waits until all scheduled merges have run. */
+    void awaitMerges() {
+        try {
+            merger.submit( () -> {} ).get();
+        } catch ( InterruptedException | ExecutionException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Reading postings.
+
+
+    /**
+     *  Decodes an encoded postings list, appending the entries with
+     *  <code>base</code> added to their docIDs.
+     */
+    static void decode( ByteBuffer buf, int base, List<PostingsEntry> entries ) {
+        int df = VByte.read( buf );
+        int docID = base - 1;
+        for ( int i=0; i<df; i++ ) {
+            docID += VByte.read( buf );
+            int tf = VByte.read( buf );
+            ArrayList<Integer> offsets = new ArrayList<Integer>( tf );
+            int pos = 0;
+            for ( int j=0; j<tf; j++ ) {
+                pos += VByte.read( buf );
+                offsets.add( pos );
+            }
+            entries.add( new PostingsEntry( docID, offsets ));
+        }
+    }
+
+
+    /**
+     *  Returns the postings for a specific term, or null
+     *  if the term is not in the index.
+     */
+    public PostingsList getPostings( String token ) {
+        List<Segment> current;
+        synchronized ( segmentsLock ) {
+            current = segments;
+            for ( Segment seg : current ) seg.acquire();
+        }
+        PostingsList result = new PostingsList();
+        try {
+            for ( Segment seg : current ) {
+                ByteBuffer buf = seg.postings( token );
+                if ( buf != null ) {
+                    int before = result.size();
+                    decode( buf, seg.base, result.list );
+                    Metrics.postingsDecoded( result.size() - before );
+                }
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        } finally {
+            for ( Segment seg : current ) seg.release();
+        }
+        PostingsList buffered = buffer.get( token );
+        if ( buffered != null ) {
+            for ( PostingsEntry pe : buffered.list ) {
+                result.insertPosting( new PostingsEntry( pe.docID, new ArrayList<Integer>( pe.offsets )));
+            }
+        }
+        if ( result.size() == 0 ) return null;
+        Metrics.postingsRead( result.size() );
+        return result;
+    }
+
+
+    /**
+     *  Returns the number of documents containing a term, from the
+     *  dictionaries of the segments and the buffer.
+     */
+    public int docFrequency( String token ) {
+        List<Segment> current;
+        synchronized ( segmentsLock ) {
+            current = segments;
+            for ( Segment seg : current ) seg.acquire();
+        }
+        int df = 0;
+        try {
+            for ( Segment seg : current ) {
+                df += seg.docFrequency( token );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        } finally {
+            for ( Segment seg : current ) seg.release();
+        }
+        PostingsList buffered = buffer.get( token );
+        if ( buffered != null ) df += buffered.size();
+        return df;
+    }
+
+
+    /**
+     *  Returns the number of distinct terms of the segments, counted from
+     *  their dictionaries in memory whenever the list of segments has
+     *  changed. The terms still in the buffer, which only the indexing
+     *  thread may read, are counted once they are flushed.
+     */
+    public synchronized int numberOfTerms() {
+        final List<Segment> current = segments;
+        if ( current == countedSegments ) return countedTerms;
+        int count = 0;
+        if ( current.size() == 1 ) {
+            count = current.get( 0 ).terms.length;
+        } else if ( current.size() > 1 ) {
+            // k-way merge of the sorted dictionaries, counting each term once
+            final int[] next = new int[current.size()];
+            PriorityQueue<Integer> heap = new PriorityQueue<Integer>(
+                (a, b) -> current.get( a ).terms[next[a]].compareTo( current.get( b ).terms[next[b]] ));
+            for ( int s=0; s<current.size(); s++ ) {
+                if ( current.get( s ).terms.length > 0 ) heap.add( s );
+            }
+            String last = null;
+            while ( !heap.isEmpty() ) {
+                int s = heap.poll();
+                String term = current.get( s ).terms[next[s]];
+                if ( !term.equals( last )) count++;
+                last = term;
+                if ( ++next[s] < current.get( s ).terms.length ) heap.add( s );
+            }
+        }
+        countedSegments = current;
+        countedTerms = count;
+        return count;
+    }
+
+
+    /**
+     *  Returns the terms of all segments and of the buffer.
+     */
+    public Collection<String> vocabulary() {
+        List<Segment> current;
+        synchronized ( segmentsLock ) {
+            current = segments;
+            for ( Segment seg : current ) seg.acquire();
+        }
+        HashSet<String> terms = new HashSet<String>( buffer.keySet() );
+        try {
+            for ( Segment seg : current ) {
+                Collections.addAll( terms, seg.terms );
+            }
+        } finally {
+            for ( Segment seg : current ) seg.release();
+        }
+        return terms;
+    }
+
+
+    /**
+     *  Flushes the remaining documents to a segment after indexing is done,
+     *  and waits for the merges to finish.
+     */
+    public void cleanup() {
+        int end = lastDocID + 1;
+        end = Math.max( end, metadata.size() );
+        System.err.print( "Writing segments to disk..." );
+        flush( end );
+        awaitMerges();
+        System.err.println( "done! " + segments.size() + " segments." );
+    }
+}
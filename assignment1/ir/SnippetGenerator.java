@@ -0,0 +1,195 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *  Makes a short extract of each displayed result, around where the query
+ *  terms occur, with the occurrences in bold.
+ *
+ *  The positions of the query terms in a document come from their postings
+ *  lists, which are looked up once per query. The {@link DocumentStore}
+ *  turns the positions into characters of the text: it must have been
+ *  created to keep the tokens of the documents. The extract is the window
+ *  of {@link #WINDOW} tokens with the most distinct query terms, then the
+ *  most occurrences.
+ *
+ *  Extracts are made until {@link #BUDGET_MS} milliseconds have been spent
+ *  on a page of results; the remaining results of the page get none.
+ */
+public class SnippetGenerator {
+
+    /** Number of tokens in an extract. */
+    public static final int WINDOW = 20;
+
+    /** Number of tokens shown before the first occurrence in the window. */
+    public static final int CONTEXT = 3;
+
+    /** Largest time spent on the extracts of one page of results, in milliseconds. */
+    public static final long BUDGET_MS = 20;
+
+    /** Finds the postings of the query terms, wildcards included. */
+    private final Searcher searcher;
+
+    /** The text and tokens of the documents. */
+    private final DocumentStore documents;
+
+    /** The query whose postings are in <code>lists</code>. */
+    private Query lastQuery = null;
+
+    /** The postings of each term of <code>lastQuery</code> (null if it has none). */
+    private PostingsList[] lists = null;
+
+
+    public SnippetGenerator( Searcher searcher, DocumentStore documents ) {
+        this.searcher = searcher;
+        this.documents = documents;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Returns the extracts of the results <code>from</code> to
+     *  <code>to</code> (exclusive), as HTML fragments. An entry is null if
+     *  the document has no extract, or if the time budget ran out first.
+     */
+    public synchronized String[] snippets( Query query, PostingsList results, int from, int to ) {
+        to = Math.min( to, results.size() );
+        String[] result = new String[Math.max( 0, to - from )];
+        if ( !documents.keepsTokens() ) return result;
+        long deadline = System.nanoTime() + BUDGET_MS * 1000000L;
+        if ( query != lastQuery ) {
+            lists = new PostingsList[query.queryterm.size()];
+            for ( int t=0; t<lists.length; t++ ) {
+                lists[t] = searcher.postings( query.queryterm.get( t ).term );
+            }
+            lastQuery = query;
+        }
+        for ( int i=from; i<to; i++ ) {
+            if ( System.nanoTime() > deadline ) break;
+            result[i-from] = snippet( results.get( i ).docID );
+        }
+        return result;
+    }
+
+
+    /** The extract of <code>docID</code>, or null. */
+    private String snippet( int docID ) {
+        // (position << 32 | term number) of every occurrence of a query term
+        long[] matches = new long[16];
+        int n = 0;
+        for ( int t=0; t<lists.length; t++ ) {
+            PostingsEntry entry = find( lists[t], docID );
+            if ( entry == null ) continue;
+            if ( n + entry.offsets.size() > matches.length ) {
+                matches = Arrays.copyOf( matches, Math.max( 2 * matches.length, n + entry.offsets.size() ));
+            }
+            for ( int offset : entry.offsets ) {
+                matches[n++] = (long)offset << 32 | t;
+            }
+        }
+        if ( n == 0 ) return null;
+        int[] spans = documents.tokens( docID );
+        String text = documents.text( docID );
+        if ( spans == null || text == null ) return null;
+        Arrays.sort( matches, 0, n );
+
+        // the window starting at each occurrence, keeping the best one
+        int best = 0;
+        int bestScore = -1;
+        int[] seen = new int[lists.length];
+        for ( int i=0; i<n; i++ ) {
+            int start = (int)( matches[i] >> 32 );
+            int distinct = 0;
+            int count = 0;
+            for ( int j=i; j<n && (int)( matches[j] >> 32 ) < start + WINDOW; j++ ) {
+                int t = (int)matches[j];
+                if ( seen[t] != i + 1 ) {
+                    seen[t] = i + 1;
+                    distinct++;
+                }
+                count++;
+            }
+            int score = distinct * ( n + 1 ) + count;
+            if ( score > bestScore ) {
+                bestScore = score;
+                best = i;
+            }
+        }
+
+        int numTokens = spans.length / 2;
+        int first = Math.max( 0, (int)( matches[best] >> 32 ) - CONTEXT );
+        int last = Math.min( numTokens, first + WINDOW ) - 1;
+        if ( first > last || spans[2*last] + spans[2*last+1] > text.length() ) {
+            // the text has changed since it was indexed
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        if ( first > 0 ) sb.append( "... " );
+        int m = best;
+        while ( m > 0 && (int)( matches[m-1] >> 32 ) >= first ) m--;
+        for ( int k=first; k<=last; k++ ) {
+            if ( k > first ) {
+                escape( text, spans[2*k-2] + spans[2*k-1], spans[2*k], sb );
+            }
+            boolean match = false;
+            while ( m < n && (int)( matches[m] >> 32 ) <= k ) {
+                match |= (int)( matches[m] >> 32 ) == k;
+                m++;
+            }
+            if ( match ) sb.append( "<b>" );
+            escape( text, spans[2*k], spans[2*k] + spans[2*k+1], sb );
+            if ( match ) sb.append( "</b>" );
+        }
+        if ( last < numTokens - 1 ) sb.append( " ..." );
+        return sb.toString();
+    }
+
+
+    /** The entry of <code>docID</code> in a list sorted by docID, or null. */
+    private static PostingsEntry find( PostingsList list, int docID ) {
+        if ( list == null ) return null;
+        int lo = 0;
+        int hi = list.size() - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            int d = list.get( mid ).docID;
+            if ( d < docID ) lo = mid + 1;
+            else if ( d > docID ) hi = mid - 1;
+            else return list.get( mid );
+        }
+        return null;
+    }
+
+
+    /**
+     *  Appends the characters <code>from</code> to <code>to</code> of
+     *  <code>text</code>, escaped for HTML, with every run of white space
+     *  made one space.
+     */
+    static void escape( String text, int from, int to, StringBuilder sb ) {
+        for ( int i=from; i<to; i++ ) {
+            char c = text.charAt( i );
+            if ( Character.isWhitespace( c )) {
+                if ( sb.length() == 0 || sb.charAt( sb.length() - 1 ) != ' ' ) sb.append( ' ' );
+                continue;
+            }
+            switch ( c ) {
+            case '<': sb.append( "&lt;" ); break;
+            case '>': sb.append( "&gt;" ); break;
+            case '&': sb.append( "&amp;" ); break;
+            case '"': sb.append( "&quot;" ); break;
+            default: sb.append( c );
+            }
+        }
+    }
+}
@@ -7,9 +7,27 @@
 
 package ir;
 
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 
 
+/**
+ *  Suggests spelling corrections for the terms of a query that are not in
+ *  the index.
+ *
+ *  The candidates for a term are the terms sharing enough of its k-grams:
+ *  the k-gram lists of the term are merged into a count per candidate, and
+ *  a candidate is only looked at if the count can reach the Jaccard
+ *  threshold. The candidates left are filtered by length, by the exact
+ *  Jaccard coefficient and by an edit distance computed in a band of the
+ *  dynamic programming table, which stops as soon as the distance is
+ *  known to be too large. Large candidate sets are scored in parallel.
+ *
+ *  Alternatively, the candidates can be looked up in a
+ *  {@link DeletionDictionary}, and go through the same filters.
+ */
 public class SpellChecker {
     /** The regular inverted index to be used by the spell checker */
     Index index;
@@ -41,6 +59,12 @@ public class SpellChecker {
         }
     }
 
+    /** Orders the candidates best first, and alphabetically when they score the same. */
+    private static final Comparator<KGramStat> BEST_FIRST = ( x, y ) -> {
+        int c = y.compareTo( x );
+        return c != 0 ? c : x.token.compareTo( y.token );
+    };
+
     /**
      * The threshold for Jaccard coefficient; a candidate spelling
      * correction should pass the threshold in order to be accepted
@@ -55,21 +79,96 @@ public class SpellChecker {
     private static final int MAX_EDIT_DISTANCE = 2;
 
 
+    /**
+     *  The deletion variants of the terms, if the candidates are found
+     *  through them rather than through the k-gram lists.
+     */
+    DeletionDictionary deletions = null;
+
+    /** Number of partial phrases kept when merging the corrections of the terms. */
+    private static final int BEAM_WIDTH = 20;
+
+    /** Weight of the number of documents in which the terms of a phrase occur together. */
+    private static final double CO_OCCURRENCE_WEIGHT = 1.0;
+
+    /** Number of misspelled terms whose corrections are cached. */
+    private static final int CORRECTION_CACHE_SIZE = 1024;
+
+    /** The corrections of the most recently misspelled terms, by term and limit. */
+    private final Map<String,List<KGramStat>> correctionCache = Collections.synchronizedMap(
+        new LinkedHashMap<String,List<KGramStat>>( 16, 0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry<String,List<KGramStat>> eldest ) {
+                return size() > CORRECTION_CACHE_SIZE;
+            }
+        });
+
+    /** Candidate sets at least this large are scored in parallel. */
+    private static final int PARALLEL_CANDIDATES = 2000;
+
+    /** Threads scoring the candidates. */
+    private final ExecutorService pool;
+
+    /** Number of threads in <code>pool</code>. */
+    private final int threads = Runtime.getRuntime().availableProcessors();
+
+
     public SpellChecker(Index index, KGramIndex kgIndex) {
         this.index = index;
         this.kgIndex = kgIndex;
+        this.pool = Executors.newFixedThreadPool( threads, r -> {
+            Thread t = new Thread( r, "spelling" );
+            t.setDaemon( true );
+            return t;
+        });
+    }
+
+    /**
+     *  Finds the candidates through <code>deletions</code> from now on, or
+     *  through the k-gram index if it is null. Both give the same
+     *  suggestions; they differ in memory use and speed.
+     */
+    public void setDeletionDictionary( DeletionDictionary deletions ) {
+        this.deletions = deletions;
+        correctionCache.clear();
+    }
+
+
+    /**
+     *  Finds the candidates through a deletion dictionary of the terms of
+     *  the k-gram index: the one in <code>file</code> if it was built for
+     *  these terms, or else a new one, which is written to <code>file</code>
+     *  unless it is null.
+     */
+    public void useDeletionDictionary( File file ) {
+        long startTime = System.currentTimeMillis();
+        DeletionDictionary dict = null;
+        try {
+            if ( file != null ) {
+                dict = DeletionDictionary.load( file, kgIndex, MAX_EDIT_DISTANCE );
+            }
+            if ( dict == null ) {
+                dict = DeletionDictionary.build( kgIndex, MAX_EDIT_DISTANCE );
+                if ( file != null ) dict.save( file );
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read or write the deletion dictionary: " + e.getMessage() );
+            if ( dict == null ) return;
+        }
+        System.err.println( String.format( "Deletion dictionary: %d variants, %.1f MB, ready in %d ms.",
+                                           dict.numberOfVariants(), dict.memoryBytes() / 1048576.0,
+                                           System.currentTimeMillis() - startTime ));
+        setDeletionDictionary( dict );
     }
 
+
     /**
      *  Computes the Jaccard coefficient for two sets A and B, where the size of set A is 
      *  <code>szA</code>, the size of set B is <code>szB</code> and the intersection 
      *  of the two sets contains <code>intersection</code> elements.
      */
     private double jaccard(int szA, int szB, int intersection) {
-        //
-        // YOUR CODE HERE
-        //
-        return 0;
+        int union = szA + szB - intersection;
+        return union == 0 ? 0 : (double)intersection / union;
     }
 
     /**
@@ -80,34 +179,292 @@ public class SpellChecker {
      *      => substitute (cost 2)
      */
     private int editDistance(String s1, String s2) {
-        //
-        // YOUR CODE HERE
-        //
+        return editDistance(s1, s2, s1.length() + s2.length());
+    }
+
 
-        return -1;
+    /**
+     *  Computes the edit distance of <code>s1</code> and <code>s2</code> if
+     *  it is at most <code>max</code>, and returns <code>max</code>+1
+     *  otherwise. Since a cell (i,j) of the table costs at least |i-j|, only
+     *  the cells with |i-j| &lt;= max are computed, and the computation stops
+     *  at the first row where all of them are above <code>max</code>.
+     */
+    static int editDistance( String s1, String s2, int max ) {
+        int n = s1.length();
+        int m = s2.length();
+        int inf = max + 1;
+        if ( Math.abs( n - m ) > max ) return inf;
+        int[] prev = new int[m+1];
+        int[] cur = new int[m+1];
+        for ( int j=0; j<=m; j++ ) {
+            prev[j] = j <= max ? j : inf;
+        }
+        for ( int i=1; i<=n; i++ ) {
+            int lo = Math.max( 1, i - max );
+            int hi = Math.min( m, i + max );
+            cur[lo-1] = lo == 1 && i <= max ? i : inf;
+            int rowMin = cur[lo-1];
+            char c = s1.charAt( i-1 );
+            for ( int j=lo; j<=hi; j++ ) {
+                int d = prev[j-1] + ( c == s2.charAt( j-1 ) ? 0 : 2 );
+                d = Math.min( d, prev[j] + 1 );
+                d = Math.min( d, cur[j-1] + 1 );
+                cur[j] = Math.min( d, inf );
+                rowMin = Math.min( rowMin, cur[j] );
+            }
+            if ( hi < m ) cur[hi+1] = inf;
+            if ( rowMin > max ) return inf;
+            int[] t = prev; prev = cur; cur = t;
+        }
+        return prev[m];
     }
 
+
+    /* --------------------------------------------- */
+
+
     /**
      *  Checks spelling of all terms in <code>query</code> and returns up to
      *  <code>limit</code> ranked suggestions for spelling correction.
      */
     public String[] check(Query query, int limit) {
-        //
-        // YOUR CODE HERE
-        //
+        long startTime = System.nanoTime();
+        try {
+            return checkQuery(query, limit);
+        } finally {
+            Metrics.spelling.record(System.nanoTime() - startTime);
+        }
+    }
+
+    private String[] checkQuery(Query query, int limit) {
+        if (query.queryterm.isEmpty()) return null;
+        List<List<KGramStat>> qCorrections = new ArrayList<List<KGramStat>>();
+        boolean corrected = false;
+        for (Query.QueryTerm qt : query.queryterm) {
+            List<KGramStat> candidates;
+            // terms in the index, and wildcard patterns, are kept as they are
+            if (qt.term.indexOf('*') >= 0 || kgIndex.getIDByTerm(qt.term) != null) {
+                candidates = new ArrayList<KGramStat>();
+                candidates.add(new KGramStat(qt.term, score(qt.term, 1)));
+            } else {
+                String key = qt.term + "/" + limit;
+                candidates = correctionCache.get(key);
+                if (candidates != null) {
+                    Metrics.correctionCache.hit();
+                } else {
+                    Metrics.correctionCache.miss();
+                    candidates = corrections(qt.term, limit);
+                    correctionCache.put(key, candidates);
+                }
+                corrected = true;
+            }
+            if (candidates.isEmpty()) return null;
+            qCorrections.add(candidates);
+        }
+        if (!corrected) return null;
+        List<KGramStat> merged = mergeCorrections(qCorrections, limit);
+        String[] result = new String[merged.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = merged.get(i).getToken();
+        }
+        return result;
+    }
+
+
+    /**
+     *  Returns up to <code>limit</code> corrections of <code>term</code>,
+     *  best first.
+     */
+    List<KGramStat> corrections( String term, int limit ) {
+        String[] kgrams = kgIndex.kgrams( term );
+        int a = kgrams.length;
+        if ( a == 0 ) return new ArrayList<KGramStat>();
+
+        int[] counts = null;
+        int[] candidates;
+        int numCandidates;
+        if ( deletions != null ) {
+            candidates = deletions.candidates( term );
+            numCandidates = candidates.length;
+        } else {
+            // Number of k-grams shared with the term, for every candidate
+            counts = new int[kgIndex.numberOfTerms()];
+            candidates = new int[64];
+            int numTouched = 0;
+            for ( String kgram : kgrams ) {
+                for ( int id : kgIndex.getTermIDs( kgram )) {
+                    if ( counts[id]++ == 0 ) {
+                        if ( numTouched == candidates.length ) candidates = Arrays.copyOf( candidates, 2 * numTouched );
+                        candidates[numTouched++] = id;
+                    }
+                }
+            }
+
+            // A candidate with b k-grams needs b >= JACCARD_THRESHOLD * a to
+            // pass, and then shares at least JACCARD_THRESHOLD * a of them.
+            int minCount = (int)Math.ceil( JACCARD_THRESHOLD * a - 1e-9 );
+            numCandidates = 0;
+            for ( int i=0; i<numTouched; i++ ) {
+                if ( counts[candidates[i]] >= minCount ) candidates[numCandidates++] = candidates[i];
+            }
+        }
+        final int[] shared = counts;
+        final HashSet<String> termKGrams = new HashSet<String>( Arrays.asList( kgrams ));
+
+        List<KGramStat> result = new ArrayList<KGramStat>();
+        if ( numCandidates < PARALLEL_CANDIDATES ) {
+            score( term, termKGrams, candidates, 0, numCandidates, shared, result );
+        } else {
+            List<Future<List<KGramStat>>> parts = new ArrayList<Future<List<KGramStat>>>();
+            for ( int t=0; t<threads; t++ ) {
+                final int[] ids = candidates;
+                final int from = (int)( (long)numCandidates * t / threads );
+                final int to = (int)( (long)numCandidates * (t+1) / threads );
+                parts.add( pool.submit( () -> {
+                    List<KGramStat> part = new ArrayList<KGramStat>();
+                    score( term, termKGrams, ids, from, to, shared, part );
+                    return part;
+                }));
+            }
+            try {
+                for ( Future<List<KGramStat>> part : parts ) {
+                    result.addAll( part.get() );
+                }
+            } catch ( InterruptedException | ExecutionException e ) {
+                throw new RuntimeException( "Spelling correction failed", e );
+            }
+        }
+        // The index may not allow concurrent reads, so the frequencies are looked up here
+        for ( KGramStat stat : result ) {
+            stat.score = score( stat.token, stat.score );
+        }
+        Collections.sort( result, BEST_FIRST );
+        return result.size() > limit ? new ArrayList<KGramStat>( result.subList( 0, limit )) : result;
+    }
+
+
+    /**
+     *  Adds the candidates <code>from</code> to <code>to</code>-1 that pass
+     *  the length, Jaccard and edit distance filters to <code>result</code>,
+     *  with their similarity to <code>term</code>. <code>counts</code> holds
+     *  the number of k-grams each candidate shares with the term, or is null
+     *  if they have to be counted.
+     */
+    private void score( String term, Set<String> termKGrams, int[] candidates, int from, int to, int[] counts, List<KGramStat> result ) {
+        for ( int i=from; i<to; i++ ) {
+            String candidate = kgIndex.getTermByID( candidates[i] );
+            if ( Math.abs( candidate.length() - term.length() ) > MAX_EDIT_DISTANCE ) continue;
+            String[] kgrams = kgIndex.kgrams( candidate );
+            int shared = 0;
+            if ( counts != null ) {
+                shared = counts[candidates[i]];
+            } else {
+                for ( String kgram : kgrams ) {
+                    if ( termKGrams.contains( kgram )) shared++;
+                }
+            }
+            double jaccard = jaccard( termKGrams.size(), kgrams.length, shared );
+            if ( jaccard < JACCARD_THRESHOLD ) continue;
+            int distance = editDistance( term, candidate, MAX_EDIT_DISTANCE );
+            if ( distance > MAX_EDIT_DISTANCE ) continue;
+            result.add( new KGramStat( candidate, jaccard / ( 1 + distance )));
+        }
+    }
 
-        return null;
+
+    /**
+     *  The score of a term that is similar to the query term by
+     *  <code>similarity</code>: more frequent terms are more likely.
+     */
+    private double score( String term, double similarity ) {
+        int df = index.docFrequency( term );
+        return similarity * ( 1 + Math.log( 1 + df ));
     }
 
+
     /**
      *  Merging ranked candidate spelling corrections for all query terms available in
      *  <code>qCorrections</code> into one final merging of query phrases. Returns up
      *  to <code>limit</code> corrected phrases.
      */
     private List<KGramStat> mergeCorrections(List<List<KGramStat>> qCorrections, int limit) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+        int n = qCorrections.size();
+        int width = Math.max(limit, BEAM_WIDTH);
+        // rest[i] bounds the sum of the candidate scores of the terms from term i on
+        double[] rest = new double[n + 1];
+        for (int i=n-1; i>=0; i--) {
+            rest[i] = rest[i+1] + qCorrections.get(i).get(0).score;
+        }
+        HashMap<String,int[]> docs = new HashMap<String,int[]>();
+
+        List<Phrase> beam = new ArrayList<Phrase>();
+        beam.add(new Phrase("", 0, null));
+        for (int i=0; i<n; i++) {
+            // the lowest-scoring phrase of the next beam is at the head
+            PriorityQueue<Phrase> next = new PriorityQueue<Phrase>(width + 1, (x, y) -> Double.compare(x.score(), y.score()));
+            for (Phrase p : beam) {
+                for (KGramStat c : qCorrections.get(i)) {
+                    // co-occurrence can only drop as terms are added, so this bounds
+                    // every phrase made from p and c; the candidates are best first
+                    double bound = p.termScore + c.score + rest[i+1] + p.coOccurrence;
+                    if (p.docs != null && next.size() == width && bound <= next.peek().score()) break;
+                    int[] cDocs = docs.computeIfAbsent(c.token, this::docIDs);
+                    int[] common = p.docs == null ? cDocs : intersect(p.docs, cDocs);
+                    String phrase = p.phrase.isEmpty() ? c.token : p.phrase + " " + c.token;
+                    next.add(new Phrase(phrase, p.termScore + c.score, common));
+                    if (next.size() > width) next.poll();
+                }
+            }
+            beam = new ArrayList<Phrase>(next);
+            Collections.sort(beam, (x, y) -> Double.compare(y.score(), x.score()));
+        }
+        List<KGramStat> result = new ArrayList<KGramStat>();
+        for (Phrase p : beam) {
+            result.add(new KGramStat(p.phrase, p.score()));
+        }
+        Collections.sort(result, BEST_FIRST);
+        return result.size() > limit ? new ArrayList<KGramStat>(result.subList(0, limit)) : result;
+    }
+
+
+    /** A partial corrected query in the beam of {@link #mergeCorrections}. */
+    private static class Phrase {
+        final String phrase;
+        /** Sum of the scores of the terms. */
+        final double termScore;
+        /** The documents containing all the terms, or null before the first term. */
+        final int[] docs;
+        /** Bonus for the terms occurring together. */
+        final double coOccurrence;
+
+        Phrase(String phrase, double termScore, int[] docs) {
+            this.phrase = phrase;
+            this.termScore = termScore;
+            this.docs = docs;
+            this.coOccurrence = docs == null ? 0 : CO_OCCURRENCE_WEIGHT * Math.log(1 + docs.length);
+        }
+
+        double score() {
+            return termScore + coOccurrence;
+        }
+    }
+
+
+    /** The docIDs of the documents containing <code>term</code>, in increasing order. */
+    private int[] docIDs( String term ) {
+        PostingsList postings = index.getPostings( term );
+        if ( postings == null ) return new int[0];
+        int[] ids = new int[postings.size()];
+        for ( int i=0; i<ids.length; i++ ) {
+            ids[i] = postings.get( i ).docID;
+        }
+        return ids;
+    }
+
+
+    private static int[] intersect( int[] a, int[] b ) {
+        int[] out = new int[Math.min( a.length, b.length )];
+        return Arrays.copyOf( out, KGramIndex.intersect( a, a.length, b, b.length, out ));
     }
 }
@@ -0,0 +1,474 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.Reader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+
+/**
+ *  A token stream producing the same tokens as {@link Tokenizer}, without
+ *  allocating per token.
+ *
+ *  After a successful call to {@link #next()}, the current token is the view
+ *  <code>buffer()[start() .. start()+length()]</code>. The view is only valid
+ *  until the next call to <code>next()</code>. A <code>String</code> is created
+ *  only when {@link #term()} is called.
+ *
+ *  Character buffers are taken from a shared pool and given back by
+ *  {@link #close()}. A stream can be reused for another document with
+ *  {@link #reset(Reader)}.
+ */
+public class TokenStream {
+
+    /** The size of the character buffer. */
+    public static final int BUFFER_LENGTH = Tokenizer.BUFFER_LENGTH;
+
+    /** Maximal number of buffers kept in the pool. */
+    private static final int MAX_POOLED_BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** Buffers given back by closed streams. */
+    private static final ArrayDeque<char[]> pool = new ArrayDeque<char[]>();
+
+    /** Character class: cannot occur in a token. */
+    private static final byte SEPARATOR = 0;
+
+    /** Character class: a letter. */
+    private static final byte LETTER = 1;
+
+    /** Character class: a non-letter that can occur in a token. */
+    private static final byte SYMBOL = 2;
+
+    /** Character class: a symbol that also splits standard words. */
+    private static final byte PUNCTUATION = 3;
+
+    /** Character classes of the ASCII characters. */
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    /** Lowercase counterparts of the ASCII characters. */
+    private static final char[] LOWER = new char[128];
+
+    static {
+        for ( char c=0; c<128; c++ ) {
+            LOWER[c] = Character.toLowerCase( c );
+            if ( Character.isLetter( c )) {
+                CHAR_CLASS[c] = LETTER;
+            } else if ( c >= '!' && c <= '~' ) {
+                CHAR_CLASS[c] = isPunctuation( c ) ? PUNCTUATION : SYMBOL;
+            } else {
+                CHAR_CLASS[c] = SEPARATOR;
+            }
+        }
+    }
+
+    /** Should all letters be turned into lowercase? */
+    public boolean case_folding;
+
+    /** Should diacritics be removed? */
+    public boolean remove_diacritics;
+
+    /** Should punctuation be removed? */
+    public boolean remove_punctuation;
+
+    /** The reader from where tokens are read. */
+    Reader reader;
+
+    /** The character buffer, taken from the pool. */
+    char[] buf;
+
+    /** Number of valid characters in the buffer. */
+    int limit = 0;
+
+    /** The current position in the buffer. */
+    int ptr = 0;
+
+    /** Offset in the document of <code>buf[0]</code>. */
+    int base = 0;
+
+    /** Starting position of current candidate token, or -1 if we're between tokens. */
+    int token_start = -1;
+
+    /** <code>true</code> when the reader has been exhausted. */
+    boolean eof = false;
+
+    /** Ring buffer of queued token starts. */
+    int[] queue_start = new int[16];
+
+    /** Ring buffer of queued token lengths. */
+    int[] queue_length = new int[16];
+
+    /** Position of the first queued token. */
+    int queue_head = 0;
+
+    /** Number of queued tokens. */
+    int queue_size = 0;
+
+    /** Start of the current token in the buffer. */
+    int current_start = 0;
+
+    /** Length of the current token. */
+    int current_length = 0;
+
+    /** Finds the patterns matching non-standard words (e-mail addresses, etc.) */
+    PatternSet.Finder finder = null;
+
+    /** Reusable view of a part of the buffer, handed to the matchers. */
+    final BufferView view = new BufferView();
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Constructor
+     *  @param reader The reader from which to read the text to be tokenized.
+     *  @param case_folding Should be set to <code>true</code> if every character
+     *         should be translated into its lowercase counterpart.
+     *  @param remove_diacritics Should be set to <code>true</code> if diacritics
+     *         should be removed.
+     *  @param remove_punctuation Should be set to <code>true</code> if punctuation
+     *         should be removed.
+     *  @param pattern_file The name of the file containing regular expressions
+     *         for non-standard words (like dates, mail addresses, etc.).
+     */
+    public TokenStream( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this.case_folding = case_folding;
+        this.remove_diacritics = remove_diacritics;
+        this.remove_punctuation = remove_punctuation;
+        if ( pattern_file != null ) {
+            finder = PatternSet.read( pattern_file ).finder();
+        }
+        buf = acquireBuffer();
+        reset( reader );
+    }
+
+
+    /**
+     *  Constructor taking already compiled patterns, which may be null.
+     *  Used by {@link TokenizerFactory}.
+     */
+    TokenStream( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, PatternSet patterns ) {
+        this.case_folding = case_folding;
+        this.remove_diacritics = remove_diacritics;
+        this.remove_punctuation = remove_punctuation;
+        if ( patterns != null ) {
+            finder = patterns.finder();
+        }
+        buf = acquireBuffer();
+        reset( reader );
+    }
+
+
+    /**
+     *  Starts reading tokens from a new reader, reusing the buffers of
+     *  this stream.
+     */
+    public void reset( Reader reader ) {
+        if ( buf == null ) {
+            buf = acquireBuffer();
+        }
+        this.reader = reader;
+        limit = 0;
+        ptr = 0;
+        base = 0;
+        token_start = -1;
+        eof = false;
+        queue_head = 0;
+        queue_size = 0;
+        current_start = 0;
+        current_length = 0;
+    }
+
+
+    /**
+     *  Gives the character buffer back to the pool. The reader is not closed.
+     */
+    public void close() {
+        if ( buf != null ) {
+            releaseBuffer( buf );
+            buf = null;
+        }
+        reader = null;
+    }
+
+
+    /** Takes a buffer from the pool, or allocates a new one. */
+    private static char[] acquireBuffer() {
+        synchronized ( pool ) {
+            char[] b = pool.poll();
+            if ( b != null ) return b;
+        }
+        return new char[BUFFER_LENGTH];
+    }
+
+
+    /** Puts a buffer back in the pool, unless the pool is full. */
+    private static void releaseBuffer( char[] b ) {
+        synchronized ( pool ) {
+            if ( pool.size() < MAX_POOLED_BUFFERS ) {
+                pool.push( b );
+            }
+        }
+    }
+
+
+    /* ------------------------------ */
+
+
+    /** The buffer holding the current token. */
+    public char[] buffer() {
+        return buf;
+    }
+
+    /** The start of the current token in the buffer. */
+    public int start() {
+        return current_start;
+    }
+
+    /** The length of the current token. */
+    public int length() {
+        return current_length;
+    }
+
+    /** The offset (in characters) of the current token in the document. */
+    public int offset() {
+        return base + current_start;
+    }
+
+    /** The current token as a newly created <code>String</code>. */
+    public String term() {
+        return new String( buf, current_start, current_length );
+    }
+
+
+    /**
+     *  Advances to the next token.
+     *
+     *  @return <code>true</code> if there is a current token, and
+     *  <code>false</code> at the end of the input.
+     */
+    public boolean next() throws IOException {
+        if ( queue_size == 0 && !readTokens() ) {
+            current_length = 0;
+            return false;
+        }
+        current_start = queue_start[queue_head];
+        current_length = queue_length[queue_head];
+        queue_head = (queue_head + 1) & (queue_start.length - 1);
+        queue_size--;
+        return true;
+    }
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  Returns true if the character is a punctuation character.
+     */
+    static boolean isPunctuation( char c ) {
+        return (c >= 32 && c <= 47) || (c >= 58 && c <= 64) || (c >= 91 && c <= 96) || (c >= 123 && c <= 126);
+    }
+
+
+    /**
+     *  Normalizes the character at <code>buf[i]</code> in place, like
+     *  {@link Tokenizer#normalize}. ASCII characters are handled by table lookups.
+     *
+     *  @return <code>true</code> if the character can occur within a token.
+     */
+    private boolean normalize( int i ) {
+        char c = buf[i];
+        if ( c < 128 ) {
+            byte cls = CHAR_CLASS[c];
+            if ( cls == LETTER && case_folding ) {
+                buf[i] = LOWER[c];
+            }
+            return cls != SEPARATOR;
+        }
+        if ( Character.isLetter( c )) {
+            if ( remove_diacritics && c >= '\u00c0' && c <= '\u017e' ) {
+                c = Tokenizer.SPECIAL_CHAR_MAPPING[c-'\u00c0'];
+            }
+            if ( case_folding ) {
+                c = Character.toLowerCase( c );
+            }
+            buf[i] = c;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  Scans the buffer until at least one token has been queued.
+     *
+     *  @return <code>false</code> if the end of input was reached with
+     *  nothing queued.
+     */
+    private boolean readTokens() throws IOException {
+        while ( queue_size == 0 ) {
+            if ( ptr == limit ) {
+                if ( token_start == 0 && limit == buf.length ) {
+                    // The token fills the whole buffer; cut it here.
+                    addTokensToQueue( token_start, limit );
+                    token_start = -1;
+                    continue;
+                }
+                if ( eof || !refillBuffer() ) {
+                    // End of input; the last token need not be followed by a separator.
+                    eof = true;
+                    if ( token_start >= 0 ) {
+                        addTokensToQueue( token_start, ptr );
+                        token_start = -1;
+                        continue;
+                    }
+                    return false;
+                }
+            }
+            if ( normalize( ptr )) {
+                if ( token_start < 0 ) {
+                    token_start = ptr;
+                }
+            } else if ( token_start >= 0 ) {
+                addTokensToQueue( token_start, ptr );
+                token_start = -1;
+            }
+            ptr++;
+        }
+        return true;
+    }
+
+
+    /**
+     *  Reads more characters, keeping the part of a token that is in progress.
+     *
+     *  @return <code>false</code> if no more characters could be read.
+     */
+    private boolean refillBuffer() throws IOException {
+        int keep = 0;
+        if ( token_start >= 0 ) {
+            keep = limit - token_start;
+            System.arraycopy( buf, token_start, buf, 0, keep );
+            token_start = 0;
+        }
+        base += limit - keep;
+        ptr = keep;
+        limit = keep;
+        int n;
+        do {
+            n = reader.read( buf, limit, buf.length - limit );
+        } while ( n == 0 );
+        if ( n < 0 ) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+
+    /**
+     *  Queues the tokens of the candidate <code>buf[from .. to]</code>, first
+     *  splitting out the non-standard words.
+     */
+    private void addTokensToQueue( int from, int to ) {
+        while ( from < to && finder != null ) {
+            view.set( buf, from, to );
+            if ( !finder.find( view )) break;
+            // First the prefix before the non-standard word, then the
+            // word itself, then look at the remainder.
+            addStandardTokensToQueue( from, from + finder.start() );
+            enqueue( from + finder.start(), finder.end() - finder.start() );
+            from += finder.end();
+        }
+        addStandardTokensToQueue( from, to );
+    }
+
+
+    /**
+     *  Queues the standard tokens in <code>buf[from .. to]</code>, considering
+     *  all punctuation symbols to be separators.
+     */
+    private void addStandardTokensToQueue( int from, int to ) {
+        int start = from;
+        for ( int i=from; i<to; i++ ) {
+            char c = buf[i];
+            if ( c < 128 && CHAR_CLASS[c] == PUNCTUATION ) {
+                if ( i > start ) {
+                    enqueue( start, i - start );
+                }
+                if ( !remove_punctuation ) {
+                    enqueue( i, 1 );
+                }
+                start = i + 1;
+            }
+        }
+        if ( to > start ) {
+            enqueue( start, to - start );
+        }
+    }
+
+
+    /** Appends a token to the ring buffer, growing it if full. */
+    private void enqueue( int start, int length ) {
+        int capacity = queue_start.length;
+        if ( queue_size == capacity ) {
+            int[] s = new int[2 * capacity];
+            int[] l = new int[2 * capacity];
+            for ( int i=0; i<queue_size; i++ ) {
+                s[i] = queue_start[(queue_head + i) & (capacity - 1)];
+                l[i] = queue_length[(queue_head + i) & (capacity - 1)];
+            }
+            queue_start = s;
+            queue_length = l;
+            queue_head = 0;
+            capacity *= 2;
+        }
+        int tail = (queue_head + queue_size) & (capacity - 1);
+        queue_start[tail] = start;
+        queue_length[tail] = length;
+        queue_size++;
+    }
+
+
+    /* ------------------------------ */
+
+
+    /**
+     *  A <code>CharSequence</code> over a part of a character array, so that
+     *  the matchers can run without copying the candidate into a String.
+     */
+    static final class BufferView implements CharSequence {
+        char[] chars;
+        int from;
+        int to;
+
+        void set( char[] chars, int from, int to ) {
+            this.chars = chars;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int length() {
+            return to - from;
+        }
+
+        public char charAt( int index ) {
+            return chars[from + index];
+        }
+
+        public CharSequence subSequence( int start, int end ) {
+            return new String( chars, from + start, end - start );
+        }
+
+        public String toString() {
+            return new String( chars, from, to - from );
+        }
+    }
+}
@@ -19,6 +19,7 @@ public class TokenTest {
     boolean case_folding = false;
     boolean remove_diacritics = false;
     boolean remove_punctuation = false;
+    boolean token_stream = false;
     String patternsfile = null;
     String filename = null;
 
@@ -40,11 +41,19 @@ public class TokenTest {
             } else {
                 try {
                     Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                    Tokenizer tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
                     int offset = 0;
                     PrintStream out = new PrintStream( System.out, true, "UTF-8" );
-                    while ( tok.hasMoreTokens() ) { 
-                        out.println( tok.nextToken() );
+                    if ( token_stream ) {
+                        TokenStream tok = new TokenStream( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                        while ( tok.next() ) {
+                            out.println( tok.term() );
+                        }
+                        tok.close();
+                    } else {
+                        Tokenizer tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                        while ( tok.hasMoreTokens() ) { 
+                            out.println( tok.nextToken() );
+                        }
                     }
                     reader.close();
                 } catch ( IOException e ) {
@@ -61,6 +70,7 @@ public class TokenTest {
         System.err.println( "  -cf : case folding (optional)" );
         System.err.println( "  -rp : removes punctuation (optional)" );
         System.err.println( "  -rd : removes diacritics  (optional)" );
+        System.err.println( "  -ts : uses the allocation-free TokenStream (optional)" );
         System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
         System.err.println( "  -f <filename> : name of file or directory to be tokenized (mandatory)" );
     }
@@ -81,6 +91,9 @@ public class TokenTest {
             } else if ( args[i].equals( "-rp" )) {
                 t.remove_punctuation = true;
                 i++;
+            } else if ( args[i].equals( "-ts" )) {
+                t.token_stream = true;
+                i++;
             } else if ( args[i].equals( "-f" )) {
                 i++;
                 if ( i<args.length ) {
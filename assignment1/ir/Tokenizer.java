@@ -9,14 +9,9 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
 import java.lang.System;
 
 
@@ -72,7 +67,10 @@ public class Tokenizer {
     boolean started_reading = false;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    PatternSet patterns = null;
+
+    /** Finds the first pattern matching a candidate token. */
+    PatternSet.Finder finder = null;
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -100,7 +98,24 @@ public class Tokenizer {
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = PatternSet.read( pattern_file );
+            finder = patterns.finder();
+        }
+    }
+
+
+    /**
+     *  Constructor taking already compiled patterns, which may be null.
+     *  Used by {@link TokenizerFactory}.
+     */
+    Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, PatternSet patterns ) {
+        this.reader = reader;
+        this.case_folding = case_folding;
+        this.remove_diacritics = remove_diacritics;
+        this.remove_punctuation = remove_punctuation;
+        if ( patterns != null ) {
+            this.patterns = patterns;
+            finder = patterns.finder();
         }
     }
 
@@ -121,30 +136,6 @@ public class Tokenizer {
     }
 
 
-    /**
-     *  Read the patterns that match non-standard words  
-     */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
-        }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
-        }
-    }
-
-
     /** 
      *  Normalizes letters by converting to lower-case and possibly
      *  removing diacritics. This method is also used for checking
@@ -272,21 +263,18 @@ public class Tokenizer {
             return false;
         }
         String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
+        if ( finder != null ) {
             // Now let's see if the string s matches one of the patterns 
             // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
-                if ( m.find() ) {
-                    // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
+            if ( finder.find( s )) {
+                // The string contains a non-standard word. First check the prefix 
+                // before the matching substring, then add the non-standard word  
+                // to the token queue, then check the remainder of the string.
+                addStandardTokensToQueue( s.substring(0, finder.start() ));
+                token_queue.add( s.substring( finder.start(), finder.end() ));
+                token_start += finder.end();
+                addTokensToQueue();
+                return true;
             }
         }
         // This string contains only standard words
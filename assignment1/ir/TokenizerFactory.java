@@ -0,0 +1,65 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.Reader;
+
+
+/**
+ *  Creates tokenizers sharing one set of settings and one compiled
+ *  {@link PatternSet}, so that the patterns file is read and compiled
+ *  once instead of once per document.
+ *
+ *  A factory is immutable and can be used from several threads at once;
+ *  the tokenizers it creates cannot.
+ */
+public class TokenizerFactory {
+
+    /** Should all letters be turned into lowercase? */
+    final boolean case_folding;
+
+    /** Should diacritics be removed? */
+    final boolean remove_diacritics;
+
+    /** Should punctuation be removed? */
+    final boolean remove_punctuation;
+
+    /** The patterns matching non-standard words, or null. */
+    final PatternSet patterns;
+
+
+    /**
+     *  Constructor
+     *  @param case_folding Should be set to <code>true</code> if every character
+     *         should be translated into its lowercase counterpart.
+     *  @param remove_diacritics Should be set to <code>true</code> if diacritics
+     *         should be removed.
+     *  @param remove_punctuation Should be set to <code>true</code> if punctuation
+     *         should be removed.
+     *  @param pattern_file The name of the file containing regular expressions
+     *         for non-standard words, or null.
+     */
+    public TokenizerFactory( boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this.case_folding = case_folding;
+        this.remove_diacritics = remove_diacritics;
+        this.remove_punctuation = remove_punctuation;
+        this.patterns = pattern_file == null ? null : PatternSet.read( pattern_file );
+    }
+
+
+    /** Returns a new tokenizer reading from <code>reader</code>. */
+    public Tokenizer newTokenizer( Reader reader ) {
+        return new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patterns );
+    }
+
+
+    /** Returns a new token stream reading from <code>reader</code>. */
+    public TokenStream newTokenStream( Reader reader ) {
+        return new TokenStream( reader, case_folding, remove_diacritics, remove_punctuation, patterns );
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ *  Variable-byte coding of non-negative integers: seven bits per byte,
+ *  least significant group first, with the high bit set on every byte
+ *  except the last. Small numbers such as docID and position gaps take
+ *  a single byte.
+ */
+final class VByte {
+
+    private VByte() {}
+
+    /** Writes <code>v</code> to <code>out</code>. */
+    static void write( DataOutput out, int v ) throws IOException {
+        while ( (v & ~0x7f) != 0 ) {
+            out.writeByte( (v & 0x7f) | 0x80 );
+            v >>>= 7;
+        }
+        out.writeByte( v );
+    }
+
+    /** Writes <code>v</code> to <code>buf</code> at <code>pos</code>, returning the position after it. */
+    static int write( byte[] buf, int pos, int v ) {
+        while ( (v & ~0x7f) != 0 ) {
+            buf[pos++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte)v;
+        return pos;
+    }
+
+    /** Reads a number at the current position of <code>buf</code>. */
+    static int read( ByteBuffer buf ) {
+        int b = buf.get();
+        if ( b >= 0 ) return b;
+        int v = b & 0x7f;
+        int shift = 7;
+        while ( true ) {
+            b = buf.get();
+            v |= (b & 0x7f) << shift;
+            if ( b >= 0 ) return v;
+            shift += 7;
+        }
+    }
+
+    /** Number of bytes needed for <code>v</code>. */
+    static int size( int v ) {
+        int n = 1;
+        while ( (v & ~0x7f) != 0 ) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+}
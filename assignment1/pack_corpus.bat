@@ -0,0 +1 @@
+java -cp classes ir.CorpusContainer -d c:\davisWiki -o davisWiki.pack
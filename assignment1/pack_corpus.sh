@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes ir.CorpusContainer -d /info/DD2476/ir22/lab/davisWiki -o davisWiki.pack
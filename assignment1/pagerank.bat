@@ -0,0 +1 @@
+java -cp classes -Xmx1g ir.PageRank -l pagerank\linksDavis.txt -t pagerank\davisTitles.txt -o davisRanks.bin
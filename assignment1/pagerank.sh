@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.PageRank -l /info/DD2476/ir22/lab/pagerank/linksDavis.txt -t /info/DD2476/ir22/lab/pagerank/davisTitles.txt -o davisRanks.bin